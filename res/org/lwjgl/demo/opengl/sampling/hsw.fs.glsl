@@ -5,6 +5,7 @@
 #version 330 core
 
 uniform sampler2D tex;
+uniform sampler2D pyramid;
 uniform float time;
 uniform float blendFactor;
 
@@ -25,22 +26,20 @@ uvec3 pcg3d(uvec3 v) {
 vec3 random3(vec3 f) {
   return uintBitsToFloat((pcg3d(floatBitsToUint(f)) & 0x007FFFFFu) | 0x3F800000u) - vec3(1.0);
 }
-float luminance(vec3 rgb) {
-  return dot(rgb, vec3(0.2126, 0.7152, 0.0722));
-}
 vec2 importanceSampleHierarchicalWarping(sampler2D t, vec2 u) {
   int x = 0, y = 0;
   ivec2 texSize = textureSize(t, 0);
   int maxLod = int(log2(float(texSize.x)) - 0.5);
   for (int lod = maxLod; lod >= 0; lod--) {
     x <<= 1; y <<= 1;
-    float x0y0 = luminance(texelFetch(t, ivec2(x+0,y+0), lod).rgb);
-    float x1y0 = luminance(texelFetch(t, ivec2(x+1,y+0), lod).rgb);
-    float x0y1 = luminance(texelFetch(t, ivec2(x+0,y+1), lod).rgb);
-    float x1y1 = luminance(texelFetch(t, ivec2(x+1,y+1), lod).rgb);
+    // each texel of the pyramid holds the summed luminance of the texels below it
+    float x0y0 = texelFetch(t, ivec2(x+0,y+0), lod).r;
+    float x1y0 = texelFetch(t, ivec2(x+1,y+0), lod).r;
+    float x0y1 = texelFetch(t, ivec2(x+0,y+1), lod).r;
+    float x1y1 = texelFetch(t, ivec2(x+1,y+1), lod).r;
     float left = x0y0 + x0y1, right = x1y0 + x1y1, pLeft = left / (left + right);
     float uxFactor = step(pLeft, u.x);
-    float pLower = mix(x0y0 / left, x1y0 / right, uxFactor);
+    float pLower = uxFactor == 0.0 ? x0y0 / left : x1y0 / right;
     float uyFactor = step(pLower, u.y);
     float uxDen = mix(pLeft, 1.0 - pLeft, uxFactor), uyDen = mix(pLower, 1.0 - pLower, uyFactor);
     u.x = mix(u.x, u.x - pLeft, uxFactor) / uxDen; u.y = mix(u.y, u.y - pLower, uyFactor) / uyDen;
@@ -54,7 +53,7 @@ float distMetric(vec2 a, vec2 b) {
 void main(void) {
   vec3 c = texture(tex, texcoords).rgb;
   vec3 rnd = random3(vec3(texcoords, time));
-  vec2 s = importanceSampleHierarchicalWarping(tex, rnd.xy);
+  vec2 s = importanceSampleHierarchicalWarping(pyramid, rnd.xy);
   float dist = distMetric(texcoords, s);
   float distanceRandomness = 0.01 + rnd.z * 0.05;
   if (dist < distanceRandomness)
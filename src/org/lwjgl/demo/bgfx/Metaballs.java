@@ -7,12 +7,14 @@ package org.lwjgl.demo.bgfx;
 import org.joml.Math;
 import org.joml.*;
 import org.lwjgl.bgfx.*;
+import org.lwjgl.demo.util.DynamicByteBuffer;
 import org.lwjgl.system.MemoryStack;
 import org.lwjgl.system.MemoryUtil;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.stream.IntStream;
 
 import static org.joml.Math.cos;
 import static org.joml.Math.sin;
@@ -25,15 +27,14 @@ import static org.lwjgl.glfw.GLFW.glfwGetTimerValue;
  * <p>
  * <p>This demo is a Java port of
  * <a href="https://github.com/bkaradzic/bgfx/tree/master/examples/02-metaballs">https://github.com/bkaradzic/bgfx/tree/master/examples/02-metaballs</a>.</p>
+ * <p>
+ * <p>Unlike the original, the field is only evaluated within the bounding box of each metaball,
+ * and the evaluation and polygonisation run in parallel over Z slabs. The grid resolution can be
+ * set with <code>-Ddims=N</code>, and <code>--benchmark</code> measures the CPU side without
+ * creating a window.</p>
  */
 public class Metaballs extends Demo {
 
-    private static class Grid {
-
-        float val;
-        Vector3f normal = new Vector3f();
-    }
-
     private BGFXVertexLayout layout;
     private short program;
 
@@ -44,9 +45,32 @@ public class Metaballs extends Demo {
     private Matrix4x3f model = new Matrix4x3f();
     private FloatBuffer modelBuf;
 
-    private Grid[] grid = new Grid[DIMS * DIMS * DIMS];
+    private Field field;
+
+    private static final int DIMS = Integer.getInteger("dims", 32);
+
+    private static final int NUM_SPHERES = 16;
+
+    private static final float ISO = 0.5f;
 
-    private static final int DIMS = 32;
+    /**
+     * The squared and radius-scaled distance from which on a metaball does not contribute to the
+     * field anymore. This bounds the region each metaball has to be evaluated in. The dropped
+     * contributions are below 1/64, which hardly moves the iso surface.
+     */
+    private static final float FALLOFF_RANGE = 64.0f;
+
+    /**
+     * Number of cell slices polygonised by a single parallel task.
+     */
+    private static final int SLAB_SLICES = 4;
+
+    /**
+     * Vertex size of the layout with position, normal and color, used by the benchmark.
+     */
+    private static final int BENCHMARK_STRIDE = 28;
+
+    private static final int BENCHMARK_FRAMES = 200;
 
     // Triangulation tables taken from:
     // http://paulbourke.net/geometry/polygonise/
@@ -356,6 +380,12 @@ public class Metaballs extends Demo {
     };
 
     public static void main(String[] args) {
+        for (String arg : args) {
+            if ("--benchmark".equalsIgnoreCase(arg)) {
+                benchmark(DIMS, BENCHMARK_FRAMES);
+                return;
+            }
+        }
         new Metaballs().run(args);
     }
 
@@ -390,76 +420,338 @@ public class Metaballs extends Demo {
         return lerp;
     }
 
-    private static final float[][] verts = new float[12][6];
     private static final int[] idxTable = { 1, 2, 3, 0, 5, 6, 7, 4, 4, 5, 6, 7 };
-    private static final float[][] sphere = new float[16][4];
-    private static final float[] rgb = new float[6];
-    private static final Grid[] gridTable = new Grid[8];
-
-    private static int triangulate(ByteBuffer _result, int _stride, float[] _rgb, Vector3f _xyz, Grid[] _val, float _iso) {
-        int cubeindex = 0;
-        cubeindex |= (_val[0].val < _iso) ? 0x01 : 0;
-        cubeindex |= (_val[1].val < _iso) ? 0x02 : 0;
-        cubeindex |= (_val[2].val < _iso) ? 0x04 : 0;
-        cubeindex |= (_val[3].val < _iso) ? 0x08 : 0;
-        cubeindex |= (_val[4].val < _iso) ? 0x10 : 0;
-        cubeindex |= (_val[5].val < _iso) ? 0x20 : 0;
-        cubeindex |= (_val[6].val < _iso) ? 0x40 : 0;
-        cubeindex |= (_val[7].val < _iso) ? 0x80 : 0;
-
-        if (0 == s_edges[cubeindex]) {
-            return 0;
-        }
 
-        int flags = s_edges[cubeindex];
+    /**
+     * Scratch memory for triangulating a single cell. Every polygonisation task uses its own
+     * instance, so that cells can be triangulated concurrently.
+     */
+    private static final class Polygonizer {
+
+        final float[][] verts = new float[12][6];
+        final float[] rgb = new float[6];
+        /**
+         * The grid indices of the eight cell corners, in the order of {@link #s_cube}.
+         */
+        final int[] corner = new int[8];
+
+        int triangulate(DynamicByteBuffer _result, int _stride, float _x, float _y, float _z, Field _field, float _iso) {
+            float[] val = _field.val;
+            int cubeindex = 0;
+            for (int ii = 0; ii < 8; ++ii) {
+                cubeindex |= (val[corner[ii]] < _iso) ? 1 << ii : 0;
+            }
+
+            if (0 == s_edges[cubeindex]) {
+                return 0;
+            }
+
+            int flags = s_edges[cubeindex];
+
+            for (int ii = 0; ii < 12; ++ii) {
+                if ((flags & (1 << ii)) != 0) {
+                    int idx0 = ii & 7;
+                    int idx1 = idxTable[ii];
+                    int g0 = corner[idx0];
+                    int g1 = corner[idx1];
+                    float[] vertex = verts[ii];
+                    float lerp = vertLerp(vertex, _iso, idx0, val[g0], idx1, val[g1]);
+
+                    vertex[3] = _field.nx[g0] + lerp * (_field.nx[g1] - _field.nx[g0]);
+                    vertex[4] = _field.ny[g0] + lerp * (_field.ny[g1] - _field.ny[g0]);
+                    vertex[5] = _field.nz[g0] + lerp * (_field.nz[g1] - _field.nz[g0]);
+                }
+            }
+
+            float dr = rgb[3] - rgb[0];
+            float dg = rgb[4] - rgb[1];
+            float db = rgb[5] - rgb[2];
+
+            int num = 0;
+            int[] indices = s_indices[cubeindex];
+            _result.reserve(15 * _stride);
+            for (int ii = 0; indices[ii] != -1; ++ii) {
+                float[] vertex = verts[indices[ii]];
 
-        for (int ii = 0; ii < 12; ++ii) {
-            if ((flags & (1 << ii)) != 0) {
-                int idx0 = ii & 7;
-                int idx1 = idxTable[ii];
-                float[] vertex = verts[ii];
-                float lerp = vertLerp(vertex, _iso, idx0, _val[idx0].val, idx1, _val[idx1].val);
+                _result.putFloatNoGrow(_x + vertex[0]);
+                _result.putFloatNoGrow(_y + vertex[1]);
+                _result.putFloatNoGrow(_z + vertex[2]);
 
-                Vector3f na = _val[idx0].normal;
-                Vector3f nb = _val[idx1].normal;
-                vertex[3] = na.x + lerp * (nb.x - na.x);
-                vertex[4] = na.y + lerp * (nb.y - na.y);
-                vertex[5] = na.z + lerp * (nb.z - na.z);
+                _result.putFloatNoGrow(vertex[3]);
+                _result.putFloatNoGrow(vertex[4]);
+                _result.putFloatNoGrow(vertex[5]);
+
+                int rr = (int) ((rgb[0] + vertex[0] * dr) * 255.0f) & 0xff;
+                int gg = (int) ((rgb[1] + vertex[1] * dg) * 255.0f) & 0xff;
+                int bb = (int) ((rgb[2] + vertex[2] * db) * 255.0f) & 0xff;
+
+                _result.putIntNoGrow(0xff000000
+                        | (bb << 16)
+                        | (gg << 8)
+                        | rr);
+
+                _result.pos += _stride - 28;
+
+                ++num;
             }
+
+            return num;
         }
+    }
 
-        float dr = _rgb[3] - _rgb[0];
-        float dg = _rgb[4] - _rgb[1];
-        float db = _rgb[5] - _rgb[2];
+    /**
+     * The CPU side of the demo: the metaball field sampled on a grid, its normals and the
+     * polygonisation of its iso surface. It does not depend on bgfx, so that it can be benchmarked
+     * without a window.
+     */
+    private static final class Field {
+
+        final int dims;
+        final float[] val, nx, ny, nz;
+        final float[][] sphere = new float[NUM_SPHERES][4];
+        /**
+         * Whether any grid point in the row <code>(yy, zz)</code> is inside the iso surface,
+         * indexed by <code>zz * dims + yy</code>. Cells whose four corner rows are all outside
+         * cannot intersect the surface.
+         */
+        final boolean[] rowInside;
+
+        private final DynamicByteBuffer[] slabs;
+        private final DynamicByteBuffer.Pool pool = new DynamicByteBuffer.Pool(64);
+
+        Field(int dims) {
+            this.dims = dims;
+            int size = dims * dims * dims;
+            val = new float[size];
+            nx = new float[size];
+            ny = new float[size];
+            nz = new float[size];
+            rowInside = new boolean[dims * dims];
+            slabs = new DynamicByteBuffer[(dims - 1 + SLAB_SLICES - 1) / SLAB_SLICES];
+        }
 
-        int num = 0;
-        int[] indices = s_indices[cubeindex];
-        for (int ii = 0; indices[ii] != -1; ++ii) {
-            float[] vertex = verts[indices[ii]];
+        /**
+         * Move the metaballs to their positions at the given time and evaluate the field.
+         */
+        void update(float time) {
+            for (int ii = 0; ii < NUM_SPHERES; ++ii) {
+                sphere[ii][0] = (float) (sin(time * (ii * 0.21f) + ii * 0.37f) * (dims * 0.5f - 8.0f));
+                sphere[ii][1] = (float) (sin(time * (ii * 0.37f) + ii * 0.67f) * (dims * 0.5f - 8.0f));
+                sphere[ii][2] = (float) (cos(time * (ii * 0.11f) + ii * 0.13f) * (dims * 0.5f - 8.0f));
+                sphere[ii][3] = (1.0f / (2.0f + (float) (sin(time * (ii * 0.13f)) * 0.5f + 0.5f) * 2.0f));
+            }
+            IntStream.range(0, dims).parallel().forEach(this::evaluate);
+        }
 
-            _result.putFloat(_xyz.x + vertex[0]);
-            _result.putFloat(_xyz.y + vertex[1]);
-            _result.putFloat(_xyz.z + vertex[2]);
+        /**
+         * Evaluate the field on the plane <code>zz</code>.
+         * <p>
+         * A metaball contributes <code>1/q</code>, where <code>q</code> is its squared distance
+         * scaled by its inverse radius. Beyond {@link #FALLOFF_RANGE} the contribution is cut off,
+         * so only the grid points within this range are visited. The innermost loop is
+         * branch-free, so that it can be auto-vectorized.
+         */
+        private void evaluate(int zz) {
+            int plane = dims * dims;
+            int offset = zz * plane;
+            float half = dims * 0.5f;
+            Arrays.fill(val, offset, offset + plane, -1.0f);
+            for (float[] pos : sphere) {
+                float px = pos[0] + half, py = pos[1] + half, pz = pos[2] + half;
+                float rr = pos[3] * pos[3];
+                float dz = pz - zz;
+                float qz = dz * dz * rr;
+                if (qz >= FALLOFF_RANGE) {
+                    continue;
+                }
+                float ey = Math.sqrt((FALLOFF_RANGE - qz) / rr);
+                int y0 = Math.max(0, (int) Math.ceil(py - ey));
+                int y1 = Math.min(dims - 1, (int) Math.floor(py + ey));
+                for (int yy = y0; yy <= y1; ++yy) {
+                    float dy = py - yy;
+                    float qyz = qz + dy * dy * rr;
+                    if (qyz >= FALLOFF_RANGE) {
+                        continue;
+                    }
+                    float ex = Math.sqrt((FALLOFF_RANGE - qyz) / rr);
+                    int x0 = Math.max(0, (int) Math.ceil(px - ex));
+                    int x1 = Math.min(dims - 1, (int) Math.floor(px + ex));
+                    int row = offset + yy * dims;
+                    for (int xx = x0; xx <= x1; ++xx) {
+                        float dx = px - xx;
+                        val[row + xx] += 1.0f / (qyz + dx * dx * rr);
+                    }
+                }
+            }
+            for (int yy = 0; yy < dims; ++yy) {
+                int row = offset + yy * dims;
+                boolean inside = false;
+                for (int xx = 0; xx < dims && !inside; ++xx) {
+                    inside = val[row + xx] >= ISO;
+                }
+                rowInside[zz * dims + yy] = inside;
+            }
+        }
 
-            _result.putFloat(vertex[3]);
-            _result.putFloat(vertex[4]);
-            _result.putFloat(vertex[5]);
+        /**
+         * @return whether any of the grid point rows <code>[y0, y1] x [z0, z1]</code> is inside
+         */
+        private boolean anyInside(int y0, int y1, int z0, int z1) {
+            for (int zz = Math.max(0, z0); zz <= Math.min(dims - 1, z1); ++zz) {
+                for (int yy = Math.max(0, y0); yy <= Math.min(dims - 1, y1); ++yy) {
+                    if (rowInside[zz * dims + yy]) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        void normals() {
+            IntStream.range(1, dims - 1).parallel().forEach(zz -> {
+                int ypitch = dims;
+                int zpitch = dims * dims;
+                for (int yy = 1; yy < dims - 1; ++yy) {
+                    // Normals are only interpolated on the edges of cells next to an inside row
+                    if (!anyInside(yy - 1, yy + 1, zz - 1, zz + 1)) {
+                        continue;
+                    }
+                    int offset = (zz * dims + yy) * dims;
+
+                    for (int xx = 1; xx < dims - 1; ++xx) {
+                        int xoffset = offset + xx;
 
-            int rr = (int) ((_rgb[0] + vertex[0] * dr) * 255.0f) & 0xff;
-            int gg = (int) ((_rgb[1] + vertex[1] * dg) * 255.0f) & 0xff;
-            int bb = (int) ((_rgb[2] + vertex[2] * db) * 255.0f) & 0xff;
+                        float gx = val[xoffset - 1] - val[xoffset + 1];
+                        float gy = val[xoffset - ypitch] - val[xoffset + ypitch];
+                        float gz = val[xoffset - zpitch] - val[xoffset + zpitch];
+                        float len2 = gx * gx + gy * gy + gz * gz;
+                        float invlen = len2 > 0.0f ? Math.invsqrt(len2) : 0.0f;
+                        nx[xoffset] = gx * invlen;
+                        ny[xoffset] = gy * invlen;
+                        nz[xoffset] = gz * invlen;
+                    }
+                }
+            });
+        }
 
-            _result.putInt(0xff000000
-                    | (bb << 16)
-                    | (gg << 8)
-                    | rr);
+        /**
+         * Polygonise the iso surface in parallel Z slabs, each into its own vertex buffer.
+         *
+         * @return the total number of vertices, to be {@link #concatenate(long, int, int) concatenated}
+         */
+        int polygonise(int stride) {
+            int ypitch = dims;
+            int zpitch = dims * dims;
+            float invdim = 1.0f / (dims - 1);
+            IntStream.range(0, slabs.length).parallel().forEach(slab -> {
+                DynamicByteBuffer vertex = pool.acquire(1 << 16);
+                Polygonizer p = new Polygonizer();
+                float[] rgb = p.rgb;
+                int[] corner = p.corner;
+                int z1 = Math.min(dims - 1, (slab + 1) * SLAB_SLICES);
+                for (int zz = slab * SLAB_SLICES; zz < z1; ++zz) {
+                    rgb[2] = zz * invdim;
+                    rgb[5] = (zz + 1) * invdim;
+
+                    for (int yy = 0; yy < dims - 1; ++yy) {
+                        if (!anyInside(yy, yy + 1, zz, zz + 1)) {
+                            continue;
+                        }
+                        int offset = (zz * dims + yy) * dims;
+
+                        rgb[1] = yy * invdim;
+                        rgb[4] = (yy + 1) * invdim;
+
+                        for (int xx = 0; xx < dims - 1; ++xx) {
+                            int xoffset = offset + xx;
+
+                            rgb[0] = xx * invdim;
+                            rgb[3] = (xx + 1) * invdim;
+
+                            corner[0] = xoffset + zpitch + ypitch;
+                            corner[1] = xoffset + zpitch + ypitch + 1;
+                            corner[2] = xoffset + ypitch + 1;
+                            corner[3] = xoffset + ypitch;
+                            corner[4] = xoffset + zpitch;
+                            corner[5] = xoffset + zpitch + 1;
+                            corner[6] = xoffset + 1;
+                            corner[7] = xoffset;
+
+                            p.triangulate(vertex, stride,
+                                    -dims * 0.5f + xx,
+                                    -dims * 0.5f + yy,
+                                    -dims * 0.5f + zz,
+                                    this, ISO);
+                        }
+                    }
+                }
+                slabs[slab] = vertex;
+            });
+            int numVertices = 0;
+            for (DynamicByteBuffer vertex : slabs) {
+                numVertices += vertex.pos / stride;
+            }
+            return numVertices;
+        }
 
-            _result.position(_result.position() + _stride - 28);
+        /**
+         * Copy the first <code>numVertices</code> vertices of the last {@link #polygonise(int)}
+         * to the given address, in slab order.
+         */
+        void concatenate(long address, int numVertices, int stride) {
+            long remaining = (long) numVertices * stride;
+            for (int slab = 0; slab < slabs.length; slab++) {
+                DynamicByteBuffer vertex = slabs[slab];
+                int bytes = (int) Math.min(remaining, vertex.pos);
+                MemoryUtil.memCopy(vertex.addr, address, bytes);
+                address += bytes;
+                remaining -= bytes;
+                pool.release(vertex);
+                slabs[slab] = null;
+            }
+        }
 
-            ++num;
+        void free() {
+            pool.clear();
         }
+    }
 
-        return num;
+    /**
+     * Run the CPU side of the demo for the given number of frames and print the average time of
+     * each step.
+     */
+    private static void benchmark(int dims, int frames) {
+        Field field = new Field(dims);
+        DynamicByteBuffer vertices = new DynamicByteBuffer();
+        long update = 0, normal = 0, triangulate = 0, numVertices = 0;
+        // The first half of the frames warms up the JIT and is not measured
+        for (int frame = -frames / 2; frame < frames; frame++) {
+            float time = frame / 60.0f;
+            long t0 = System.nanoTime();
+            field.update(time);
+            long t1 = System.nanoTime();
+            field.normals();
+            long t2 = System.nanoTime();
+            int num = field.polygonise(BENCHMARK_STRIDE);
+            vertices.pos = 0;
+            vertices.reserve(num * BENCHMARK_STRIDE);
+            field.concatenate(vertices.addr, num, BENCHMARK_STRIDE);
+            long t3 = System.nanoTime();
+            if (frame >= 0) {
+                update += t1 - t0;
+                normal += t2 - t1;
+                triangulate += t3 - t2;
+                numVertices += num;
+            }
+        }
+        field.free();
+        vertices.free();
+        System.out.println(String.format("Grid: %d^3, %d frames, %d threads", dims, frames,
+                java.lang.Runtime.getRuntime().availableProcessors()));
+        System.out.println(String.format("Num vertices: %d", numVertices / frames));
+        System.out.println(String.format("      Update: % 7.3f[ms]", update * 1E-6 / frames));
+        System.out.println(String.format("Calc normals: % 7.3f[ms]", normal * 1E-6 / frames));
+        System.out.println(String.format(" Triangulate: % 7.3f[ms]", triangulate * 1E-6 / frames));
     }
 
     @Override
@@ -475,18 +767,12 @@ public class Metaballs extends Demo {
         projBuf = MemoryUtil.memAllocFloat(16);
         modelBuf = MemoryUtil.memAllocFloat(16);
 
-        for (int i = 0; i < DIMS * DIMS * DIMS; i++) {
-            grid[i] = new Grid();
-        }
+        field = new Field(DIMS);
     }
 
     @Override
     protected void frame(float time, float frameTime) {
         try (MemoryStack stack = MemoryStack.stackPush()) {
-            int ypitch = DIMS;
-            int zpitch = DIMS * DIMS;
-            float invdim = 1.0f / (DIMS - 1);
-
             double freq = glfwGetTimerFrequency();
             double toMs = 1000.0 / freq;
 
@@ -503,121 +789,34 @@ public class Metaballs extends Demo {
             bgfx_set_view_rect(0, 0, 0, getWindowWidth(), getWindowHeight());
 
             // Stats.
-            int numVertices = 0;
             long profUpdate;
             long profNormal;
             long profTriangulate;
 
-            // Allocate 32K vertices in transient vertex buffer.
-            int maxVertices = (32 << 10);
-            BGFXTransientVertexBuffer tvb = BGFXTransientVertexBuffer.calloc(stack);
-            bgfx_alloc_transient_vertex_buffer(tvb, maxVertices, layout);
-
-            int numSpheres = 16;
-            for (int ii = 0; ii < numSpheres; ++ii) {
-                sphere[ii][0] = (float) (sin(time * (ii * 0.21f) + ii * 0.37f) * (DIMS * 0.5f - 8.0f));
-                sphere[ii][1] = (float) (sin(time * (ii * 0.37f) + ii * 0.67f) * (DIMS * 0.5f - 8.0f));
-                sphere[ii][2] = (float) (cos(time * (ii * 0.11f) + ii * 0.13f) * (DIMS * 0.5f - 8.0f));
-                sphere[ii][3] = (1.0f / (2.0f + (float) (sin(time * (ii * 0.13f)) * 0.5f + 0.5f) * 2.0f));
-            }
-
             profUpdate = glfwGetTimerValue();
 
-            for (int zz = 0; zz < DIMS; ++zz) {
-                for (int yy = 0; yy < DIMS; ++yy) {
-                    int offset = (zz * DIMS + yy) * DIMS;
-
-                    for (int xx = 0; xx < DIMS; ++xx) {
-                        int xoffset = offset + xx;
-
-                        float dist = 0.0f;
-                        float prod = 1.0f;
-                        for (int ii = 0; ii < numSpheres; ++ii) {
-                            float[] pos = sphere[ii];
-                            float dx = pos[0] - (-DIMS * 0.5f + xx);
-                            float dy = pos[1] - (-DIMS * 0.5f + yy);
-                            float dz = pos[2] - (-DIMS * 0.5f + zz);
-                            float invr = pos[3];
-                            float dot = dx * dx + dy * dy + dz * dz;
-                            dot *= invr * invr;
-
-                            dist *= dot;
-                            dist += prod;
-                            prod *= dot;
-                        }
-
-                        grid[xoffset].val = dist / prod - 1.0f;
-                    }
-                }
-            }
+            field.update(time);
 
             profUpdate = glfwGetTimerValue() - profUpdate;
 
             profNormal = glfwGetTimerValue();
 
-            for (int zz = 1; zz < DIMS - 1; ++zz) {
-                for (int yy = 1; yy < DIMS - 1; ++yy) {
-                    int offset = (zz * DIMS + yy) * DIMS;
-
-                    for (int xx = 1; xx < DIMS - 1; ++xx) {
-                        int xoffset = offset + xx;
-
-                        Grid[] grid = this.grid;
-                        Vector3f normal = new Vector3f(
-                                grid[xoffset - 1].val - grid[xoffset + 1].val,
-                                grid[xoffset - ypitch].val - grid[xoffset + ypitch].val,
-                                grid[xoffset - zpitch].val - grid[xoffset + zpitch].val
-                        );
-
-                        normal.normalize(grid[xoffset].normal);
-                    }
-                }
-            }
+            field.normals();
 
             profNormal = glfwGetTimerValue() - profNormal;
 
             profTriangulate = glfwGetTimerValue();
 
-            ByteBuffer vertex = tvb.data();
-
-            for (int zz = 0; zz < DIMS - 1 && numVertices + 12 < maxVertices; ++zz) {
-                rgb[2] = zz * invdim;
-                rgb[5] = (zz + 1) * invdim;
+            int numVertices = field.polygonise(layout.stride());
 
-                for (int yy = 0; yy < DIMS - 1 && numVertices + 12 < maxVertices; ++yy) {
-                    int offset = (zz * DIMS + yy) * DIMS;
-
-                    rgb[1] = yy * invdim;
-                    rgb[4] = (yy + 1) * invdim;
-
-                    for (int xx = 0; xx < DIMS - 1 && numVertices + 12 < maxVertices; ++xx) {
-                        int xoffset = offset + xx;
-
-                        rgb[0] = xx * invdim;
-                        rgb[3] = (xx + 1) * invdim;
-
-                        Vector3f pos = new Vector3f(
-                                -DIMS * 0.5f + xx,
-                                -DIMS * 0.5f + yy,
-                                -DIMS * 0.5f + zz
-                        );
-
-                        Grid[] grid = this.grid;
-
-                        gridTable[0] = grid[xoffset + zpitch + ypitch];
-                        gridTable[1] = grid[xoffset + zpitch + ypitch + 1];
-                        gridTable[2] = grid[xoffset + ypitch + 1];
-                        gridTable[3] = grid[xoffset + ypitch];
-                        gridTable[4] = grid[xoffset + zpitch];
-                        gridTable[5] = grid[xoffset + zpitch + 1];
-                        gridTable[6] = grid[xoffset + 1];
-                        gridTable[7] = grid[xoffset];
+            // Allocate at least 32K vertices in transient vertex buffer, or as many as are available.
+            int maxVertices = bgfx_get_avail_transient_vertex_buffer(Math.max(numVertices, 32 << 10), layout);
+            maxVertices -= maxVertices % 3;
+            BGFXTransientVertexBuffer tvb = BGFXTransientVertexBuffer.calloc(stack);
+            bgfx_alloc_transient_vertex_buffer(tvb, maxVertices, layout);
 
-                        int num = triangulate(vertex, layout.stride(), rgb, pos, gridTable, 0.5f);
-                        numVertices += num;
-                    }
-                }
-            }
+            numVertices = Math.min(numVertices, maxVertices);
+            field.concatenate(MemoryUtil.memAddress(tvb.data()), numVertices, layout.stride());
 
             profTriangulate = glfwGetTimerValue() - profTriangulate;
 
@@ -658,6 +857,8 @@ public class Metaballs extends Demo {
         MemoryUtil.memFree(projBuf);
         MemoryUtil.memFree(modelBuf);
 
+        field.free();
+
         bgfx_destroy_program(program);
         layout.free();
     }
@@ -44,6 +44,7 @@ import java.util.stream.Collectors;
 import org.joml.*;
 import org.lwjgl.PointerBuffer;
 import org.lwjgl.demo.game.VoxelGameGL.GreedyMeshing.FaceConsumer;
+import org.lwjgl.demo.util.DynamicByteBuffer;
 import org.lwjgl.demo.util.FirstFitFreeListAllocator;
 import org.lwjgl.glfw.*;
 import org.lwjgl.opengl.*;
@@ -62,7 +63,6 @@ public class VoxelGameGL {
     private static final boolean GRAB_CURSOR = has("grabCursor", true);
     private static final boolean GLDEBUG = has("gldebug", false);
     private static final NumberFormat INT_FORMATTER = NumberFormat.getIntegerInstance();
-    private static final NumberFormat PERCENT_FORMATTER = NumberFormat.getPercentInstance();
     static {
         if (DEBUG) {
             // When we are in debug mode, enable all LWJGL debug flags
@@ -79,67 +79,6 @@ public class VoxelGameGL {
         Configuration.STACK_SIZE.set(1024);
     }
 
-    /**
-     * Dynamically growable ByteBuffer.
-     */
-    public static class DynamicByteBuffer {
-        public long addr;
-        public int pos, cap;
-
-        /**
-         * Allocate a ByteBuffer with the given initial capacity.
-         */
-        public DynamicByteBuffer(int initialCapacity) {
-            addr = nmemAlloc(initialCapacity);
-            cap = initialCapacity;
-            if (DEBUG) {
-                System.out.println("Creating new DynamicByteBuffer with capacity [" + INT_FORMATTER.format(cap / 1024) + " KB]");
-            }
-        }
-
-        private void grow() {
-            int newCap = (int) (cap * 1.75f);
-            if (DEBUG) {
-                System.out.println(
-                        "Growing DynamicByteBuffer from [" + INT_FORMATTER.format(cap / 1024) + " KB] to [" + INT_FORMATTER.format(newCap / 1024) + " KB]");
-            }
-            long newAddr = nmemRealloc(addr, newCap);
-            cap = newCap;
-            addr = newAddr;
-        }
-
-        public void free() {
-            if (DEBUG) {
-                System.out.println("Freeing DynamicByteBuffer (used " + PERCENT_FORMATTER.format((float) pos / cap) + " of capacity)");
-            }
-            nmemFree(addr);
-        }
-
-        public DynamicByteBuffer putInt(int v) {
-            if (cap - pos < Integer.BYTES)
-                grow();
-            return putIntNoGrow(v);
-        }
-
-        private DynamicByteBuffer putIntNoGrow(int v) {
-            memPutInt(addr + pos, v);
-            pos += Integer.BYTES;
-            return this;
-        }
-
-        public DynamicByteBuffer putShort(int v) {
-            if (cap - pos < Short.BYTES)
-                grow();
-            return putShortNoGrow(v);
-        }
-
-        private DynamicByteBuffer putShortNoGrow(int v) {
-            memPutShort(addr + pos, (short) v);
-            pos += Short.BYTES;
-            return this;
-        }
-    }
-
     /**
      * Implementation of Greedy Meshing that takes into account the minimum/maximum Y coordinate of
      * active voxels to speedup the meshing.
@@ -741,6 +680,12 @@ public class VoxelGameGL {
         return t;
     });
 
+    /**
+     * Vertex and index data buffers reused by the chunk builder threads. They are released by the
+     * render thread after their contents have been uploaded into the buffer objects.
+     */
+    private final DynamicByteBuffer.Pool meshBufferPool = new DynamicByteBuffer.Pool(16);
+
     /**
      * The number of chunk building tasks that are currently queued and have not yet finished.
      */
@@ -1877,6 +1822,8 @@ public class VoxelGameGL {
             DynamicByteBuffer indices) {
         int n00 = v >>> 8 & 7, n10 = v >>> 11 & 7;
         int n01 = v >>> 14 & 7, n11 = v >>> 17 & 7;
+        vertexData.reserve(voxelVertexSize * verticesPerFace);
+        indices.reserve(Short.BYTES * indicesPerFace);
         switch (s >>> 1) {
         case 0:
             if (drawPointsWithGS) {
@@ -1918,16 +1865,16 @@ public class VoxelGameGL {
      */
     private static void fillIndices(int s, int i, DynamicByteBuffer indices) {
         if (isPositiveSide(s))
-            indices.putInt((i << 2) + 1 | (i << 2) + 3 << 16).putInt(i << 2 | (i << 2) + 2 << 16).putShort(PRIMITIVE_RESTART_INDEX);
+            indices.putIntNoGrow((i << 2) + 1 | (i << 2) + 3 << 16).putIntNoGrow(i << 2 | (i << 2) + 2 << 16).putShortNoGrow(PRIMITIVE_RESTART_INDEX);
         else
-            indices.putInt((i << 2) + 2 | (i << 2) + 3 << 16).putInt(i << 2 | (i << 2) + 1 << 16).putShort(PRIMITIVE_RESTART_INDEX);
+            indices.putIntNoGrow((i << 2) + 2 | (i << 2) + 3 << 16).putIntNoGrow(i << 2 | (i << 2) + 1 << 16).putShortNoGrow(PRIMITIVE_RESTART_INDEX);
     }
 
     /**
      * Write a single short for the given index (when drawing faces as points).
      */
     private static void fillIndex(int i, DynamicByteBuffer indices) {
-        indices.putShort(i);
+        indices.putShortNoGrow(i);
     }
 
     /**
@@ -1953,7 +1900,7 @@ public class VoxelGameGL {
      */
     private static void fillPositionTypeSideAndAoFactorsX(int p, int u0, int v0, int u1, int v1, int s, int n00, int n10, int n01, int n11, int v,
             DynamicByteBuffer vertexData) {
-        vertexData.putInt(u0 | p << 8 | v0 << 14 | (u1 - u0 - 1) << 20 | (v1 - v0 - 1) << 25).putInt((byte) v | s << 8 | aoFactors(n00, n10, n01, n11) << 16);
+        vertexData.putIntNoGrow(u0 | p << 8 | v0 << 14 | (u1 - u0 - 1) << 20 | (v1 - v0 - 1) << 25).putIntNoGrow((byte) v | s << 8 | aoFactors(n00, n10, n01, n11) << 16);
     }
 
     /**
@@ -1965,7 +1912,7 @@ public class VoxelGameGL {
      */
     private static void fillPositionTypeSideAndAoFactorsY(int p, int u0, int v0, int u1, int v1, int s, int n00, int n10, int n01, int n11, int v,
             DynamicByteBuffer vertexData) {
-        vertexData.putInt(p | v0 << 8 | u0 << 14 | (u1 - u0 - 1) << 20 | (v1 - v0 - 1) << 25).putInt((byte) v | s << 8 | aoFactors(n00, n10, n01, n11) << 16);
+        vertexData.putIntNoGrow(p | v0 << 8 | u0 << 14 | (u1 - u0 - 1) << 20 | (v1 - v0 - 1) << 25).putIntNoGrow((byte) v | s << 8 | aoFactors(n00, n10, n01, n11) << 16);
     }
 
     /**
@@ -1977,58 +1924,58 @@ public class VoxelGameGL {
      */
     private static void fillPositionTypeSideAndAoFactorsZ(int p, int u0, int v0, int u1, int v1, int s, int n00, int n10, int n01, int n11, int v,
             DynamicByteBuffer vertexData) {
-        vertexData.putInt(v0 | u0 << 8 | p << 14 | (u1 - u0 - 1) << 20 | (v1 - v0 - 1) << 25).putInt((byte) v | s << 8 | aoFactors(n00, n10, n01, n11) << 16);
+        vertexData.putIntNoGrow(v0 | u0 << 8 | p << 14 | (u1 - u0 - 1) << 20 | (v1 - v0 - 1) << 25).putIntNoGrow((byte) v | s << 8 | aoFactors(n00, n10, n01, n11) << 16);
     }
 
     private void fillPositionsTypesSideAndAoFactorsZ(int idx, int p, int u0, int v0, int u1, int v1, int s, int n00, int n10, int n01, int n11, int v,
             DynamicByteBuffer vertexData) {
         int sideAndAoFactors = s | aoFactors(n00, n10, n01, n11) << 8;
-        vertexData.putInt(u0 | v0 << 8 | p << 16 | (byte) v << 24).putShort(sideAndAoFactors);
+        vertexData.putIntNoGrow(u0 | v0 << 8 | p << 16 | (byte) v << 24).putShortNoGrow(sideAndAoFactors);
         if (!useMultiDrawIndirect)
-            vertexData.putInt(idx);
-        vertexData.putInt(u1 | v0 << 8 | p << 16 | (byte) v << 24).putShort(sideAndAoFactors);
+            vertexData.putIntNoGrow(idx);
+        vertexData.putIntNoGrow(u1 | v0 << 8 | p << 16 | (byte) v << 24).putShortNoGrow(sideAndAoFactors);
         if (!useMultiDrawIndirect)
-            vertexData.putInt(idx);
-        vertexData.putInt(u0 | v1 << 8 | p << 16 | (byte) v << 24).putShort(sideAndAoFactors);
+            vertexData.putIntNoGrow(idx);
+        vertexData.putIntNoGrow(u0 | v1 << 8 | p << 16 | (byte) v << 24).putShortNoGrow(sideAndAoFactors);
         if (!useMultiDrawIndirect)
-            vertexData.putInt(idx);
-        vertexData.putInt(u1 | v1 << 8 | p << 16 | (byte) v << 24).putShort(sideAndAoFactors);
+            vertexData.putIntNoGrow(idx);
+        vertexData.putIntNoGrow(u1 | v1 << 8 | p << 16 | (byte) v << 24).putShortNoGrow(sideAndAoFactors);
         if (!useMultiDrawIndirect)
-            vertexData.putInt(idx);
+            vertexData.putIntNoGrow(idx);
     }
 
     private void fillPositionsTypesSideAndAoFactorsY(int idx, int p, int u0, int v0, int u1, int v1, int s, int n00, int n10, int n01, int n11, int v,
             DynamicByteBuffer vertexData) {
         int sideAndAoFactors = s | aoFactors(n00, n10, n01, n11) << 8;
-        vertexData.putInt(v0 | p << 8 | u0 << 16 | (byte) v << 24).putShort(sideAndAoFactors);
+        vertexData.putIntNoGrow(v0 | p << 8 | u0 << 16 | (byte) v << 24).putShortNoGrow(sideAndAoFactors);
         if (!useMultiDrawIndirect)
-            vertexData.putInt(idx);
-        vertexData.putInt(v0 | p << 8 | u1 << 16 | (byte) v << 24).putShort(sideAndAoFactors);
+            vertexData.putIntNoGrow(idx);
+        vertexData.putIntNoGrow(v0 | p << 8 | u1 << 16 | (byte) v << 24).putShortNoGrow(sideAndAoFactors);
         if (!useMultiDrawIndirect)
-            vertexData.putInt(idx);
-        vertexData.putInt(v1 | p << 8 | u0 << 16 | (byte) v << 24).putShort(sideAndAoFactors);
+            vertexData.putIntNoGrow(idx);
+        vertexData.putIntNoGrow(v1 | p << 8 | u0 << 16 | (byte) v << 24).putShortNoGrow(sideAndAoFactors);
         if (!useMultiDrawIndirect)
-            vertexData.putInt(idx);
-        vertexData.putInt(v1 | p << 8 | u1 << 16 | (byte) v << 24).putShort(sideAndAoFactors);
+            vertexData.putIntNoGrow(idx);
+        vertexData.putIntNoGrow(v1 | p << 8 | u1 << 16 | (byte) v << 24).putShortNoGrow(sideAndAoFactors);
         if (!useMultiDrawIndirect)
-            vertexData.putInt(idx);
+            vertexData.putIntNoGrow(idx);
     }
 
     private void fillPositionsTypesSideAndAoFactorsX(int idx, int p, int u0, int v0, int u1, int v1, int s, int n00, int n10, int n01, int n11, int v,
             DynamicByteBuffer vertexData) {
         int sideAndAoFactors = s | aoFactors(n00, n10, n01, n11) << 8;
-        vertexData.putInt(p | u0 << 8 | v0 << 16 | (byte) v << 24).putShort(sideAndAoFactors);
+        vertexData.putIntNoGrow(p | u0 << 8 | v0 << 16 | (byte) v << 24).putShortNoGrow(sideAndAoFactors);
         if (!useMultiDrawIndirect)
-            vertexData.putInt(idx);
-        vertexData.putInt(p | u1 << 8 | v0 << 16 | (byte) v << 24).putShort(sideAndAoFactors);
+            vertexData.putIntNoGrow(idx);
+        vertexData.putIntNoGrow(p | u1 << 8 | v0 << 16 | (byte) v << 24).putShortNoGrow(sideAndAoFactors);
         if (!useMultiDrawIndirect)
-            vertexData.putInt(idx);
-        vertexData.putInt(p | u0 << 8 | v1 << 16 | (byte) v << 24).putShort(sideAndAoFactors);
+            vertexData.putIntNoGrow(idx);
+        vertexData.putIntNoGrow(p | u0 << 8 | v1 << 16 | (byte) v << 24).putShortNoGrow(sideAndAoFactors);
         if (!useMultiDrawIndirect)
-            vertexData.putInt(idx);
-        vertexData.putInt(p | u1 << 8 | v1 << 16 | (byte) v << 24).putShort(sideAndAoFactors);
+            vertexData.putIntNoGrow(idx);
+        vertexData.putIntNoGrow(p | u1 << 8 | v1 << 16 | (byte) v << 24).putShortNoGrow(sideAndAoFactors);
         if (!useMultiDrawIndirect)
-            vertexData.putInt(idx);
+            vertexData.putIntNoGrow(idx);
     }
 
     /**
@@ -2155,8 +2102,8 @@ public class VoxelGameGL {
      *         buffers completed
      */
     private long meshChunkFacesAndWriteToBuffers(Chunk chunk, VoxelField vf) {
-        DynamicByteBuffer vertexData = new DynamicByteBuffer(vf.num / 4);
-        DynamicByteBuffer indices = new DynamicByteBuffer(vf.num / 4);
+        DynamicByteBuffer vertexData = meshBufferPool.acquire(vf.num / 4);
+        DynamicByteBuffer indices = meshBufferPool.acquire(vf.num / 4);
         int faceCount = new GreedyMeshing(vf.ny, vf.py, CHUNK_SIZE, CHUNK_SIZE).mesh(vf.field, new FaceConsumer() {
             private int i;
 
@@ -2174,8 +2121,8 @@ public class VoxelGameGL {
             chunk.r = r;
             activeFaceCount += chunk.r.len;
             updateChunkVertexAndIndexDataInBufferObjects(chunk, vertexData, indices);
-            vertexData.free();
-            indices.free();
+            meshBufferPool.release(vertexData);
+            meshBufferPool.release(indices);
             return null;
         }, "Update chunk vertex data", 0));
         return time;
@@ -3065,14 +3012,19 @@ public class VoxelGameGL {
 
     /**
      * Evaluate a heightmap/terrain noise function at the given global <code>(x, z)</code> position.
+     * <p>
+     * The first octave also determines the ground level.
      */
     private static float terrainNoise(int x, int z) {
         float xzScale = 0.0018f;
         float ampl = 255;
+        float n = noise(x * xzScale, z * xzScale);
         float y = 0;
-        float groundLevel = BASE_Y + noise(x * xzScale, z * xzScale) * ampl * 0.1f;
+        float groundLevel = BASE_Y + n * ampl * 0.1f;
         for (int i = 0; i < 4; i++) {
-            y += ampl * (noise(x * xzScale, z * xzScale) * 0.5f + 0.2f);
+            if (i > 0)
+                n = noise(x * xzScale, z * xzScale);
+            y += ampl * (n * 0.5f + 0.2f);
             ampl *= 0.42f;
             xzScale *= 2.2f;
         }
@@ -3304,6 +3256,7 @@ public class VoxelGameGL {
             throw new AssertionError();
         }
         drainRunnables();
+        meshBufferPool.clear();
         GL.setCapabilities(null);
     }
 
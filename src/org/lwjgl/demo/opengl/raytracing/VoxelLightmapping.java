@@ -18,11 +18,13 @@ import static org.lwjgl.system.MemoryUtil.*;
 
 import java.io.*;
 import java.nio.*;
+import java.nio.file.*;
 import java.util.*;
 
 import org.joml.*;
 import org.joml.Math;
 import org.lwjgl.demo.util.*;
+import org.lwjgl.demo.util.AssetPipeline.Asset;
 import org.lwjgl.demo.util.FacePacker.PackResult;
 import org.lwjgl.demo.util.GreedyMeshing.Face;
 import org.lwjgl.demo.util.KDTreei.Voxel;
@@ -35,6 +37,10 @@ import org.lwjgl.system.*;
  * at runtime. The scene is then rasterized normally with the lightmap sampled with linear filtering.
  * <p>
  * Also, implements Progressively Ordered Primitive (POP) Buffer LOD.
+ * <p>
+ * When started with the argument <code>bake [samples]</code>, the lightmap is instead baked headless on all CPU
+ * cores via {@link LightmapBaker} and written to the file given by the system property <code>lightmap</code>.
+ * On normal startup, that file is loaded (if it matches the scene) and progressive GPU baking continues from there.
  * 
  * @author Kai Burjack
  */
@@ -43,6 +49,8 @@ public class VoxelLightmapping {
     private static final int VERTICES_PER_FACE = 4;
     private static final int INDICES_PER_FACE = 5;
     private static final int PRIMITIVE_RESTART_INDEX = 0xFFFF;
+    private static final String LIGHTMAP_FILE = System.getProperty("lightmap", "voxellightmapping.lightmap");
+    private static final int BAKE_SAMPLES_PER_PASS = 16;
 
     private long window;
     private int width = 1600;
@@ -188,19 +196,33 @@ public class VoxelLightmapping {
         installDebugCallback();
 
         configureGlobalGlState();
+        /* Build the scene in the background and only upload it on this thread */
+        AssetPipeline assets = new AssetPipeline();
+        Asset<VoxelField> voxelField = assets.add("voxel field", this::buildVoxelField);
+        voxelField.upload(vf -> createMaterialsTexture());
+        Asset<ArrayList<Face>> faces = assets.add("greedy mesh", () -> buildFaces(voxelField.get()), voxelField);
+        Asset<PackResult> packResult = assets.add("uv-pack", () -> uvPackFaces(faces.get()), faces);
+        packResult.upload(pr -> {
+            System.out.println(pr);
+            createLightmapTextures(pr.w, pr.h);
+            createFrameBufferObject();
+        });
+        Asset<int[]> lodList = assets.add("lod list", () -> buildLodList(faces.get()), faces, packResult);
+        lodList.upload(ll -> {
+            this.lodList = ll;
+            createSceneVbos(faces.get());
+        });
+        Asset<ArrayList<Voxel>> voxels = assets.add("greedy voxels", () -> buildVoxels(voxelField.get()), voxelField);
+        Asset<KDTreei<Voxel>> root = assets.add("kd-tree", () -> buildKdTree(voxels.get()), voxels);
+        Asset<DynamicByteBuffer[]> kdTreeBuffers = assets.add("kd-tree buffers", () -> kdTreeToBuffers(root.get()), root);
+        kdTreeBuffers.upload(this::createSceneTBOs);
+        assets.add("baked lightmap", () -> readBakedLightmap(faces.get(), packResult.get(), root.get()), lodList,
+                packResult, kdTreeBuffers).upload(this::uploadBakedLightmap);
+        assets.start();
         createRasterProgram();
-        VoxelField voxelField = buildVoxelField();
-        ArrayList<Face> faces = buildFaces(voxelField);
-        PackResult packResult = uvPackFaces(faces);
-        System.out.println(packResult);
-        this.lodList = buildLodList(faces);
-        createLightmapTextures(packResult.w, packResult.h);
-        ArrayList<Voxel> voxels = buildVoxels(voxelField);
-        createMaterialsTexture();
-        createSceneTBOs(voxels);
-        createSceneVbos(faces);
         createLightmapProgram();
-        createFrameBufferObject();
+        assets.finish();
+        assets.report(System.out);
 
         glfwShowWindow(window);
     }
@@ -513,17 +535,70 @@ public class VoxelLightmapping {
         return positionsAndTypesBufferObject;
     }
 
-    private void createSceneTBOs(ArrayList<Voxel> voxels) {
+    private static KDTreei<Voxel> buildKdTree(ArrayList<Voxel> voxels) {
         System.out.println("Building kd-tree...");
-        KDTreei<Voxel> root = build(voxels, 14);
+        return build(voxels, 14);
+    }
+
+    private DynamicByteBuffer[] kdTreeToBuffers(KDTreei<Voxel> root) {
         System.out.println("Serializing kd-tree to buffers...");
         DynamicByteBuffer voxelsBuffer = new DynamicByteBuffer();
         DynamicByteBuffer nodesBuffer = new DynamicByteBuffer();
         DynamicByteBuffer leafNodesBuffer = new DynamicByteBuffer();
         kdTreeToBuffers(root, nodesBuffer, leafNodesBuffer, voxelsBuffer);
-        createVoxelsTexture(voxelsBuffer);
-        createNodesTexture(nodesBuffer);
-        createLeafNodesTexture(leafNodesBuffer);
+        return new DynamicByteBuffer[] { nodesBuffer, leafNodesBuffer, voxelsBuffer };
+    }
+
+    private void createSceneTBOs(DynamicByteBuffer[] buffers) {
+        createVoxelsTexture(buffers[2]);
+        createNodesTexture(buffers[0]);
+        createLeafNodesTexture(buffers[1]);
+    }
+
+    private static LightmapBaker readBakedLightmap(List<Face> faces, PackResult packResult, KDTreei<Voxel> root)
+            throws IOException {
+        LightmapBaker baker = new LightmapBaker(faces, packResult.w, packResult.h, root);
+        return baker.read(Paths.get(LIGHTMAP_FILE)) ? baker : null;
+    }
+
+    private void uploadBakedLightmap(LightmapBaker baker) {
+        if (baker == null)
+            return;
+        System.out.println("Loaded baked lightmap with " + baker.samples() + " samples per texel");
+        FloatBuffer texels = memAllocFloat(baker.texels().length);
+        texels.put(baker.texels()).flip();
+        glBindTexture(GL_TEXTURE_2D, lightmapTexture);
+        glTexSubImage2D(GL_TEXTURE_2D, 0, 0, 0, lightmapTexWidth, lightmapTexHeight, GL_RGBA, GL_FLOAT, texels);
+        memFree(texels);
+        // continue accumulating GPU samples with the correct weight
+        FloatBuffer blendIndices = memAllocFloat(lightmapTexWidth * lightmapTexHeight);
+        while (blendIndices.hasRemaining())
+            blendIndices.put(baker.samples());
+        blendIndices.flip();
+        glBindTexture(GL_TEXTURE_2D, blendIndexTexture);
+        glTexSubImage2D(GL_TEXTURE_2D, 0, 0, 0, lightmapTexWidth, lightmapTexHeight, GL_RED, GL_FLOAT, blendIndices);
+        glBindTexture(GL_TEXTURE_2D, 0);
+        memFree(blendIndices);
+    }
+
+    private void bake(int samples) throws IOException {
+        VoxelField voxelField = buildVoxelField();
+        ArrayList<Face> faces = buildFaces(voxelField);
+        PackResult packResult = uvPackFaces(faces);
+        System.out.println(packResult);
+        KDTreei<Voxel> root = buildKdTree(buildVoxels(voxelField));
+        LightmapBaker baker = new LightmapBaker(faces, packResult.w, packResult.h, root);
+        Path file = Paths.get(LIGHTMAP_FILE);
+        if (baker.read(file))
+            System.out.println("Continuing from " + baker.samples() + " samples per texel");
+        while (baker.samples() < samples) {
+            long time = System.nanoTime();
+            baker.bake(Math.min(BAKE_SAMPLES_PER_PASS, samples - baker.samples()));
+            baker.write(file);
+            System.out.println("Baked " + baker.samples() + "/" + samples + " samples per texel in "
+                    + (System.nanoTime() - time) / 1000000L + " ms");
+        }
+        System.out.println("Wrote lightmap to " + file.toAbsolutePath());
     }
 
     private void createMaterialsTexture() {
@@ -823,6 +898,10 @@ public class VoxelLightmapping {
     }
 
     public static void main(String[] args) throws IOException {
+        if (args.length > 0 && "bake".equals(args[0])) {
+            new VoxelLightmapping().bake(args.length > 1 ? Integer.parseInt(args[1]) : 256);
+            return;
+        }
         new VoxelLightmapping().run();
     }
 }
@@ -7,13 +7,12 @@ package org.lwjgl.demo.opengl.raytracing.tutorial;
 import static org.lwjgl.glfw.GLFW.*;
 import static org.lwjgl.opengl.GL43C.*;
 import static org.lwjgl.system.MemoryUtil.*;
+import static org.lwjgl.demo.util.IOUtils.ioSingleFileZipToByteBuffer;
 import static org.lwjgl.demo.util.Std430Writer.*;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.*;
 import java.util.*;
-import java.util.zip.ZipInputStream;
 
 import org.joml.Matrix4f;
 import org.joml.Matrix4x3f;
@@ -390,9 +389,7 @@ public class Tutorial6 {
         viewMatrix.setLookAt(cameraPosition, cameraLookAt, cameraUp);
 
         /* Load OBJ model */
-        byte[] bytes = readSingleFileZip("org/lwjgl/demo/opengl/raytracing/tutorial6/scene.obj.zip");
-        ByteBuffer bb = BufferUtils.createByteBuffer(bytes.length);
-        bb.put(bytes).flip();
+        ByteBuffer bb = ioSingleFileZipToByteBuffer("org/lwjgl/demo/opengl/raytracing/tutorial6/scene.obj.zip");
         AIScene scene = Assimp.aiImportFileFromMemory(bb, 0, "obj");
         model = new Model(scene);
         /* And create KD-tree and triangles SSBOs */
@@ -410,28 +407,6 @@ public class Tutorial6 {
         glfwShowWindow(window);
     }
 
-    /**
-     * Return the content of a single file inside of the given zip file as byte
-     * array.
-     *
-     * @param zipResource the classpath of a zip file resources containing a single
-     *                    file entry
-     * @return the decompressed byte array of that single file
-     */
-    private static byte[] readSingleFileZip(String zipResource) throws IOException {
-        ZipInputStream zipStream = new ZipInputStream(
-                Tutorial6.class.getClassLoader().getResourceAsStream(zipResource));
-        zipStream.getNextEntry();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        byte[] buffer = new byte[1024];
-        int read = 0;
-        while ((read = zipStream.read(buffer)) > 0) {
-            baos.write(buffer, 0, read);
-        }
-        zipStream.close();
-        return baos.toByteArray();
-    }
-
     /**
      * For our compute shader we need to build a list/array of BVH nodes which the
      * shader will index into when reading the BVH nodes. Nodes will also store the
@@ -12,6 +12,7 @@ import org.lwjgl.assimp.AIScene;
 import org.lwjgl.assimp.AIVector3D;
 import org.lwjgl.assimp.Assimp;
 import org.lwjgl.demo.opengl.util.DemoUtils;
+import org.lwjgl.demo.util.AssetPipeline;
 import org.lwjgl.demo.util.DynamicByteBuffer;
 import org.lwjgl.glfw.*;
 import org.lwjgl.opengl.*;
@@ -20,7 +21,6 @@ import org.joml.Matrix4f;
 import org.joml.Matrix4x3f;
 import org.joml.Vector3f;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
@@ -31,11 +31,11 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
-import java.util.zip.ZipInputStream;
 
 import static org.lwjgl.glfw.GLFW.*;
 import static org.lwjgl.opengl.GL43C.*;
 import static org.lwjgl.system.MemoryUtil.*;
+import static org.lwjgl.demo.util.IOUtils.ioSingleFileZipToByteBuffer;
 import static org.lwjgl.demo.util.Std430Writer.*;
 
 /**
@@ -100,6 +100,9 @@ public class Tutorial7 {
     /**
      * Describes the imported Assimp scene and builds OpenGL buffer objects for
      * vertex, normal and elements/indices.
+     * <p>
+     * The model can be created on any thread, while {@link #upload()} must be
+     * called on the thread owning the OpenGL context.
      */
     private static class Model {
         private List<Mesh> meshes;
@@ -112,6 +115,11 @@ public class Tutorial7 {
                 meshes.add(new Mesh(AIMesh.create(meshesBuffer.get(i))));
         }
 
+        private void upload() {
+            for (Mesh mesh : meshes)
+                mesh.upload();
+        }
+
         private static class Mesh {
             private int vao;
             private int vertexArrayBuffer;
@@ -123,32 +131,20 @@ public class Tutorial7 {
             private int elementCount;
 
             /**
-             * Build everything from the given {@link AIMesh}.
+             * Copy vertices, normals and indices from the given {@link AIMesh}.
              *
              * @param mesh
              *            the Assimp {@link AIMesh} object
              */
             private Mesh(AIMesh mesh) {
-                vao = glGenVertexArrays();
-                glBindVertexArray(vao);
-                vertexArrayBuffer = glGenBuffers();
-                glBindBuffer(GL_ARRAY_BUFFER, vertexArrayBuffer);
                 AIVector3D.Buffer vertices = mesh.mVertices();
                 int verticesBytes = 4 * 3 * vertices.remaining();
                 verticesFB = BufferUtils.createByteBuffer(verticesBytes).asFloatBuffer();
                 memCopy(vertices.address(), memAddress(verticesFB), verticesBytes);
-                nglBufferData(GL_ARRAY_BUFFER, verticesBytes, vertices.address(), GL_STATIC_DRAW);
-                glEnableVertexAttribArray(0);
-                glVertexAttribPointer(0, 3, GL_FLOAT, false, 0, 0L);
-                normalArrayBuffer = glGenBuffers();
-                glBindBuffer(GL_ARRAY_BUFFER, normalArrayBuffer);
                 AIVector3D.Buffer normals = mesh.mNormals();
                 int normalsBytes = 4 * 3 * normals.remaining();
                 normalsFB = BufferUtils.createByteBuffer(normalsBytes).asFloatBuffer();
                 memCopy(normals.address(), memAddress(normalsFB), normalsBytes);
-                nglBufferData(GL_ARRAY_BUFFER, normalsBytes, normals.address(), GL_STATIC_DRAW);
-                glEnableVertexAttribArray(1);
-                glVertexAttribPointer(1, 3, GL_FLOAT, true, 0, 0L);
                 int faceCount = mesh.mNumFaces();
                 elementCount = faceCount * 3;
                 indicesIB = BufferUtils.createIntBuffer(elementCount);
@@ -160,6 +156,24 @@ public class Tutorial7 {
                     indicesIB.put(face.mIndices());
                 }
                 indicesIB.flip();
+            }
+
+            /**
+             * Build the OpenGL buffer objects and the VAO.
+             */
+            private void upload() {
+                vao = glGenVertexArrays();
+                glBindVertexArray(vao);
+                vertexArrayBuffer = glGenBuffers();
+                glBindBuffer(GL_ARRAY_BUFFER, vertexArrayBuffer);
+                glBufferData(GL_ARRAY_BUFFER, verticesFB, GL_STATIC_DRAW);
+                glEnableVertexAttribArray(0);
+                glVertexAttribPointer(0, 3, GL_FLOAT, false, 0, 0L);
+                normalArrayBuffer = glGenBuffers();
+                glBindBuffer(GL_ARRAY_BUFFER, normalArrayBuffer);
+                glBufferData(GL_ARRAY_BUFFER, normalsFB, GL_STATIC_DRAW);
+                glEnableVertexAttribArray(1);
+                glVertexAttribPointer(1, 3, GL_FLOAT, true, 0, 0L);
                 elementArrayBuffer = glGenBuffers();
                 glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, elementArrayBuffer);
                 glBufferData(GL_ELEMENT_ARRAY_BUFFER, indicesIB, GL_STATIC_DRAW);
@@ -394,16 +408,22 @@ public class Tutorial7 {
 
         viewMatrix.setLookAt(cameraPosition, cameraLookAt, cameraUp);
 
-        /* Load OBJ model */
-        byte[] bytes = readSingleFileZip("org/lwjgl/demo/opengl/raytracing/tutorial7/sponza.obj.zip");
-        ByteBuffer bb = BufferUtils.createByteBuffer(bytes.length);
-        bb.put(bytes).flip();
-        AIScene scene = Assimp.aiImportFileFromMemory(bb, 0, "obj");
-        model = new Model(scene);
+        /* Load OBJ model and build the KD-tree in the background */
+        AssetPipeline assets = new AssetPipeline();
+        AssetPipeline.Asset<Model> sponza = assets.add("sponza.obj", () -> {
+            ByteBuffer bb = ioSingleFileZipToByteBuffer("org/lwjgl/demo/opengl/raytracing/tutorial7/sponza.obj.zip");
+            AIScene scene = Assimp.aiImportFileFromMemory(bb, 0, "obj");
+            return new Model(scene);
+        });
+        sponza.upload(m -> {
+            m.upload();
+            model = m;
+        });
         /* And create KD-tree and triangles SSBOs */
-        createSceneSSBOs();
+        assets.add("kd-tree", () -> buildSceneBuffers(sponza.get()), sponza).upload(this::createSceneSSBOs);
+        assets.start();
 
-        /* Create all needed GL resources */
+        /* Create all needed GL resources in the meantime */
         createFramebufferTextures();
         createRasterProgram();
         initRasterProgram();
@@ -414,24 +434,12 @@ public class Tutorial7 {
         createQuadProgram();
         initQuadProgram();
         createRasterFBO();
+        assets.finish();
+        assets.report(System.out);
 
         glfwShowWindow(window);
     }
 
-    private static byte[] readSingleFileZip(String zipResource) throws IOException {
-        ZipInputStream zipStream = new ZipInputStream(
-                Tutorial7.class.getClassLoader().getResourceAsStream(zipResource));
-        zipStream.getNextEntry();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        byte[] buffer = new byte[1024];
-        int read = 0;
-        while ((read = zipStream.read(buffer)) > 0) {
-            baos.write(buffer, 0, read);
-        }
-        zipStream.close();
-        return baos.toByteArray();
-    }
-
     private static void allocate(KDTreeForTutorial7.Node node, Map<KDTreeForTutorial7.Node, Integer> indexes) {
         Queue<KDTreeForTutorial7.Node> nodes = new LinkedList<KDTreeForTutorial7.Node>();
         nodes.add(node);
@@ -447,10 +455,12 @@ public class Tutorial7 {
     }
 
     /**
-     * Convert the Assimp-imported scene into the Shader Storage Buffer Objects
-     * needed for stackless kd-tree traversable in the compute shader.
+     * Convert the Assimp-imported scene into the buffers needed for stackless
+     * kd-tree traversal in the compute shader.
+     *
+     * @return the nodes and triangles buffers
      */
-    private void createSceneSSBOs() {
+    private static DynamicByteBuffer[] buildSceneBuffers(Model model) {
         KDTreeForTutorial7 kdtree = new KDTreeForTutorial7();
         List<KDTreeForTutorial7.Boundable> triangles = new ArrayList<KDTreeForTutorial7.Boundable>();
         Vector3f min = new Vector3f(Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE);
@@ -495,7 +505,14 @@ public class Tutorial7 {
         DynamicByteBuffer nodesBuffer = new DynamicByteBuffer();
         DynamicByteBuffer trianglesBuffer = new DynamicByteBuffer();
         kdTreeToBuffers(kdtree, nodesBuffer, trianglesBuffer);
+        return new DynamicByteBuffer[] { nodesBuffer, trianglesBuffer };
+    }
 
+    /**
+     * Upload the nodes and triangles buffers into Shader Storage Buffer Objects.
+     */
+    private void createSceneSSBOs(DynamicByteBuffer[] buffers) {
+        DynamicByteBuffer nodesBuffer = buffers[0], trianglesBuffer = buffers[1];
         this.nodesSsbo = glGenBuffers();
         glBindBuffer(GL_ARRAY_BUFFER, nodesSsbo);
         nglBufferData(GL_ARRAY_BUFFER, nodesBuffer.pos, nodesBuffer.addr, GL_STATIC_DRAW);
@@ -504,6 +521,8 @@ public class Tutorial7 {
         glBindBuffer(GL_ARRAY_BUFFER, trianglesSsbo);
         nglBufferData(GL_ARRAY_BUFFER, trianglesBuffer.pos, trianglesBuffer.addr, GL_STATIC_DRAW);
         glBindBuffer(GL_ARRAY_BUFFER, 0);
+        nodesBuffer.free();
+        trianglesBuffer.free();
     }
 
     /**
@@ -16,8 +16,7 @@ import static org.lwjgl.glfw.GLFW.*;
 import static org.lwjgl.opengl.GL33C.*;
 import static org.lwjgl.stb.STBImage.*;
 import static org.lwjgl.system.MemoryStack.stackPush;
-import static org.lwjgl.system.MemoryUtil.NULL;
-import static org.lwjgl.system.MemoryUtil.memAddress;
+import static org.lwjgl.system.MemoryUtil.*;
 
 /**
  * Demo showcasing Hierarchical Sample Warping (HSW) as first proposed in the paper
@@ -87,6 +86,7 @@ public class HierarchicalSampleWarping {
     }
     glUseProgram(program);
     glUniform1i(glGetUniformLocation(program, "tex"), 0);
+    glUniform1i(glGetUniformLocation(program, "pyramid"), 1);
     int timeLocation = glGetUniformLocation(program, "time");
     int blendFactorLocation = glGetUniformLocation(program, "blendFactor");
 
@@ -110,7 +110,7 @@ public class HierarchicalSampleWarping {
 
     // Load an image, that we want to sample via hierarchical sample warping, into a texture
     // and generate mipmaps for it
-    int tex = glGenTextures();
+    int tex = glGenTextures(), pyramidTex = glGenTextures();
     {
       glBindTexture(GL_TEXTURE_2D, tex);
       glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
@@ -129,8 +129,26 @@ public class HierarchicalSampleWarping {
         throw new IOException("Failed to load image: " + stbi_failure_reason());
       glTexImage2D(GL_TEXTURE_2D, 0, GL_RGB32F, w.get(0), h.get(0), 0, GL_RGB, GL_FLOAT, (ByteBuffer) null);
       glTexSubImage2D(GL_TEXTURE_2D, 0, 0, 0, w.get(0), h.get(0), GL_RGB, GL_FLOAT, image);
-      stbi_image_free(image);
       glGenerateMipmap(GL_TEXTURE_2D);
+
+      // Build the summed luminance pyramid on the CPU and upload it as the mip chain of a separate texture
+      // which the fragment shader descends for sampling
+      float[][] levels = org.lwjgl.demo.util.HierarchicalSampleWarping.levels(image, w.get(0), 3);
+      stbi_image_free(image);
+      glActiveTexture(GL_TEXTURE1);
+      glBindTexture(GL_TEXTURE_2D, pyramidTex);
+      glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_NEAREST);
+      glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_NEAREST_MIPMAP_NEAREST);
+      glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAX_LEVEL, levels.length - 1);
+      ByteBuffer pyramid = memAlloc(org.lwjgl.demo.util.HierarchicalSampleWarping.byteSize(levels));
+      org.lwjgl.demo.util.HierarchicalSampleWarping.write(levels, memAddress(pyramid));
+      long offset = 0L;
+      for (int level = 0, size = w.get(0); level < levels.length; level++, size >>= 1) {
+        nglTexImage2D(GL_TEXTURE_2D, level, GL_R32F, size, size, 0, GL_RED, GL_FLOAT, memAddress(pyramid) + offset);
+        offset += 4L * size * size;
+      }
+      memFree(pyramid);
+      glActiveTexture(GL_TEXTURE0);
     }
 
     glfwShowWindow(window);
@@ -29,6 +29,10 @@ import org.lwjgl.system.*;
 
 /**
  * Conway's Game of Life using OpenGL compute shader.
+ * <p>
+ * With <code>-Dengine=swar</code> or <code>-Dengine=hashlife</code>, the cells are instead simulated on the CPU by a
+ * {@link GameOfLifeEngine} and uploaded into the texture every frame. Then, the arrow keys up/down double/halve the
+ * number of generations advanced per frame.
  * 
  * @author Kai Burjack
  */
@@ -63,6 +67,10 @@ public class GameOfLife {
     private static final int MAX_NUM_CELLS_Y = 1024 * 2;
     private static final int WORK_GROUP_SIZE_X = 16;
     private static final int WORK_GROUP_SIZE_Y = 16;
+    private static final String ENGINE = System.getProperty("engine");
+    /* Swar computes every generation on the full grid, whereas HashLife skips ahead in powers of two */
+    private static final long MAX_SWAR_GENERATIONS_PER_FRAME = 1L << 4;
+    private static final long MAX_HASHLIFE_GENERATIONS_PER_FRAME = 1L << 40;
 
     private static long window;
     private static int width = 1024;
@@ -84,6 +92,9 @@ public class GameOfLife {
     private static boolean mouseDown;
     private static List<GolPattern> patterns = new ArrayList<>();
     private static boolean stopped, step;
+    private static GameOfLifeEngine engine;
+    private static ByteBuffer engineCells;
+    private static long generationsPerFrame = 1L;
 
     private static void determineOpenGLCapabilities() {
         GL.createCapabilities();
@@ -122,6 +133,15 @@ public class GameOfLife {
             stopped = !stopped;
         else if (key == GLFW_KEY_S && action == GLFW_PRESS)
             step = true;
+        else if ((key == GLFW_KEY_UP || key == GLFW_KEY_DOWN) && action == GLFW_PRESS && engine != null) {
+            long max = engine instanceof GameOfLifeEngine.Swar ? MAX_SWAR_GENERATIONS_PER_FRAME
+                    : MAX_HASHLIFE_GENERATIONS_PER_FRAME;
+            if (key == GLFW_KEY_UP && generationsPerFrame < max)
+                generationsPerFrame <<= 1;
+            else if (key == GLFW_KEY_DOWN && generationsPerFrame > 1L)
+                generationsPerFrame >>>= 1;
+            System.out.println("Generations per frame: " + generationsPerFrame);
+        }
     }
 
     private static void onScroll(long window, double x, double y) {
@@ -274,7 +294,31 @@ public class GameOfLife {
         }
     }
 
+    private static void createEngine() {
+        if (ENGINE == null)
+            return;
+        if ("swar".equals(ENGINE))
+            engine = new GameOfLifeEngine.Swar(MAX_NUM_CELLS_X, MAX_NUM_CELLS_Y);
+        else if ("hashlife".equals(ENGINE))
+            engine = new GameOfLifeEngine.HashLife();
+        else
+            throw new IllegalArgumentException("Unknown engine: " + ENGINE);
+        engineCells = memAlloc(MAX_NUM_CELLS_X * MAX_NUM_CELLS_Y);
+    }
+
+    private static void computeNextStateOnCpu() {
+        engine.step(java.lang.Math.min(generationsPerFrame, engine.remainingGenerations()));
+        engine.read(0, 0, MAX_NUM_CELLS_X, MAX_NUM_CELLS_Y, engineCells);
+        glBindTexture(GL_TEXTURE_2D, textures[1 - readTexIndex]);
+        glTexSubImage2D(GL_TEXTURE_2D, 0, 0, 0, MAX_NUM_CELLS_X, MAX_NUM_CELLS_Y, GL_RED_INTEGER, GL_UNSIGNED_BYTE, engineCells);
+        glBindTexture(GL_TEXTURE_2D, 0);
+    }
+
     private static void computeNextState() {
+        if (engine != null) {
+            computeNextStateOnCpu();
+            return;
+        }
         glUseProgram(iterationProgram);
         glBindImageTexture(0, textures[readTexIndex], 0, false, 0, GL_READ_ONLY, GL_R8UI);
         glBindImageTexture(1, textures[1 - readTexIndex], 0, false, 0, GL_WRITE_ONLY, GL_R8UI);
@@ -310,6 +354,11 @@ public class GameOfLife {
                 incr = p.height + 80;
             }
         }
+        if (engine != null)
+            for (int y = 0; y < MAX_NUM_CELLS_Y; y++)
+                for (int x = 0; x < MAX_NUM_CELLS_X; x++)
+                    if (bb.get(x + y * MAX_NUM_CELLS_X) != 0)
+                        engine.set(x, y);
         bb.flip();
         glTexSubImage2D(GL_TEXTURE_2D, 0, 0, 0, MAX_NUM_CELLS_X, MAX_NUM_CELLS_Y, GL_RED_INTEGER, GL_UNSIGNED_BYTE, bb);
         memFree(bb);
@@ -336,6 +385,7 @@ public class GameOfLife {
         createRenderProgram();
         createVao();
         loadPatterns();
+        createEngine();
         initState();
         glFlush();
         glFinish();
@@ -357,6 +407,8 @@ public class GameOfLife {
     }
 
     private static void destroy() {
+        if (engineCells != null)
+            memFree(engineCells);
         GL.setCapabilities(null);
         if (debugProc != null)
             debugProc.free();
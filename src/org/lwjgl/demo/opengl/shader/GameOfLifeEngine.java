@@ -0,0 +1,552 @@
+/*
+ * Copyright LWJGL. All rights reserved.
+ * License terms: https://www.lwjgl.org/license
+ */
+package org.lwjgl.demo.opengl.shader;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/**
+ * CPU implementations of Conway's Game of Life, which can simulate without an OpenGL context and whose state can be
+ * uploaded into the cell texture of {@link GameOfLife}.
+ * <p>
+ * {@link Swar} simulates a fixed toroidal grid with 64 cells per <code>long</code>, and {@link HashLife} simulates an
+ * unbounded plane with Gosper's HashLife algorithm, which can advance very large, regular patterns by huge numbers of
+ * generations at once.
+ *
+ * @author Kai Burjack
+ */
+public abstract class GameOfLifeEngine {
+
+    /**
+     * Make the cell at the given position alive.
+     */
+    public abstract void set(int x, int y);
+
+    /**
+     * @return whether the cell at the given position is alive
+     */
+    public abstract boolean get(int x, int y);
+
+    /**
+     * Advance the given number of generations, which must not exceed {@link #remainingGenerations()}.
+     */
+    public abstract void step(long generations);
+
+    /**
+     * @return the number of generations advanced so far
+     */
+    public abstract long generation();
+
+    /**
+     * @return the largest number of generations that {@link #step(long)} can still advance
+     */
+    public abstract long remainingGenerations();
+
+    /**
+     * @return the number of alive cells
+     */
+    public abstract long population();
+
+    /**
+     * Write the given rectangle of cells into the given buffer as one byte per cell, 1 for alive and 0 for dead cells,
+     * row by row. This is the layout of the <code>GL_R8UI</code> cell textures of {@link GameOfLife}.
+     *
+     * @param x0  the x coordinate of the first cell
+     * @param y0  the y coordinate of the first cell
+     * @param w   the width of the rectangle
+     * @param h   the height of the rectangle
+     * @param dst will receive <code>w * h</code> bytes at its current position, which is not changed
+     */
+    public abstract void read(int x0, int y0, int w, int h, ByteBuffer dst);
+
+    /**
+     * Bit-parallel simulation of a toroidal grid, packing 64 cells into each <code>long</code> and computing the
+     * neighbour counts of all of them at once with full adders. Row bands are computed in parallel.
+     */
+    public static class Swar extends GameOfLifeEngine {
+        /**
+         * Number of rows per parallel task.
+         */
+        private static final int BAND_HEIGHT = 16;
+
+        private final int width, height, words;
+        private long[] cells, next;
+        private long generation;
+
+        /**
+         * @param width  the width of the grid, which must be a multiple of 64
+         * @param height the height of the grid
+         */
+        public Swar(int width, int height) {
+            if (width <= 0 || (width & 63) != 0 || height <= 0)
+                throw new IllegalArgumentException("width must be a positive multiple of 64: " + width);
+            this.width = width;
+            this.height = height;
+            this.words = width >>> 6;
+            this.cells = new long[words * height];
+            this.next = new long[words * height];
+        }
+
+        public void set(int x, int y) {
+            x = Math.floorMod(x, width);
+            y = Math.floorMod(y, height);
+            cells[y * words + (x >>> 6)] |= 1L << x;
+        }
+
+        public boolean get(int x, int y) {
+            x = Math.floorMod(x, width);
+            y = Math.floorMod(y, height);
+            return (cells[y * words + (x >>> 6)] >>> x & 1L) != 0L;
+        }
+
+        public long generation() {
+            return generation;
+        }
+
+        public long remainingGenerations() {
+            return Long.MAX_VALUE - generation;
+        }
+
+        public long population() {
+            long n = 0;
+            for (long c : cells)
+                n += Long.bitCount(c);
+            return n;
+        }
+
+        public void step(long generations) {
+            if (generations < 0 || generations > remainingGenerations())
+                throw new IllegalArgumentException("generations out of range: " + generations);
+            for (long g = 0; g < generations; g++) {
+                long[] src = cells, dst = next;
+                IntStream.range(0, (height + BAND_HEIGHT - 1) / BAND_HEIGHT).parallel().forEach(band -> {
+                    for (int y = band * BAND_HEIGHT, end = Math.min(height, y + BAND_HEIGHT); y < end; y++)
+                        stepRow(src, dst, y);
+                });
+                cells = dst;
+                next = src;
+                generation++;
+            }
+        }
+
+        private void stepRow(long[] src, long[] dst, int y) {
+            int above = (y == 0 ? height - 1 : y - 1) * words, row = y * words;
+            int below = (y == height - 1 ? 0 : y + 1) * words;
+            for (int k = 0; k < words; k++) {
+                int kw = k == 0 ? words - 1 : k - 1, ke = k == words - 1 ? 0 : k + 1;
+                long a = src[above + k], b = src[row + k], c = src[below + k];
+                /* neighbours to the west are the cells shifted one bit up, carrying in bit 63 of the previous word */
+                long aw = a << 1 | src[above + kw] >>> 63, ae = a >>> 1 | src[above + ke] << 63;
+                long bw = b << 1 | src[row + kw] >>> 63, be = b >>> 1 | src[row + ke] << 63;
+                long cw = c << 1 | src[below + kw] >>> 63, ce = c >>> 1 | src[below + ke] << 63;
+                /* sum the eight neighbours bit-parallel: ones, twos and "four or more" */
+                long sa = aw ^ a ^ ae, ca = aw & a | ae & (aw ^ a);
+                long sc = cw ^ c ^ ce, cc = cw & c | ce & (cw ^ c);
+                long sb = bw ^ be, cb = bw & be;
+                long ones = sa ^ sc ^ sb, c0 = sa & sc | sb & (sa ^ sc);
+                long t = ca ^ cc ^ cb, d = ca & cc | cb & (ca ^ cc);
+                long twos = t ^ c0, fours = d | t & c0;
+                /* alive with 3 neighbours, or with 2 neighbours if alive before */
+                dst[row + k] = twos & ~fours & (ones | b);
+            }
+        }
+
+        public void read(int x0, int y0, int w, int h, ByteBuffer dst) {
+            int pos = dst.position();
+            for (int y = 0; y < h; y++) {
+                int row = Math.floorMod(y0 + y, height) * words;
+                for (int x = 0; x < w; x++) {
+                    int cx = Math.floorMod(x0 + x, width);
+                    dst.put(pos++, (byte) (cells[row + (cx >>> 6)] >>> cx & 1L));
+                }
+            }
+        }
+    }
+
+    /**
+     * Gosper's HashLife on an unbounded plane.
+     * <p>
+     * The plane is a quadtree whose nodes are canonical, i.e. there is only a single node for every distinct square of
+     * cells, so that repeated structure in space is stored once. Every node memoizes its centered successor, so that
+     * repeated structure in time is computed once. When the number of nodes exceeds the configured limit, all memoized
+     * successors are evicted and only the nodes still reachable from the current plane are kept.
+     * <p>
+     * The root node is centered at the origin, covering <code>[-2^(level-1), 2^(level-1))</code> along both axes.
+     * <p>
+     * At most {@link #MAX_GENERATION} generations can be simulated in total. Since a pattern grows by at most one cell
+     * per generation, this keeps the root below level 62, so that node sizes and coordinates fit into a
+     * <code>long</code>.
+     */
+    public static class HashLife extends GameOfLifeEngine {
+        /**
+         * The number of generations after which the engine cannot advance anymore.
+         */
+        public static final long MAX_GENERATION = 1L << 56;
+
+        private static final class Node {
+            final Node nw, ne, sw, se;
+            final int level, id;
+            final long population;
+            Node result;
+            int mark;
+
+            Node(int id, boolean alive) {
+                this.nw = this.ne = this.sw = this.se = null;
+                this.level = 0;
+                this.id = id;
+                this.population = alive ? 1 : 0;
+            }
+
+            Node(int id, Node nw, Node ne, Node sw, Node se) {
+                this.nw = nw;
+                this.ne = ne;
+                this.sw = sw;
+                this.se = se;
+                this.level = nw.level + 1;
+                this.id = id;
+                this.population = nw.population + ne.population + sw.population + se.population;
+            }
+        }
+
+        private final int maxNodes;
+        private final Node dead, alive;
+        private final Node[] empty = new Node[64];
+        private Node[] table = new Node[1 << 16];
+        private int count, nextId = 2, stepLog = -1, epoch;
+        private Node root;
+        private long generation;
+
+        /**
+         * Create an engine keeping at most about one million nodes.
+         */
+        public HashLife() {
+            this(1 << 20);
+        }
+
+        /**
+         * @param maxNodes the number of nodes from which on memoized successors are evicted
+         */
+        public HashLife(int maxNodes) {
+            this.maxNodes = maxNodes;
+            this.dead = new Node(0, false);
+            this.alive = new Node(1, true);
+            this.empty[0] = dead;
+            this.root = empty(3);
+        }
+
+        private static int hash(Node nw, Node ne, Node sw, Node se) {
+            int h = ((nw.id * 31 + ne.id) * 31 + sw.id) * 31 + se.id;
+            return h * 0x9E3779B9 ^ h >>> 16;
+        }
+
+        /**
+         * Return the canonical node with the given children.
+         */
+        private Node join(Node nw, Node ne, Node sw, Node se) {
+            int mask = table.length - 1;
+            for (int i = hash(nw, ne, sw, se) & mask;; i = i + 1 & mask) {
+                Node n = table[i];
+                if (n == null) {
+                    n = new Node(nextId++, nw, ne, sw, se);
+                    table[i] = n;
+                    if (++count > table.length >>> 1)
+                        rehash(table.length << 1);
+                    return n;
+                }
+                if (n.nw == nw && n.ne == ne && n.sw == sw && n.se == se)
+                    return n;
+            }
+        }
+
+        private void rehash(int size) {
+            Node[] old = table;
+            table = new Node[size];
+            for (Node n : old)
+                if (n != null)
+                    insert(n);
+        }
+
+        private void insert(Node n) {
+            int mask = table.length - 1;
+            int i = hash(n.nw, n.ne, n.sw, n.se) & mask;
+            while (table[i] != null)
+                i = i + 1 & mask;
+            table[i] = n;
+        }
+
+        private Node empty(int level) {
+            if (empty[level] == null) {
+                Node e = empty(level - 1);
+                empty[level] = join(e, e, e, e);
+            }
+            return empty[level];
+        }
+
+        /**
+         * Return a node one level higher, with the given node in its center.
+         */
+        private Node expand(Node n) {
+            Node e = empty(n.level - 1);
+            return join(join(e, e, e, n.nw), join(e, e, n.ne, e), join(e, n.sw, e, e), join(n.se, e, e, e));
+        }
+
+        private Node center(Node n) {
+            return join(n.nw.se, n.ne.sw, n.sw.ne, n.se.nw);
+        }
+
+        private Node horizontalCenter(Node w, Node e) {
+            return join(w.ne, e.nw, w.se, e.sw);
+        }
+
+        private Node verticalCenter(Node n, Node s) {
+            return join(n.sw, n.se, s.nw, s.ne);
+        }
+
+        private Node leaf(int bits, int x, int y) {
+            return (bits >>> (y * 4 + x) & 1) != 0 ? alive : dead;
+        }
+
+        /**
+         * Advance the center 2x2 cells of a 4x4 node by one generation.
+         */
+        private Node successor2(Node n) {
+            int bits = 0;
+            for (int y = 0; y < 4; y++)
+                for (int x = 0; x < 4; x++) {
+                    Node q = y < 2 ? x < 2 ? n.nw : n.ne : x < 2 ? n.sw : n.se;
+                    Node c = (y & 1) == 0 ? (x & 1) == 0 ? q.nw : q.ne : (x & 1) == 0 ? q.sw : q.se;
+                    bits |= (int) c.population << (y * 4 + x);
+                }
+            int result = 0;
+            for (int y = 1; y < 3; y++)
+                for (int x = 1; x < 3; x++) {
+                    int neighbours = 0;
+                    for (int dy = -1; dy <= 1; dy++)
+                        for (int dx = -1; dx <= 1; dx++)
+                            if (dx != 0 || dy != 0)
+                                neighbours += bits >>> ((y + dy) * 4 + x + dx) & 1;
+                    int self = bits >>> (y * 4 + x) & 1;
+                    if (neighbours == 3 || neighbours == 2 && self != 0)
+                        result |= 1 << (y * 4 + x);
+                }
+            return join(leaf(result, 1, 1), leaf(result, 2, 1), leaf(result, 1, 2), leaf(result, 2, 2));
+        }
+
+        /**
+         * Return the center of the given node, one level below, advanced by <code>min(2^(level-2), 2^stepLog)</code>
+         * generations.
+         */
+        private Node successor(Node n) {
+            if (n.result != null)
+                return n.result;
+            Node r;
+            if (n.population == 0)
+                r = empty(n.level - 1);
+            else if (n.level == 2)
+                r = successor2(n);
+            else {
+                Node n00 = n.nw, n01 = horizontalCenter(n.nw, n.ne), n02 = n.ne;
+                Node n10 = verticalCenter(n.nw, n.sw), n11 = center(n), n12 = verticalCenter(n.ne, n.se);
+                Node n20 = n.sw, n21 = horizontalCenter(n.sw, n.se), n22 = n.se;
+                if (stepLog >= n.level - 2) {
+                    /* two half steps of 2^(level-3) generations each */
+                    n00 = successor(n00); n01 = successor(n01); n02 = successor(n02);
+                    n10 = successor(n10); n11 = successor(n11); n12 = successor(n12);
+                    n20 = successor(n20); n21 = successor(n21); n22 = successor(n22);
+                } else {
+                    /* only one step of 2^stepLog generations at the next level */
+                    n00 = center(n00); n01 = center(n01); n02 = center(n02);
+                    n10 = center(n10); n11 = center(n11); n12 = center(n12);
+                    n20 = center(n20); n21 = center(n21); n22 = center(n22);
+                }
+                r = join(successor(join(n00, n01, n10, n11)), successor(join(n01, n02, n11, n12)),
+                         successor(join(n10, n11, n20, n21)), successor(join(n11, n12, n21, n22)));
+            }
+            n.result = r;
+            return r;
+        }
+
+        /**
+         * Evict all memoized successors and drop all nodes which are not reachable from the root.
+         */
+        private void collect() {
+            Node[] old = table;
+            epoch++;
+            mark(root);
+            for (Node e : empty)
+                if (e != null)
+                    mark(e);
+            table = new Node[Math.max(1 << 16, Integer.highestOneBit(Math.max(1, count)) << 2)];
+            count = 0;
+            for (Node n : old) {
+                if (n == null)
+                    continue;
+                n.result = null;
+                if (n.mark == epoch) {
+                    insert(n);
+                    count++;
+                }
+            }
+        }
+
+        private void mark(Node n) {
+            if (n.level == 0 || n.mark == epoch)
+                return;
+            n.mark = epoch;
+            mark(n.nw);
+            mark(n.ne);
+            mark(n.sw);
+            mark(n.se);
+        }
+
+        private boolean covers(int x, int y) {
+            long half = 1L << root.level - 1;
+            return x >= -half && x < half && y >= -half && y < half;
+        }
+
+        public void set(int x, int y) {
+            while (!covers(x, y))
+                root = expand(root);
+            root = set(root, x, y);
+        }
+
+        private Node set(Node n, int x, int y) {
+            if (n.level == 0)
+                return alive;
+            long half = n.level == 1 ? 0 : 1L << n.level - 2;
+            /* coordinates are relative to the node's center */
+            if (x < 0) {
+                if (y < 0)
+                    return join(set(n.nw, (int) (x + half), (int) (y + half)), n.ne, n.sw, n.se);
+                return join(n.nw, n.ne, set(n.sw, (int) (x + half), (int) (y - half)), n.se);
+            }
+            if (y < 0)
+                return join(n.nw, set(n.ne, (int) (x - half), (int) (y + half)), n.sw, n.se);
+            return join(n.nw, n.ne, n.sw, set(n.se, (int) (x - half), (int) (y - half)));
+        }
+
+        public boolean get(int x, int y) {
+            if (!covers(x, y))
+                return false;
+            Node n = root;
+            while (n.level > 0) {
+                long half = n.level == 1 ? 0 : 1L << n.level - 2;
+                if (x < 0) {
+                    n = y < 0 ? n.nw : n.sw;
+                    x += half;
+                } else {
+                    n = y < 0 ? n.ne : n.se;
+                    x -= half;
+                }
+                y += y < 0 ? half : -half;
+            }
+            return n == alive;
+        }
+
+        public long generation() {
+            return generation;
+        }
+
+        public long remainingGenerations() {
+            return MAX_GENERATION - generation;
+        }
+
+        public long population() {
+            return root.population;
+        }
+
+        /**
+         * Advance by the given number of generations, in steps of the powers of two it consists of.
+         */
+        public void step(long generations) {
+            if (generations < 0 || generations > remainingGenerations())
+                throw new IllegalArgumentException("generations out of range: " + generations);
+            for (int j = 0; j < 63; j++) {
+                if ((generations >>> j & 1L) == 0L)
+                    continue;
+                if (count > maxNodes)
+                    collect();
+                if (stepLog != j) {
+                    /* memoized successors are for another step size */
+                    for (Node n : table)
+                        if (n != null)
+                            n.result = null;
+                    stepLog = j;
+                }
+                /* make sure the pattern cannot grow out of the center half during 2^j generations */
+                while (root.level < j + 3 || !hasEmptyBorder(root))
+                    root = expand(root);
+                root = successor(expand(root));
+                generation += 1L << j;
+            }
+        }
+
+        /**
+         * @return whether all cells outside of the center half of the given node are dead
+         */
+        private boolean hasEmptyBorder(Node n) {
+            return n.nw.population == n.nw.se.se.population && n.ne.population == n.ne.sw.sw.population
+                && n.sw.population == n.sw.ne.ne.population && n.se.population == n.se.nw.nw.population;
+        }
+
+        public void read(int x0, int y0, int w, int h, ByteBuffer dst) {
+            int pos = dst.position();
+            for (int i = 0; i < w * h; i++)
+                dst.put(pos + i, (byte) 0);
+            long half = 1L << root.level - 1;
+            read(root, -half, -half, x0, y0, w, h, dst, pos);
+        }
+
+        private static void read(Node n, long nx, long ny, int x0, int y0, int w, int h, ByteBuffer dst, int pos) {
+            long size = 1L << n.level;
+            if (n.population == 0 || nx >= x0 + w || ny >= y0 + h || nx + size <= x0 || ny + size <= y0)
+                return;
+            if (n.level == 0) {
+                dst.put(pos + (int) ((ny - y0) * w + nx - x0), (byte) 1);
+                return;
+            }
+            long half = size >>> 1;
+            read(n.nw, nx, ny, x0, y0, w, h, dst, pos);
+            read(n.ne, nx + half, ny, x0, y0, w, h, dst, pos);
+            read(n.sw, nx, ny + half, x0, y0, w, h, dst, pos);
+            read(n.se, nx + half, ny + half, x0, y0, w, h, dst, pos);
+        }
+    }
+
+    /**
+     * Run both engines on the same random soup, compare them and print their speed.
+     */
+    public static void main(String[] args) {
+        int size = 2048, soup = 256, generations = 256;
+        Swar swar = new Swar(size, size);
+        HashLife hashLife = new HashLife();
+        Random rnd = new Random(42);
+        for (int y = 0; y < soup; y++)
+            for (int x = 0; x < soup; x++)
+                if (rnd.nextInt(3) == 0) {
+                    swar.set(x + (size - soup) / 2, y + (size - soup) / 2);
+                    hashLife.set(x + (size - soup) / 2, y + (size - soup) / 2);
+                }
+        long time1 = System.nanoTime();
+        swar.step(generations);
+        long time2 = System.nanoTime();
+        hashLife.step(generations);
+        long time3 = System.nanoTime();
+        ByteBuffer a = ByteBuffer.allocate(size * size), b = ByteBuffer.allocate(size * size);
+        swar.read(0, 0, size, size, a);
+        hashLife.read(0, 0, size, size, b);
+        System.out.println("Engines " + (a.equals(b) ? "agree" : "DISAGREE") + " after " + generations
+                + " generations, population " + swar.population() + "/" + hashLife.population());
+        System.out.println(String.format("SWAR: %.2f billion cell updates per second",
+                (double) size * size * generations / (time2 - time1)));
+        System.out.println(String.format("HashLife: %.1f ms", (time3 - time2) / 1E6));
+        long time4 = System.nanoTime();
+        hashLife.step(1L << 30);
+        long time5 = System.nanoTime();
+        System.out.println(String.format("HashLife: advanced to generation %d in %.1f ms, population %d",
+                hashLife.generation(), (time5 - time4) / 1E6, hashLife.population()));
+    }
+}
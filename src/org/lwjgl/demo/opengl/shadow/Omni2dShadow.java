@@ -8,12 +8,12 @@ import static org.lwjgl.demo.opengl.util.DemoUtils.*;
 import static org.lwjgl.glfw.GLFW.*;
 import static org.lwjgl.opengl.GL32C.*;
 import static org.lwjgl.system.MemoryUtil.*;
+import static org.lwjgl.demo.util.IOUtils.ioSingleFileZipToByteBuffer;
 
 import java.io.*;
 import java.lang.Math;
 import java.nio.*;
 import java.util.*;
-import java.util.zip.*;
 
 import org.joml.*;
 import org.lwjgl.*;
@@ -263,26 +263,11 @@ public class Omni2dShadow {
     }
 
     private void loadModel() throws IOException {
-        byte[] bytes = readSingleFileZip("scene.obj.zip");
-        ByteBuffer bb = BufferUtils.createByteBuffer(bytes.length);
-        bb.put(bytes).flip();
+        ByteBuffer bb = ioSingleFileZipToByteBuffer("org/lwjgl/demo/opengl/shadow/scene.obj.zip");
         AIScene scene = Assimp.aiImportFileFromMemory(bb, 0, "obj");
         model = new Model(scene);
     }
 
-    private static byte[] readSingleFileZip(String zipResource) throws IOException {
-        ZipInputStream zipStream = new ZipInputStream(Omni2dShadow.class.getResourceAsStream(zipResource));
-        zipStream.getNextEntry();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        byte[] buffer = new byte[1024];
-        int read = 0;
-        while ((read = zipStream.read(buffer)) > 0) {
-            baos.write(buffer, 0, read);
-        }
-        zipStream.close();
-        return baos.toByteArray();
-    }
-
     void createShadowProgram() throws IOException {
         shadowProgram = glCreateProgram();
         int vshader = createShader("org/lwjgl/demo/opengl/shadow/omni2dShadow-vs.glsl", GL_VERTEX_SHADER);
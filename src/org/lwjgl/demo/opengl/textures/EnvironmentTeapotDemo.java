@@ -60,9 +60,10 @@ public class EnvironmentTeapotDemo {
     Vector3f cameraPosition = new Vector3f();
     FloatBuffer matrixBuffer = BufferUtils.createFloatBuffer(16);
     Mesh mesh;
-    int numVertices;
+    int numIndices;
     long normalsOffset;
     int teapotVbo;
+    int teapotIbo;
     int fullscreenVbo;
 
     GLCapabilities caps;
@@ -159,8 +160,11 @@ public class EnvironmentTeapotDemo {
     }
 
     void loadMesh() throws IOException {
-        mesh = new WavefrontMeshLoader().loadMesh("org/lwjgl/demo/opengl/models/teapot.obj.zip");
-        this.numVertices = mesh.numVertices;
+        WavefrontMeshLoader loader = new WavefrontMeshLoader();
+        loader.setIndexed(true);
+        loader.setOptimizeVertexCache(true);
+        mesh = loader.loadMesh("org/lwjgl/demo/opengl/models/teapot.obj.zip");
+        this.numIndices = mesh.numIndices;
         long bufferSize = 4 * (3 + 3) * mesh.numVertices;
         this.normalsOffset = 4L * 3 * mesh.numVertices;
         this.teapotVbo = glGenBuffersARB();
@@ -169,6 +173,10 @@ public class EnvironmentTeapotDemo {
         glBufferSubDataARB(GL_ARRAY_BUFFER_ARB, 0L, mesh.positions);
         glBufferSubDataARB(GL_ARRAY_BUFFER_ARB, normalsOffset, mesh.normals);
         glBindBufferARB(GL_ARRAY_BUFFER_ARB, 0);
+        this.teapotIbo = glGenBuffersARB();
+        glBindBufferARB(GL_ELEMENT_ARRAY_BUFFER_ARB, this.teapotIbo);
+        glBufferDataARB(GL_ELEMENT_ARRAY_BUFFER_ARB, mesh.shortIndices(), GL_STATIC_DRAW_ARB);
+        glBindBufferARB(GL_ELEMENT_ARRAY_BUFFER_ARB, 0);
     }
 
     void createFullScreenQuad() {
@@ -298,14 +306,16 @@ public class EnvironmentTeapotDemo {
         /* Render teapot */
         glEnable(GL_DEPTH_TEST);
         glUseProgramObjectARB(teapotProgram);
-        glBindBufferARB(GL_ARRAY_BUFFER_ARB, this.teapotProgram);
+        glBindBufferARB(GL_ARRAY_BUFFER_ARB, this.teapotVbo);
+        glBindBufferARB(GL_ELEMENT_ARRAY_BUFFER_ARB, this.teapotIbo);
         glEnableClientState(GL_NORMAL_ARRAY);
         glEnableClientState(GL_VERTEX_ARRAY);
         glVertexPointer(3, GL_FLOAT, 3 * 4, 0L);
         glNormalPointer(GL_FLOAT, 3 * 4, normalsOffset);
-        glDrawArrays(GL_TRIANGLES, 0, numVertices);
+        glDrawElements(GL_TRIANGLES, numIndices, GL_UNSIGNED_SHORT, 0L);
         glDisableClientState(GL_VERTEX_ARRAY);
         glDisableClientState(GL_NORMAL_ARRAY);
+        glBindBufferARB(GL_ELEMENT_ARRAY_BUFFER_ARB, 0);
     }
 
     void loop() {
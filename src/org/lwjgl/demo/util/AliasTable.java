@@ -4,51 +4,174 @@
  */
 package org.lwjgl.demo.util;
 
-import java.util.*;
+import static org.lwjgl.system.MemoryUtil.*;
+
+import java.util.stream.IntStream;
 
 import org.joml.Random;
 
 /**
  * Alias table for efficiently sampling from discrete distributions.
- * 
+ * <p>
+ * The table is built with Vose's method in linear time, using two
+ * <code>int</code> work stacks sharing a single array and accumulating the
+ * scaled weights in double precision.
+ * <p>
+ * The table can be {@link #write(long) written} into a GPU buffer as an array
+ * of the std430 struct:
+ * <pre>
+ * struct aliasentry {
+ *   float p; // probability of keeping the column
+ *   int a;   // alias of the column
+ * };
+ * </pre>
+ * A shader samples it exactly like {@link #next(Random)}: select a column with
+ * one uniform random number and keep it if a second one is less than
+ * <code>p</code>, otherwise take <code>a</code>.
+ *
  * @author Kai Burjack
  */
 public final class AliasTable {
+    /**
+     * The size in bytes of a single table entry when {@link #write(long) written}.
+     */
+    public static final int ENTRY_SIZE = 8;
+
+    /**
+     * Number of weights from which on the normalisation runs in parallel.
+     */
+    private static final int PARALLEL_THRESHOLD = 1 << 16;
+
     private final int[] a;
     private final float[] p;
 
     /**
-     * @param ws will be modified by this constructor
+     * Build the table for the given weights.
+     *
+     * @param w the non-negative weights, which need not be normalized. The array is not modified.
      */
     public AliasTable(float... w) {
+        this(w, w.length >= PARALLEL_THRESHOLD);
+    }
+
+    /**
+     * Build the table for the given weights.
+     *
+     * @param w        the non-negative weights, which need not be normalized. The array is not
+     *                 modified.
+     * @param parallel whether to sum and normalize the weights in parallel
+     */
+    public AliasTable(float[] w, boolean parallel) {
         int N = w.length;
+        if (N == 0)
+            throw new IllegalArgumentException("no weights");
         this.p = new float[N];
         this.a = new int[N];
-        float avg = 1.0f / N;
-        ArrayDeque<Integer> s = new ArrayDeque<Integer>(), l = new ArrayDeque<Integer>();
-        for (int i = 0; i < N; ++i)
-            if (w[i] >= avg)
-                l.add(i);
+        IntStream is = IntStream.range(0, N);
+        if (parallel)
+            is = is.parallel();
+        double sum = is.mapToDouble(i -> w[i]).sum();
+        if (!(sum > 0.0))
+            throw new IllegalArgumentException("weights must have a positive sum");
+        double scale = N / sum;
+        /* weights scaled such that their average is 1 */
+        double[] q = new double[N];
+        is = IntStream.range(0, N);
+        if (parallel)
+            is = is.parallel();
+        is.forEach(i -> q[i] = w[i] * scale);
+        /*
+         * Every index is on at most one of both stacks, so the small stack grows upwards from the
+         * start and the large stack downwards from the end of the same array.
+         */
+        int[] stack = new int[N];
+        int s = 0, l = N;
+        for (int i = 0; i < N; i++)
+            if (q[i] < 1.0)
+                stack[s++] = i;
             else
-                s.add(i);
-        while (!s.isEmpty() && !l.isEmpty()) {
-            int sm = s.poll(), lg = l.poll();
-            p[sm] = w[sm] * N;
+                stack[--l] = i;
+        while (s > 0 && l < N) {
+            int sm = stack[--s], lg = stack[l++];
+            p[sm] = (float) q[sm];
             a[sm] = lg;
-            w[lg] = w[lg] + w[sm] - avg;
-            if (w[lg] >= avg)
-                l.add(lg);
+            q[lg] = q[lg] + q[sm] - 1.0;
+            if (q[lg] < 1.0)
+                stack[s++] = lg;
             else
-                s.add(lg);
+                stack[--l] = lg;
+        }
+        /* What is left has a probability of 1 up to rounding errors */
+        while (s > 0) {
+            int i = stack[--s];
+            p[i] = 1.0f;
+            a[i] = i;
+        }
+        while (l < N) {
+            int i = stack[l++];
+            p[i] = 1.0f;
+            a[i] = i;
         }
-        while (!s.isEmpty())
-            p[s.poll()] = 1.0f;
-        while (!l.isEmpty())
-            p[l.poll()] = 1.0f;
+    }
+
+    /**
+     * @return the number of entries in the table
+     */
+    public int size() {
+        return p.length;
     }
 
     public int next(Random r) {
         int column = r.nextInt(p.length);
         return r.nextFloat() < p[column] ? column : a[column];
     }
+
+    /**
+     * Draw <code>out.length</code> samples at once.
+     * <p>
+     * Each sample consumes two uniform random numbers in <code>[0, 1)</code>: <code>u[2*i]</code>
+     * selects the column and <code>u[2*i+1]</code> decides between the column and its alias.
+     *
+     * @param u   at least <code>2 * out.length</code> uniform random numbers
+     * @param out will receive the sampled indices
+     */
+    public void sample(float[] u, int[] out) {
+        if (u.length < 2 * out.length)
+            throw new IllegalArgumentException("need two random numbers per sample");
+        int N = p.length, last = N - 1;
+        for (int i = 0, j = 0; i < out.length; i++, j += 2) {
+            int column = Math.min((int) (u[j] * N), last);
+            out[i] = u[j + 1] < p[column] ? column : a[column];
+        }
+    }
+
+    /**
+     * @return the number of bytes needed to {@link #write(long) write} this table
+     */
+    public int byteSize() {
+        return p.length * ENTRY_SIZE;
+    }
+
+    /**
+     * Write the table as an array of <code>{float p; int a;}</code> structs at the given address.
+     *
+     * @param address the address to write {@link #byteSize()} bytes at
+     */
+    public void write(long address) {
+        for (int i = 0; i < p.length; i++, address += ENTRY_SIZE) {
+            memPutFloat(address, p[i]);
+            memPutInt(address + 4, a[i]);
+        }
+    }
+
+    /**
+     * Append the table as an array of <code>{float p; int a;}</code> structs to the given
+     * {@link DynamicByteBuffer}.
+     */
+    public void write(DynamicByteBuffer bb) {
+        int bytes = byteSize();
+        bb.reserve(bytes);
+        write(bb.addr + bb.pos);
+        bb.pos += bytes;
+    }
 }
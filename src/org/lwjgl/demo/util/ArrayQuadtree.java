@@ -4,7 +4,10 @@
  */
 package org.lwjgl.demo.util;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.stream.IntStream;
+
 import org.joml.FrustumIntersection;
 import org.joml.Matrix4f;
 
@@ -12,11 +15,21 @@ import org.joml.Matrix4f;
  * @author Kai Burjack
  */
 public class ArrayQuadtree<T> {
+    private static final int ALL_PLANES = (1 << 6) - 1;
+    private static final int MAX_PARALLEL_LEVEL = 3;
+
     private final FrustumIntersection fi = new FrustumIntersection();
     private final int[][] innerNodes;
     private final Object[] leafNodes;
     private final int sx, sz, levels;
 
+    /* Hierarchical culling with plane masks */
+    private final float[] planes = new float[6 * 4];
+    private final byte[][] lastPlanes;
+    private final int[] tasks;
+    private final List<List<T>> taskResults = new ArrayList<>();
+    private int numTasks;
+
     public ArrayQuadtree(int levels, int scaleX, int scaleZ) {
         if (levels < 0)
             throw new IllegalArgumentException("levels");
@@ -27,6 +40,10 @@ public class ArrayQuadtree<T> {
         this.leafNodes = new Object[1 << (levels << 1)];
         for (int i = 0; i < levels; i++)
             this.innerNodes[i] = new int[1 << (i << 1)];
+        this.lastPlanes = new byte[levels + 1][];
+        for (int i = 0; i <= levels; i++)
+            this.lastPlanes[i] = new byte[1 << (i << 1)];
+        this.tasks = new int[3 << (Math.min(levels, MAX_PARALLEL_LEVEL) << 1)];
     }
 
     private static int idx(int x, int z, int lvl) {
@@ -38,6 +55,50 @@ public class ArrayQuadtree<T> {
         return visible;
     }
 
+    /**
+     * Like {@link #visible(Matrix4f, int, List)} but extracts the frustum planes
+     * only once per query and propagates a mask of the planes still
+     * intersecting a node down the hierarchy, so that descendants of nodes fully
+     * inside of a plane are not tested against it again. Nodes fully inside of
+     * all planes are accepted without any tests.
+     * <p>
+     * Additionally, the plane that rejected a node last is remembered per node
+     * and tested first in the next query, because with a slowly moving camera it
+     * is very likely to reject the node again.
+     * <p>
+     * The visible leaves are added in the same order as by
+     * {@link #visible(Matrix4f, int, List)}.
+     */
+    public List<T> visibleHierarchical(Matrix4f m, int height, List<T> visible) {
+        setPlanes(m);
+        visibleHierarchical(visible, 0, 0, 0, height, ALL_PLANES);
+        return visible;
+    }
+
+    /**
+     * Like {@link #visibleHierarchical(Matrix4f, int, List)}, but the subtrees
+     * below the top levels of the tree are culled in parallel.
+     */
+    public List<T> visibleParallel(Matrix4f m, int height, List<T> visible) {
+        setPlanes(m);
+        int parallelLevel = Math.min(levels, MAX_PARALLEL_LEVEL);
+        numTasks = 0;
+        collectTasks(0, 0, 0, height, ALL_PLANES, parallelLevel);
+        while (taskResults.size() < numTasks)
+            taskResults.add(new ArrayList<>());
+        IntStream.range(0, numTasks).parallel().forEach(t -> {
+            List<T> result = taskResults.get(t);
+            result.clear();
+            visibleHierarchical(result, parallelLevel, tasks[t * 3], tasks[t * 3 + 1], height, tasks[t * 3 + 2]);
+        });
+        for (int t = 0; t < numTasks; t++) {
+            List<T> result = taskResults.get(t);
+            visible.addAll(result);
+            result.clear();
+        }
+        return visible;
+    }
+
     public List<T> invisible(Matrix4f m, int height, List<T> invisible) {
         invisible(m, invisible, 0, 0, 0, height);
         return invisible;
@@ -95,13 +156,93 @@ public class ArrayQuadtree<T> {
 
     private int intersect(Matrix4f m, int level, int x, int z, int height) {
         int w = 1 << levels - level;
-        return fi.set(m).intersectAab(x * sx, 0, z * sz, (x + w) * sx, height, (z + w) * sz);
+        return fi.set(m).intersectAab(x * w * sx, 0, z * w * sz, (x + 1) * w * sx, height, (z + 1) * w * sz);
     }
 
     private boolean fullyInsideFrustum(Matrix4f m, int level, int x, int z, int height) {
         return intersect(m, level, x, z, height) == FrustumIntersection.INSIDE;
     }
 
+    private void setPlanes(Matrix4f m) {
+        float[] p = planes;
+        p[0] = m.m03() + m.m00(); p[1] = m.m13() + m.m10(); p[2] = m.m23() + m.m20(); p[3] = m.m33() + m.m30();
+        p[4] = m.m03() - m.m00(); p[5] = m.m13() - m.m10(); p[6] = m.m23() - m.m20(); p[7] = m.m33() - m.m30();
+        p[8] = m.m03() + m.m01(); p[9] = m.m13() + m.m11(); p[10] = m.m23() + m.m21(); p[11] = m.m33() + m.m31();
+        p[12] = m.m03() - m.m01(); p[13] = m.m13() - m.m11(); p[14] = m.m23() - m.m21(); p[15] = m.m33() - m.m31();
+        p[16] = m.m03() + m.m02(); p[17] = m.m13() + m.m12(); p[18] = m.m23() + m.m22(); p[19] = m.m33() + m.m32();
+        p[20] = m.m03() - m.m02(); p[21] = m.m13() - m.m12(); p[22] = m.m23() - m.m22(); p[23] = m.m33() - m.m32();
+        // normalize like FrustumIntersection does, to get identical results
+        for (int i = 0; i < 24; i += 4) {
+            float invl = 1.0f / (float) Math.sqrt(p[i] * p[i] + p[i + 1] * p[i + 1] + p[i + 2] * p[i + 2]);
+            p[i] *= invl; p[i + 1] *= invl; p[i + 2] *= invl; p[i + 3] *= invl;
+        }
+    }
+
+    private boolean isEmpty(int level, int x, int z) {
+        return level < levels ? innerNodes[level][idx(x, z, level)] == 0 : leafNodes[idx(x, z, level)] == null;
+    }
+
+    private void collectTasks(int level, int x, int z, int height, int mask, int parallelLevel) {
+        if (isEmpty(level, x, z) || mask != 0 && (mask = cull(level, x, z, height, mask)) < 0)
+            return;
+        if (level == parallelLevel) {
+            int t = numTasks++ * 3;
+            tasks[t] = x;
+            tasks[t + 1] = z;
+            tasks[t + 2] = mask;
+            return;
+        }
+        for (int i = 0; i < 4; i++)
+            collectTasks(level + 1, (x << 1) + (i & 1), (z << 1) + (i >>> 1 & 1), height, mask, parallelLevel);
+    }
+
+    private void visibleHierarchical(List<T> visible, int level, int x, int z, int height, int mask) {
+        if (isEmpty(level, x, z) || mask != 0 && (mask = cull(level, x, z, height, mask)) < 0)
+            return;
+        if (level == levels) {
+            @SuppressWarnings("unchecked")
+            T v = (T) leafNodes[idx(x, z, level)];
+            visible.add(v);
+            return;
+        }
+        for (int i = 0; i < 4; i++)
+            visibleHierarchical(visible, level + 1, (x << 1) + (i & 1), (z << 1) + (i >>> 1 & 1), height, mask);
+    }
+
+    /**
+     * Test the node against all planes in the given mask.
+     * 
+     * @return -1 if the node is outside of any plane, otherwise the mask of all
+     *         planes the node intersects
+     */
+    private int cull(int level, int x, int z, int height, int mask) {
+        int w = 1 << levels - level;
+        float minX = x * w * sx, minZ = z * w * sz, maxX = (x + 1) * w * sx, maxZ = (z + 1) * w * sz;
+        byte[] lp = lastPlanes[level];
+        int n = idx(x, z, level), last = lp[n];
+        if ((mask & 1 << last) != 0 && outside(last, minX, minZ, maxX, height, maxZ))
+            return -1;
+        float[] p = planes;
+        for (int i = 0; i < 6; i++) {
+            if ((mask & 1 << i) == 0)
+                continue;
+            if (outside(i, minX, minZ, maxX, height, maxZ)) {
+                lp[n] = (byte) i;
+                return -1;
+            }
+            float a = p[i * 4], b = p[i * 4 + 1], c = p[i * 4 + 2], d = p[i * 4 + 3];
+            if (a * (a < 0 ? maxX : minX) + b * (b < 0 ? height : 0) + c * (c < 0 ? maxZ : minZ) >= -d)
+                mask &= ~(1 << i);
+        }
+        return mask;
+    }
+
+    private boolean outside(int i, float minX, float minZ, float maxX, float maxY, float maxZ) {
+        float[] p = planes;
+        float a = p[i * 4], b = p[i * 4 + 1], c = p[i * 4 + 2], d = p[i * 4 + 3];
+        return a * (a < 0 ? minX : maxX) + b * (b < 0 ? 0 : maxY) + c * (c < 0 ? minZ : maxZ) < -d;
+    }
+
     private void visibleInnerNode(Matrix4f m, List<T> visible, int level, int x, int z, int height) {
         if (innerNodes[level][idx(x, z, level)] == 0 || outsideFrustum(m, level, x, z, height))
             return;
@@ -0,0 +1,256 @@
+/*
+ * Copyright LWJGL. All rights reserved.
+ * License terms: https://www.lwjgl.org/license
+ */
+package org.lwjgl.demo.util;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Loads the assets of a demo in parallel on a work-stealing pool while the
+ * rendering thread creates its own resources.
+ * <p>
+ * Assets are declared via {@link #add(String, Loader, Asset...)} together with
+ * the assets they depend on, for example a voxel field, the greedy mesh built
+ * from it and the kd-tree built from the mesh. After {@link #start()}, every
+ * asset is loaded as soon as all of its dependencies are available.
+ * <p>
+ * Only the final step which needs the GL context or Vulkan queue, registered
+ * via {@link Asset#upload(Uploader)}, runs on the thread calling
+ * {@link #finish()}. Uploads run in the order in which assets complete, but
+ * always after the uploads of all their dependencies.
+ *
+ * @author Kai Burjack
+ */
+public class AssetPipeline {
+    /**
+     * Produces the value of an asset on a worker thread.
+     */
+    @FunctionalInterface
+    public interface Loader<T> {
+        T load() throws Exception;
+    }
+
+    /**
+     * Consumes the value of an asset on the thread calling {@link AssetPipeline#finish()}.
+     */
+    @FunctionalInterface
+    public interface Uploader<T> {
+        void upload(T value) throws Exception;
+    }
+
+    /**
+     * A single asset of the pipeline.
+     */
+    public final class Asset<T> {
+        private final String name;
+        private final Loader<T> loader;
+        private final Asset<?>[] dependencies;
+        private Uploader<? super T> uploader;
+        private CompletableFuture<T> loaded;
+        private final CompletableFuture<T> uploaded = new CompletableFuture<>();
+        private long loadStart, loadEnd, uploadStart, uploadEnd;
+
+        private Asset(String name, Loader<T> loader, Asset<?>[] dependencies) {
+            this.name = name;
+            this.loader = loader;
+            this.dependencies = dependencies;
+        }
+
+        /**
+         * Register the step to run on the thread calling {@link AssetPipeline#finish()}
+         * once this asset and the uploads of all its dependencies are done.
+         *
+         * @return this
+         */
+        public Asset<T> upload(Uploader<? super T> uploader) {
+            if (loaded != null)
+                throw new IllegalStateException("pipeline already started");
+            this.uploader = uploader;
+            return this;
+        }
+
+        /**
+         * Return the loaded value, waiting for it if necessary.
+         * <p>
+         * This can be called by the loaders of all assets depending on this one,
+         * and by anyone after {@link AssetPipeline#finish()}.
+         */
+        public T get() {
+            return loaded.join();
+        }
+
+        /**
+         * @return a future completing with the loaded value
+         */
+        public CompletableFuture<T> future() {
+            return loaded;
+        }
+
+        private T load() {
+            loadStart = System.nanoTime();
+            try {
+                return loader.load();
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            } finally {
+                loadEnd = System.nanoTime();
+            }
+        }
+
+        private void scheduleUpload() {
+            CompletableFuture<?>[] before = new CompletableFuture<?>[dependencies.length + 1];
+            before[0] = loaded;
+            for (int i = 0; i < dependencies.length; i++)
+                before[i + 1] = dependencies[i].uploaded;
+            CompletableFuture.allOf(before).whenComplete((v, t) -> {
+                if (t != null)
+                    uploaded.completeExceptionally(t);
+                else if (uploader == null)
+                    uploaded.complete(loaded.join());
+                else
+                    uploads.add(this::runUpload);
+            });
+        }
+
+        private void runUpload() {
+            uploadStart = System.nanoTime();
+            try {
+                T value = loaded.join();
+                uploader.upload(value);
+                uploaded.complete(value);
+            } catch (Throwable t) {
+                uploaded.completeExceptionally(t);
+            } finally {
+                uploadEnd = System.nanoTime();
+            }
+        }
+    }
+
+    private static final Runnable DONE = () -> {};
+
+    private final Executor executor;
+    private final List<Asset<?>> assets = new ArrayList<>();
+    private final BlockingQueue<Runnable> uploads = new LinkedBlockingQueue<>();
+    private long startTime, endTime;
+
+    /**
+     * Create a pipeline loading assets on the common {@link ForkJoinPool}.
+     */
+    public AssetPipeline() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Create a pipeline loading assets on the given executor.
+     */
+    public AssetPipeline(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Declare an asset.
+     *
+     * @param name         the name used in the {@link #report(PrintStream) report}
+     * @param loader       produces the asset's value from the values of its
+     *                     dependencies
+     * @param dependencies the assets which must be loaded before this one
+     * @return the asset
+     */
+    public <T> Asset<T> add(String name, Loader<T> loader, Asset<?>... dependencies) {
+        if (startTime != 0L)
+            throw new IllegalStateException("pipeline already started");
+        Asset<T> asset = new Asset<>(name, loader, dependencies);
+        assets.add(asset);
+        return asset;
+    }
+
+    /**
+     * Start loading all declared assets.
+     */
+    public void start() {
+        if (startTime != 0L)
+            throw new IllegalStateException("pipeline already started");
+        startTime = System.nanoTime();
+        /* Dependencies are always declared before their dependents */
+        for (Asset<?> asset : assets)
+            start(asset);
+        CompletableFuture<?>[] all = new CompletableFuture<?>[assets.size()];
+        for (int i = 0; i < all.length; i++)
+            all[i] = assets.get(i).uploaded;
+        CompletableFuture.allOf(all).whenComplete((v, t) -> uploads.add(DONE));
+    }
+
+    private <T> void start(Asset<T> asset) {
+        CompletableFuture<?>[] deps = new CompletableFuture<?>[asset.dependencies.length];
+        for (int i = 0; i < deps.length; i++)
+            deps[i] = asset.dependencies[i].loaded;
+        asset.loaded = CompletableFuture.allOf(deps).thenApplyAsync(v -> asset.load(), executor);
+        asset.scheduleUpload();
+    }
+
+    /**
+     * Run all upload steps on the calling thread as their assets become
+     * available, and return once everything is loaded and uploaded.
+     *
+     * @throws IOException if a loader failed with an {@link IOException}
+     */
+    public void finish() throws IOException {
+        if (startTime == 0L)
+            start();
+        try {
+            for (Runnable r; (r = uploads.take()) != DONE;)
+                r.run();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } finally {
+            endTime = System.nanoTime();
+        }
+        for (Asset<?> asset : assets) {
+            try {
+                asset.uploaded.join();
+            } catch (CompletionException e) {
+                Throwable cause = e.getCause();
+                while (cause instanceof CompletionException && cause.getCause() != null)
+                    cause = cause.getCause();
+                if (cause instanceof IOException)
+                    throw (IOException) cause;
+                if (cause instanceof RuntimeException)
+                    throw (RuntimeException) cause;
+                if (cause instanceof Error)
+                    throw (Error) cause;
+                throw new IOException("Failed to load asset: " + asset.name, cause);
+            }
+        }
+    }
+
+    /**
+     * Print the load and upload time of every asset, relative to
+     * {@link #start()}, together with the critical path through the
+     * dependency graph and the sum of all load times.
+     */
+    public void report(PrintStream out) {
+        long[] criticalPath = new long[assets.size()];
+        long longest = 0L, sum = 0L;
+        out.println(String.format("%-24s %10s %10s %10s", "asset", "start ms", "load ms", "upload ms"));
+        for (int i = 0; i < assets.size(); i++) {
+            Asset<?> a = assets.get(i);
+            long load = a.loadEnd - a.loadStart, upload = a.uploadEnd - a.uploadStart;
+            long before = 0L;
+            for (Asset<?> d : a.dependencies)
+                before = Math.max(before, criticalPath[assets.indexOf(d)]);
+            criticalPath[i] = before + load + upload;
+            longest = Math.max(longest, criticalPath[i]);
+            sum += load + upload;
+            out.println(String.format("%-24s %10.1f %10.1f %10.1f", a.name, (a.loadStart - startTime) * 1E-6,
+                    load * 1E-6, upload * 1E-6));
+        }
+        out.println(String.format("Critical path: %.1f ms, sum of all assets: %.1f ms, total: %.1f ms", longest * 1E-6,
+                sum * 1E-6, (endTime - startTime) * 1E-6));
+    }
+}
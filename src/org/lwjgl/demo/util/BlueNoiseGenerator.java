@@ -0,0 +1,344 @@
+/*
+ * Copyright LWJGL. All rights reserved.
+ * License terms: https://www.lwjgl.org/license
+ */
+package org.lwjgl.demo.util;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.IntStream;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Generates blue noise dither arrays with the void-and-cluster algorithm by Ulichney, such as the
+ * <code>tutorial4_2/blueNoise.png</code> texture.
+ * <p>
+ * Every pixel of the generated array has a rank in <code>[0, N)</code>. Thresholding the ranks at any value yields a
+ * binary pattern whose ones are distributed as evenly as possible, i.e. whose frequency spectrum contains almost no
+ * low frequencies.
+ * <p>
+ * With a depth greater than one, the array is spatiotemporal blue noise as described in "Scalar Spatiotemporal Blue
+ * Noise Masks" by Wolfe et al.: the energy of a pixel sums a Gaussian over the other pixels of its slice and a Gaussian
+ * over the same pixel in the other slices, so that every slice is 2D blue noise and the values of every pixel over
+ * time are 1D blue noise. All dimensions wrap around.
+ * <p>
+ * The energy field is updated incrementally when a pixel is set or cleared, and the tightest cluster and largest
+ * void are found via a tree over the minimum/maximum energies of short segments of pixels, which makes every step
+ * logarithmic instead of linear in the number of pixels. Multiple channels are generated concurrently.
+ * <p>
+ * Run with <code>&lt;size&gt; [depth] [channels] [png|raw] [output file prefix]</code>.
+ *
+ * @author Kai Burjack
+ */
+public class BlueNoiseGenerator {
+    /**
+     * Number of consecutive pixels whose minimum/maximum energy is a leaf of the search tree.
+     */
+    private static final int SEGMENT = 16;
+
+    private final int width, height, depth, n;
+    private final int rs, rt;
+    private final double[] spatialKernel, temporalKernel;
+    private final Random rnd;
+    private final double[] energy;
+    private final boolean[] ones;
+    private final int leaves;
+    /**
+     * Tree nodes storing the pixel with the minimum energy among zeros and the one with the maximum energy among
+     * ones in their subtree, or -1.
+     */
+    private final int[] minZero, maxOne;
+
+    /**
+     * Create a generator for a dither array of the given size.
+     *
+     * @param width          the width of the array
+     * @param height         the height of the array
+     * @param depth          the number of slices
+     * @param sigma          the standard deviation of the spatial Gaussian, typically 1.9
+     * @param temporalSigma  the standard deviation of the temporal Gaussian, typically 1.9
+     * @param seed           the random seed for the initial pattern and for breaking ties
+     */
+    public BlueNoiseGenerator(int width, int height, int depth, double sigma, double temporalSigma, long seed) {
+        this.width = width;
+        this.height = height;
+        this.depth = depth;
+        this.n = Math.multiplyExact(Math.multiplyExact(width, height), depth);
+        this.rs = Math.min((int) Math.ceil(3.0 * sigma), (Math.min(width, height) - 1) / 2);
+        this.rt = Math.min((int) Math.ceil(3.0 * temporalSigma), (depth - 1) / 2);
+        this.spatialKernel = new double[(2 * rs + 1) * (2 * rs + 1)];
+        for (int dy = -rs; dy <= rs; dy++)
+            for (int dx = -rs; dx <= rs; dx++)
+                spatialKernel[(dy + rs) * (2 * rs + 1) + dx + rs] = Math.exp(-(dx * dx + dy * dy) / (2.0 * sigma * sigma));
+        this.temporalKernel = new double[2 * rt + 1];
+        for (int dt = -rt; dt <= rt; dt++)
+            temporalKernel[dt + rt] = dt == 0 ? 0.0 : Math.exp(-(dt * dt) / (2.0 * temporalSigma * temporalSigma));
+        this.rnd = new Random(seed);
+        this.energy = new double[n];
+        this.ones = new boolean[n];
+        this.leaves = (n + SEGMENT - 1) / SEGMENT;
+        int p = Integer.highestOneBit(Math.max(1, leaves - 1)) << 1;
+        this.minZero = new int[2 * p];
+        this.maxOne = new int[2 * p];
+    }
+
+    private int firstLeafNode() {
+        return minZero.length >>> 1;
+    }
+
+    /**
+     * Compute the energy of every pixel from the current binary pattern, and rebuild the search tree.
+     */
+    private void computeEnergy(double[] jitter) {
+        int wh = width * height;
+        IntStream.range(0, height * depth).parallel().forEach(row -> {
+            int t = row / height, y = row % height;
+            for (int x = 0; x < width; x++) {
+                double e = jitter[(t * height + y) * width + x];
+                for (int dy = -rs; dy <= rs; dy++) {
+                    int yy = Math.floorMod(y + dy, height);
+                    for (int dx = -rs; dx <= rs; dx++)
+                        if (ones[(t * height + yy) * width + Math.floorMod(x + dx, width)])
+                            e += spatialKernel[(dy + rs) * (2 * rs + 1) + dx + rs];
+                }
+                for (int dt = -rt; dt <= rt; dt++)
+                    if (ones[Math.floorMod(t + dt, depth) * wh + y * width + x])
+                        e += temporalKernel[dt + rt];
+                energy[(t * height + y) * width + x] = e;
+            }
+        });
+        int first = firstLeafNode();
+        IntStream.range(0, first).parallel().forEach(this::scanLeaf);
+        for (int node = first - 1; node >= 1; node--)
+            combine(node);
+    }
+
+    private void scanLeaf(int leaf) {
+        int mn = -1, mx = -1;
+        for (int i = leaf * SEGMENT, end = Math.min(n, i + SEGMENT); i < end; i++) {
+            if (ones[i]) {
+                if (mx < 0 || energy[i] > energy[mx])
+                    mx = i;
+            } else if (mn < 0 || energy[i] < energy[mn])
+                mn = i;
+        }
+        int node = firstLeafNode() + leaf;
+        minZero[node] = mn;
+        maxOne[node] = mx;
+    }
+
+    private void combine(int node) {
+        int l = minZero[2 * node], r = minZero[2 * node + 1];
+        minZero[node] = l < 0 || r >= 0 && energy[r] < energy[l] ? r : l;
+        l = maxOne[2 * node];
+        r = maxOne[2 * node + 1];
+        maxOne[node] = l < 0 || r >= 0 && energy[r] > energy[l] ? r : l;
+    }
+
+    private void updateLeaf(int leaf) {
+        scanLeaf(leaf);
+        for (int node = (firstLeafNode() + leaf) >>> 1; node >= 1; node >>>= 1)
+            combine(node);
+    }
+
+    /**
+     * Set or clear the given pixel and update the energy of all pixels within the kernel around it.
+     */
+    private void set(int i, boolean one) {
+        ones[i] = one;
+        double sign = one ? 1.0 : -1.0;
+        int wh = width * height, t = i / wh, y = i % wh / width, x = i % width;
+        for (int dy = -rs; dy <= rs; dy++) {
+            int row = (t * height + Math.floorMod(y + dy, height)) * width, lastLeaf = -1;
+            for (int dx = -rs; dx <= rs; dx++) {
+                int j = row + Math.floorMod(x + dx, width);
+                energy[j] += sign * spatialKernel[(dy + rs) * (2 * rs + 1) + dx + rs];
+                if (j / SEGMENT != lastLeaf && lastLeaf >= 0)
+                    updateLeaf(lastLeaf);
+                lastLeaf = j / SEGMENT;
+            }
+            updateLeaf(lastLeaf);
+        }
+        for (int dt = -rt; dt <= rt; dt++) {
+            if (dt == 0)
+                continue;
+            int j = Math.floorMod(t + dt, depth) * wh + y * width + x;
+            energy[j] += sign * temporalKernel[dt + rt];
+            updateLeaf(j / SEGMENT);
+        }
+    }
+
+    /**
+     * Generate the dither array.
+     *
+     * @return the rank of every pixel, indexed by <code>(t * height + y) * width + x</code>
+     */
+    public int[] generate() {
+        int[] rank = new int[n];
+        /* tiny random energies break ties between pixels which are equally far from all ones */
+        double[] jitter = new double[n];
+        for (int i = 0; i < n; i++)
+            jitter[i] = rnd.nextDouble() * 1E-9;
+
+        /* Initial binary pattern: random ones, relaxed by moving the tightest cluster into the largest void */
+        int m = Math.max(1, n / 10);
+        for (int placed = 0; placed < m;) {
+            int i = rnd.nextInt(n);
+            if (!ones[i]) {
+                ones[i] = true;
+                placed++;
+            }
+        }
+        computeEnergy(jitter);
+        for (int iteration = 0; iteration < 4 * m; iteration++) {
+            int cluster = maxOne[1];
+            set(cluster, false);
+            int vd = minZero[1];
+            set(vd, true);
+            if (vd == cluster)
+                break;
+        }
+        boolean[] initial = ones.clone();
+
+        /* Phase 1: rank the ones of the initial pattern by repeatedly removing the tightest cluster */
+        for (int r = m - 1; r >= 0; r--) {
+            int cluster = maxOne[1];
+            set(cluster, false);
+            rank[cluster] = r;
+        }
+
+        /*
+         * Phase 2 and 3: rank all other pixels by repeatedly filling the largest void. Because the kernel sums to the
+         * same value everywhere, the tightest cluster of zeros is the largest void of ones, so that a single loop
+         * serves both phases.
+         */
+        System.arraycopy(initial, 0, ones, 0, n);
+        computeEnergy(jitter);
+        for (int r = m; r < n; r++) {
+            int vd = minZero[1];
+            set(vd, true);
+            rank[vd] = r;
+        }
+        return rank;
+    }
+
+    /**
+     * Convert the ranks of a whole spatiotemporal array into ranks within each slice, such that every slice has
+     * exactly one pixel of each rank in <code>[0, width * height)</code>, keeping the order of the pixels.
+     *
+     * @param rank       the ranks of all pixels, as returned by {@link #generate()}
+     * @param sliceSize  the number of pixels per slice
+     * @return the ranks within each slice
+     */
+    public static int[] sliceRanks(int[] rank, int sliceSize) {
+        int[] pixel = new int[rank.length];
+        for (int i = 0; i < rank.length; i++)
+            pixel[rank[i]] = i;
+        int[] next = new int[rank.length / sliceSize], result = new int[rank.length];
+        for (int i : pixel)
+            result[i] = next[i / sliceSize]++;
+        return result;
+    }
+
+    /**
+     * Print, for a few densities, how much power the binary patterns of the given ranks have at low frequencies relative
+     * to white noise, averaged over all slices. Blue noise has a ratio close to zero, white noise a ratio of one.
+     *
+     * @param rank the ranks within each slice, as returned by {@link #sliceRanks(int[], int)}
+     */
+    public static void report(int[] rank, int width, int height, int depth, PrintStream out) {
+        if (Integer.bitCount(width) != 1 || Integer.bitCount(height) != 1) {
+            out.println("Spectral report requires power-of-two sizes");
+            return;
+        }
+        FFT fft = new FFT(width, height);
+        int wh = width * height;
+        for (double density : new double[] { 1.0 / 16.0, 0.25, 0.5 }) {
+            int threshold = (int) (density * wh);
+            double[] spectrum = new double[wh];
+            double[] slice = new double[wh];
+            for (int t = 0; t < depth; t++) {
+                for (int i = 0; i < wh; i++)
+                    slice[i] = rank[t * wh + i] < threshold ? 1.0 : 0.0;
+                fft.accumulatePowerSpectrum(slice, 1.0 / depth, spectrum);
+            }
+            double[] radial = fft.radialAverage(spectrum);
+            /* white noise with this density has a flat power spectrum of density * (1 - density) */
+            double white = density * (1.0 - density), low = 0.0;
+            int lowBins = Math.max(1, radial.length / 4);
+            for (int b = 1; b <= lowBins; b++)
+                low += radial[Math.min(b, radial.length - 1)];
+            low /= lowBins * white;
+            StringBuilder profile = new StringBuilder();
+            for (int k = 1; k <= 8; k++)
+                profile.append(String.format(" %.2f", radial[Math.max(0, Math.min(radial.length - 1, k * radial.length / 8 - 1))] / white));
+            out.println(String.format("density %5.3f: low-frequency power %.3f of white noise, radial profile%s", density,
+                    low, profile));
+        }
+    }
+
+    /**
+     * Write one PNG per slice, with one byte per channel and pixel.
+     */
+    private static void writePng(int[][] ranks, int width, int height, int depth, String prefix) throws IOException {
+        int wh = width * height, channels = ranks.length;
+        for (int t = 0; t < depth; t++) {
+            BufferedImage image = new BufferedImage(width, height,
+                    channels == 1 ? BufferedImage.TYPE_BYTE_GRAY : BufferedImage.TYPE_INT_ARGB);
+            WritableRaster raster = image.getRaster();
+            for (int y = 0; y < height; y++)
+                for (int x = 0; x < width; x++)
+                    for (int c = 0; c < raster.getNumBands(); c++) {
+                        int v = c < channels ? (int) ((long) ranks[c][t * wh + y * width + x] * 256 / wh) : 255;
+                        raster.setSample(x, y, c, v);
+                    }
+            String name = depth == 1 ? prefix + ".png" : String.format("%s_%03d.png", prefix, t);
+            ImageIO.write(image, "PNG", new File(name));
+        }
+    }
+
+    /**
+     * Write one byte per channel and pixel, interleaving the channels, slice by slice and row by row.
+     */
+    private static void writeRaw(int[][] ranks, int width, int height, int depth, String prefix) throws IOException {
+        int wh = width * height, n = wh * depth, channels = ranks.length;
+        ByteBuffer bb = ByteBuffer.allocate(n * channels);
+        for (int i = 0; i < n; i++)
+            for (int c = 0; c < channels; c++)
+                bb.put((byte) ((long) ranks[c][i] * 256 / wh));
+        bb.flip();
+        try (FileChannel fc = FileChannel.open(Paths.get(prefix + ".raw"), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (bb.hasRemaining())
+                fc.write(bb);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int depth = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+        int channels = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+        String format = args.length > 3 ? args[3] : "png";
+        String prefix = args.length > 4 ? args[4] : "blueNoise";
+        if (channels < 1 || channels > 4)
+            throw new IllegalArgumentException("channels must be between 1 and 4");
+        long time1 = System.nanoTime();
+        int[][] ranks = IntStream.range(0, channels).parallel()
+                .mapToObj(c -> sliceRanks(new BlueNoiseGenerator(size, size, depth, 1.9, 1.9, 1234L + c).generate(), size * size))
+                .toArray(int[][]::new);
+        long time2 = System.nanoTime();
+        System.out.println("Generating " + size + "x" + size + "x" + depth + " with " + channels + " channel(s) took "
+                + (time2 - time1) / 1E6 + " ms");
+        if ("raw".equals(format))
+            writeRaw(ranks, size, size, depth, prefix);
+        else
+            writePng(ranks, size, size, depth, prefix);
+        report(ranks[0], size, size, depth, System.out);
+    }
+}
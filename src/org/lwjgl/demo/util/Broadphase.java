@@ -0,0 +1,312 @@
+/*
+ * Copyright LWJGL. All rights reserved.
+ * License terms: https://www.lwjgl.org/license
+ */
+package org.lwjgl.demo.util;
+
+import static java.lang.Float.isNaN;
+import static java.lang.Math.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import org.joml.Vector3f;
+import org.lwjgl.demo.util.KDTreei.Voxel;
+
+/**
+ * Collision detection for many moving bodies against a static voxel world and
+ * against each other.
+ * <p>
+ * Bodies are axis-aligned boxes, optionally treated as spheres of a given
+ * radius around the box center, stored in primitive arrays. Each
+ * {@link #step(KDTreei)} rebuilds a {@link SpatialHashGrid} over the swept
+ * boxes of all bodies and then runs the narrowphase in parallel over fixed
+ * ranges of bodies:
+ * <ul>
+ * <li>every body is resolved against the world via
+ * {@link Collider#handleCollisionAabbAabbs(AABBf, Vector3f, KDTreei, Vector3f)},
+ * yielding its collision-free movement
+ * <li>every pair of bodies whose swept boxes overlap is tested with
+ * {@link Collider#intersectMovingAabbAabb(AABBf, float, float, float, AABBf, Vector3f) swept boxes},
+ * {@link Collider#intersectSweptSphereAabb(Vector3f, float, Vector3f, Vector3f, Vector3f, Collider.CollisionResult) swept spheres against boxes}
+ * or {@link Collider#intersectSweptSphereSphere(Vector3f, float, Vector3f, Vector3f, float) swept spheres},
+ * producing a {@link Contact}
+ * </ul>
+ * Contacts are taken from per-thread pools and reported in an order that only
+ * depends on the bodies, not on the number of threads or their scheduling.
+ * Apart from growing its arrays and pools, a step does not allocate.
+ * <p>
+ * Instances of this class are <i>not</i> thread-safe.
+ *
+ * @author Kai Burjack
+ */
+public class Broadphase {
+    private static final int BODIES_PER_TASK = 64;
+
+    /**
+     * A contact between two bodies <code>a &lt; b</code>.
+     */
+    public static class Contact {
+        public int a, b;
+        /**
+         * The time of impact within the step in <code>[0..1]</code>.
+         */
+        public float t;
+        /**
+         * The contact normal pointing from <code>b</code> towards <code>a</code>.
+         */
+        public final Vector3f n = new Vector3f();
+
+        @Override
+        public String toString() {
+            return "[" + a + ", " + b + "] (" + n + ") @ " + t;
+        }
+    }
+
+    /* Per-thread scratch memory and contact pool */
+    private static class Worker {
+        final Collider collider = new Collider();
+        final Collider.CollisionResult result = new Collider.CollisionResult();
+        final AABBf box = new AABBf(), other = new AABBf();
+        final Vector3f v = new Vector3f(), delta = new Vector3f();
+        final Vector3f s0 = new Vector3f(), s1 = new Vector3f();
+        final Vector3f min = new Vector3f(), max = new Vector3f();
+        final ArrayList<Contact> pool = new ArrayList<>();
+        int poolIndex;
+        int step = -1;
+
+        Contact newContact(int step) {
+            if (this.step != step) {
+                this.step = step;
+                poolIndex = 0;
+            }
+            if (poolIndex == pool.size())
+                pool.add(new Contact());
+            return pool.get(poolIndex++);
+        }
+    }
+
+    private final SpatialHashGrid grid;
+    private final ThreadLocal<Worker> workers = ThreadLocal.withInitial(Worker::new);
+    private final ArrayList<Contact> contacts = new ArrayList<>();
+    private final ArrayList<ArrayList<Contact>> taskContacts = new ArrayList<>();
+    private int stepIndex;
+    private int count;
+
+    /* Body state */
+    private float[] minX = new float[0], minY = new float[0], minZ = new float[0];
+    private float[] maxX = new float[0], maxY = new float[0], maxZ = new float[0];
+    private float[] vx = new float[0], vy = new float[0], vz = new float[0];
+    private float[] radius = new float[0];
+
+    /* Swept boxes and resolved movement */
+    private float[] sMinX = new float[0], sMinY = new float[0], sMinZ = new float[0];
+    private float[] sMaxX = new float[0], sMaxY = new float[0], sMaxZ = new float[0];
+    private float[] dx = new float[0], dy = new float[0], dz = new float[0];
+
+    /**
+     * @param cellSize   the edge length of a grid cell; should be about the size
+     *                   of a typical body
+     * @param bucketBits the base-2 logarithm of the number of hash buckets
+     */
+    public Broadphase(float cellSize, int bucketBits) {
+        this.grid = new SpatialHashGrid(cellSize, bucketBits);
+    }
+
+    /**
+     * @return the number of bodies
+     */
+    public int count() {
+        return count;
+    }
+
+    /**
+     * Add a new body with the given box and zero velocity.
+     *
+     * @param radius if positive, the body is treated as a sphere with this
+     *               radius around the center of the box when colliding with
+     *               other bodies
+     * @return the index of the new body
+     */
+    public int add(float minX, float minY, float minZ, float maxX, float maxY, float maxZ, float radius) {
+        if (count == this.minX.length)
+            grow(max(16, count * 3 / 2));
+        int i = count++;
+        set(i, minX, minY, minZ, maxX, maxY, maxZ);
+        this.radius[i] = radius;
+        velocity(i, 0.0f, 0.0f, 0.0f);
+        return i;
+    }
+
+    private void grow(int n) {
+        minX = Arrays.copyOf(minX, n); minY = Arrays.copyOf(minY, n); minZ = Arrays.copyOf(minZ, n);
+        maxX = Arrays.copyOf(maxX, n); maxY = Arrays.copyOf(maxY, n); maxZ = Arrays.copyOf(maxZ, n);
+        vx = Arrays.copyOf(vx, n); vy = Arrays.copyOf(vy, n); vz = Arrays.copyOf(vz, n);
+        radius = Arrays.copyOf(radius, n);
+        sMinX = Arrays.copyOf(sMinX, n); sMinY = Arrays.copyOf(sMinY, n); sMinZ = Arrays.copyOf(sMinZ, n);
+        sMaxX = Arrays.copyOf(sMaxX, n); sMaxY = Arrays.copyOf(sMaxY, n); sMaxZ = Arrays.copyOf(sMaxZ, n);
+        dx = Arrays.copyOf(dx, n); dy = Arrays.copyOf(dy, n); dz = Arrays.copyOf(dz, n);
+    }
+
+    /**
+     * Set the box of the given body.
+     */
+    public void set(int body, float minX, float minY, float minZ, float maxX, float maxY, float maxZ) {
+        this.minX[body] = minX; this.minY[body] = minY; this.minZ[body] = minZ;
+        this.maxX[body] = maxX; this.maxY[body] = maxY; this.maxZ[body] = maxZ;
+    }
+
+    /**
+     * Set the movement of the given body during the next step.
+     */
+    public void velocity(int body, float vx, float vy, float vz) {
+        this.vx[body] = vx;
+        this.vy[body] = vy;
+        this.vz[body] = vz;
+    }
+
+    /**
+     * Store the collision-free movement of the given body against the world,
+     * as computed by the last {@link #step(KDTreei)}, in <code>dest</code>.
+     */
+    public Vector3f delta(int body, Vector3f dest) {
+        return dest.set(dx[body], dy[body], dz[body]);
+    }
+
+    /**
+     * Move every body by its collision-free movement computed in the last
+     * {@link #step(KDTreei)}.
+     */
+    public void applyDeltas() {
+        for (int i = 0; i < count; i++) {
+            minX[i] += dx[i]; minY[i] += dy[i]; minZ[i] += dz[i];
+            maxX[i] += dx[i]; maxY[i] += dy[i]; maxZ[i] += dz[i];
+        }
+    }
+
+    /**
+     * @return the body/body contacts of the last {@link #step(KDTreei)}, ordered
+     *         by <code>a</code>. The contacts are only valid until the next step.
+     */
+    public List<Contact> contacts() {
+        return contacts;
+    }
+
+    /**
+     * Detect all collisions of all bodies moving with their current velocity
+     * against the given world and against each other.
+     *
+     * @param world the static voxel world, or <code>null</code> to only detect
+     *              body/body collisions
+     */
+    public void step(KDTreei<Voxel> world) {
+        int n = count, step = ++stepIndex;
+        for (int i = 0; i < n; i++) {
+            sMinX[i] = minX[i] + min(0.0f, vx[i]); sMaxX[i] = maxX[i] + max(0.0f, vx[i]);
+            sMinY[i] = minY[i] + min(0.0f, vy[i]); sMaxY[i] = maxY[i] + max(0.0f, vy[i]);
+            sMinZ[i] = minZ[i] + min(0.0f, vz[i]); sMaxZ[i] = maxZ[i] + max(0.0f, vz[i]);
+        }
+        grid.build(n, sMinX, sMinY, sMinZ, sMaxX, sMaxY, sMaxZ);
+        int tasks = (n + BODIES_PER_TASK - 1) / BODIES_PER_TASK;
+        while (taskContacts.size() < tasks)
+            taskContacts.add(new ArrayList<>());
+        IntStream.range(0, tasks).parallel().forEach(task -> {
+            Worker w = workers.get();
+            ArrayList<Contact> out = taskContacts.get(task);
+            out.clear();
+            for (int i = task * BODIES_PER_TASK, e = min(n, i + BODIES_PER_TASK); i < e; i++) {
+                collideWorld(w, i, world);
+                collideBodies(w, i, step, out);
+            }
+        });
+        contacts.clear();
+        for (int i = 0; i < tasks; i++)
+            contacts.addAll(taskContacts.get(i));
+    }
+
+    private void collideWorld(Worker w, int i, KDTreei<Voxel> world) {
+        if (world == null) {
+            dx[i] = vx[i]; dy[i] = vy[i]; dz[i] = vz[i];
+            return;
+        }
+        box(i, w.box);
+        w.collider.handleCollisionAabbAabbs(w.box, w.v.set(vx[i], vy[i], vz[i]), world, w.delta);
+        dx[i] = w.delta.x; dy[i] = w.delta.y; dz[i] = w.delta.z;
+    }
+
+    private void collideBodies(Worker w, int i, int step, ArrayList<Contact> out) {
+        SpatialHashGrid g = grid;
+        int[] entries = g.entries();
+        int x0 = g.cell(sMinX[i]), y0 = g.cell(sMinY[i]), z0 = g.cell(sMinZ[i]);
+        int x1 = g.cell(sMaxX[i]), y1 = g.cell(sMaxY[i]), z1 = g.cell(sMaxZ[i]);
+        for (int z = z0; z <= z1; z++)
+            for (int y = y0; y <= y1; y++)
+                for (int x = x0; x <= x1; x++) {
+                    int b = g.bucket(x, y, z);
+                    for (int k0 = g.bucketStart(b), k = k0, e = g.bucketEnd(b); k < e; k++) {
+                        int j = entries[k];
+                        if (j <= i || k > k0 && entries[k - 1] == j || !sweptOverlap(i, j))
+                            continue;
+                        // report each pair only in the cell containing the minimum corner of the overlap
+                        if (g.cell(max(sMinX[i], sMinX[j])) != x || g.cell(max(sMinY[i], sMinY[j])) != y
+                                || g.cell(max(sMinZ[i], sMinZ[j])) != z)
+                            continue;
+                        narrowphase(w, i, j, step, out);
+                    }
+                }
+    }
+
+    private boolean sweptOverlap(int i, int j) {
+        return sMaxX[i] >= sMinX[j] && sMaxY[i] >= sMinY[j] && sMaxZ[i] >= sMinZ[j] && sMinX[i] <= sMaxX[j]
+                && sMinY[i] <= sMaxY[j] && sMinZ[i] <= sMaxZ[j];
+    }
+
+    private void narrowphase(Worker w, int i, int j, int step, ArrayList<Contact> out) {
+        // move i relative to j
+        w.v.set(vx[i] - vx[j], vy[i] - vy[j], vz[i] - vz[j]);
+        float ri = radius[i], rj = radius[j], t;
+        Vector3f n = w.result.normal;
+        if (ri > 0.0f && rj > 0.0f) {
+            center(i, w.s0);
+            center(j, w.s1);
+            t = Collider.intersectSweptSphereSphere(w.s0, ri, w.v, w.s1, rj);
+            if (!isNaN(t))
+                n.set(w.v).mul(t).add(w.s0).sub(w.s1).normalize();
+        } else if (ri > 0.0f || rj > 0.0f) {
+            // the sphere moves relative to the box
+            int s = ri > 0.0f ? i : j, b = ri > 0.0f ? j : i;
+            if (s == j)
+                w.v.negate();
+            center(s, w.s0);
+            w.min.set(minX[b], minY[b], minZ[b]);
+            w.max.set(maxX[b], maxY[b], maxZ[b]);
+            t = w.collider.intersectSweptSphereAabb(w.s0, radius[s], w.v, w.min, w.max, w.result) ? w.result.t
+                    : Float.NaN;
+            if (!isNaN(t) && s == j)
+                n.negate();
+        } else {
+            box(i, w.box);
+            box(j, w.other);
+            t = Collider.intersectMovingAabbAabb(w.box, w.v.x, w.v.y, w.v.z, w.other, n);
+        }
+        if (isNaN(t))
+            return;
+        Contact c = w.newContact(step);
+        c.a = i;
+        c.b = j;
+        c.t = t;
+        c.n.set(n);
+        out.add(c);
+    }
+
+    private void box(int i, AABBf box) {
+        box.minX = minX[i]; box.minY = minY[i]; box.minZ = minZ[i];
+        box.maxX = maxX[i]; box.maxY = maxY[i]; box.maxZ = maxZ[i];
+    }
+
+    private void center(int i, Vector3f dest) {
+        dest.set((minX[i] + maxX[i]) * 0.5f, (minY[i] + maxY[i]) * 0.5f, (minZ[i] + maxZ[i]) * 0.5f);
+    }
+}
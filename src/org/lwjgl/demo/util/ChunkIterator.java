@@ -4,48 +4,39 @@
  */
 package org.lwjgl.demo.util;
 
+import static java.lang.Float.floatToRawIntBits;
+import static java.lang.Float.intBitsToFloat;
 import static java.lang.Math.*;
 import static org.lwjgl.demo.util.ChunkIteratorVisitor.*;
 
-import java.util.BitSet;
-import java.util.PriorityQueue;
+import java.util.Arrays;
 
 import org.joml.*;
 
 /**
  * Iterates over chunk indices in front-to-back ordering.
+ * <p>
+ * The queue of chunks to visit is a bucket queue over radial shells of unit
+ * width around the origin. Each bucket holds chunks as primitive
+ * <code>long</code> keys packing the squared distance and the chunk coordinates,
+ * and the bucket currently being visited is maintained as a binary min-heap, so
+ * chunks are visited in exactly increasing distance. Together with a
+ * generation-counted visited array, an iteration does not allocate any memory.
  * 
  * @author Kai Burjack
  */
 public class ChunkIterator {
     private final int w, h, d;
     private final FrustumIntersection fi = new FrustumIntersection();
-    private final BitSet visited;
-    private final PriorityQueue<Chunk> queue = new PriorityQueue<>(1024);
+    private final byte[] visited;
+    private int generation;
+    private final long[][] buckets;
+    private final int[] bucketSizes;
+    private int current;
     private final Matrix4f vp = new Matrix4f();
+    private final Vector3f forward = new Vector3f();
     private float ox, oy, oz;
-
-    private class Chunk implements Comparable<Chunk> {
-        float d;
-        byte x, y, z;
-
-        Chunk(byte x, byte y, byte z) {
-            this.d = distance2(x, y, z);
-            this.x = x;
-            this.y = y;
-            this.z = z;
-        }
-
-        @Override
-        public int compareTo(Chunk o) {
-            return Float.compare(d, o.d);
-        }
-
-        @Override
-        public String toString() {
-            return "Chunk [x=" + x + ", y=" + y + ", z=" + z + "]";
-        }
-    }
+    private float minD;
 
     public ChunkIterator(int w, int h, int d) {
         if (w < 1 || w > 256)
@@ -57,7 +48,10 @@ public class ChunkIterator {
         this.w = w;
         this.h = h;
         this.d = d;
-        this.visited = new BitSet(w * h * d);
+        this.visited = new byte[w * h * d];
+        int numBuckets = (int) ceil(sqrt(w * w + h * h + d * d)) + 2;
+        this.buckets = new long[numBuckets][16];
+        this.bucketSizes = new int[numBuckets];
     }
 
     private float distance2(int x1, int y1, int z1) {
@@ -65,12 +59,19 @@ public class ChunkIterator {
         return dx * dx + dy * dy + dz * dz;
     }
 
+    private void nextGeneration() {
+        if (++generation > 0xFF) {
+            Arrays.fill(visited, (byte) 0);
+            generation = 1;
+        }
+    }
+
     private void remember(int x, int y, int z) {
-        visited.set(x + w * (y + h * z));
+        visited[x + w * (y + h * z)] = (byte) generation;
     }
 
     private boolean has(int x, int y, int z) {
-        return visited.get(x + w * (y + h * z));
+        return visited[x + w * (y + h * z)] == (byte) generation;
     }
 
     public boolean visible(int x, int y, int z) {
@@ -88,38 +89,102 @@ public class ChunkIterator {
         ox = min(max(rp.x, 0.0f), w) - 0.5f;
         oy = min(max(rp.y, 0.0f), h) - 0.5f;
         oz = min(max(rp.z, 0.0f), d) - 0.5f;
-        Vector3f forward = view.positiveZ(new Vector3f()).negate();
+        Vector3f forward = view.positiveZ(this.forward).negate();
         fi.set(vp.set(proj).rotate(view).translate(-rp.x, -rp.y, -rp.z));
+        nextGeneration();
+        minD = 0.0f;
+        current = 0;
         add((int) ox, (int) oy, (int) oz);
-        double minD = Double.NaN;
-        loop: while (!queue.isEmpty()) {
-            Chunk c = queue.remove();
-            if (c.d < minD)
-                continue;
-            minD = c.d;
-            int r = consumer.visit(c.x, c.y, c.z, c.d);
+        loop: while (true) {
+            long c = poll();
+            if (c == -1L)
+                break;
+            float cd = intBitsToFloat((int) (c >>> 32));
+            int cx = (int) c & 0xFF, cy = (int) c >>> 8 & 0xFF, cz = (int) c >>> 16 & 0xFF;
+            minD = cd;
+            int r = consumer.visit(cx, cy, cz, cd);
             switch (r) {
             case ABORT: break loop;
             case CANCEL: continue;
             }
-            if (c.x < w - 1 && forward.x >= 0 && !has(c.x + 1, c.y, c.z) && visible(c.x + 1, c.y, c.z))
-                add(c.x + 1, c.y, c.z);
-            if (c.x > 0 && forward.x <= 0 && !has(c.x - 1, c.y, c.z) && visible(c.x - 1, c.y, c.z))
-                add(c.x - 1, c.y, c.z);
-            if (c.y < h - 1 && forward.y >= 0 && !has(c.x, c.y + 1, c.z) && visible(c.x, c.y + 1, c.z))
-                add(c.x, c.y + 1, c.z);
-            if (c.y > 0 && forward.y <= 0 && !has(c.x, c.y - 1, c.z) && visible(c.x, c.y - 1, c.z))
-                add(c.x, c.y - 1, c.z);
-            if (c.z < d - 1 && forward.z >= 0 && !has(c.x, c.y, c.z + 1) && visible(c.x, c.y, c.z + 1))
-                add(c.x, c.y, c.z + 1);
-            if (c.z > 0 && forward.z <= 0 && !has(c.x, c.y, c.z - 1) && visible(c.x, c.y, c.z - 1))
-                add(c.x, c.y, c.z - 1);
+            if (cx < w - 1 && forward.x >= 0 && !has(cx + 1, cy, cz) && visible(cx + 1, cy, cz))
+                add(cx + 1, cy, cz);
+            if (cx > 0 && forward.x <= 0 && !has(cx - 1, cy, cz) && visible(cx - 1, cy, cz))
+                add(cx - 1, cy, cz);
+            if (cy < h - 1 && forward.y >= 0 && !has(cx, cy + 1, cz) && visible(cx, cy + 1, cz))
+                add(cx, cy + 1, cz);
+            if (cy > 0 && forward.y <= 0 && !has(cx, cy - 1, cz) && visible(cx, cy - 1, cz))
+                add(cx, cy - 1, cz);
+            if (cz < d - 1 && forward.z >= 0 && !has(cx, cy, cz + 1) && visible(cx, cy, cz + 1))
+                add(cx, cy, cz + 1);
+            if (cz > 0 && forward.z <= 0 && !has(cx, cy, cz - 1) && visible(cx, cy, cz - 1))
+                add(cx, cy, cz - 1);
         }
-        queue.clear();
+        Arrays.fill(bucketSizes, 0);
     }
 
     private void add(int x, int y, int z) {
         remember(x, y, z);
-        queue.add(new Chunk((byte) x, (byte) y, (byte) z));
+        float dist2 = distance2(x, y, z);
+        // chunks closer than the last visited one are never visited
+        if (dist2 < minD)
+            return;
+        long key = (long) floatToRawIntBits(dist2) << 32 | x | y << 8 | z << 16;
+        int b = max(current, (int) sqrt(dist2));
+        int n = bucketSizes[b];
+        long[] bucket = buckets[b];
+        if (n == bucket.length)
+            buckets[b] = bucket = Arrays.copyOf(bucket, n << 1);
+        bucket[n] = key;
+        bucketSizes[b] = n + 1;
+        if (b == current)
+            siftUp(bucket, n);
+    }
+
+    /**
+     * @return the key of the nearest chunk in the queue, or <code>-1</code> if
+     *         the queue is empty
+     */
+    private long poll() {
+        while (bucketSizes[current] == 0) {
+            if (++current == buckets.length)
+                return -1L;
+            long[] bucket = buckets[current];
+            for (int i = (bucketSizes[current] >>> 1) - 1; i >= 0; i--)
+                siftDown(bucket, i, bucketSizes[current]);
+        }
+        long[] bucket = buckets[current];
+        int n = --bucketSizes[current];
+        long key = bucket[0];
+        bucket[0] = bucket[n];
+        siftDown(bucket, 0, n);
+        return key;
+    }
+
+    private static void siftUp(long[] heap, int i) {
+        long k = heap[i];
+        while (i > 0) {
+            int p = (i - 1) >>> 1;
+            if (heap[p] <= k)
+                break;
+            heap[i] = heap[p];
+            i = p;
+        }
+        heap[i] = k;
+    }
+
+    private static void siftDown(long[] heap, int i, int n) {
+        long k = heap[i];
+        int half = n >>> 1;
+        while (i < half) {
+            int c = (i << 1) + 1;
+            if (c + 1 < n && heap[c + 1] < heap[c])
+                c++;
+            if (k <= heap[c])
+                break;
+            heap[i] = heap[c];
+            i = c;
+        }
+        heap[i] = k;
     }
 }
@@ -34,7 +34,11 @@ public class Collider {
 
     /* Scratch/temporary memory */
     private final ArrayList<Voxel> candidates = new ArrayList<>(32);
+    private final KDTreei.Visitor<Voxel> addCandidate = candidates::add;
     private final ArrayList<Contact> contacts = new ArrayList<>(32);
+    private final ArrayList<Contact> contactPool = new ArrayList<>(32);
+    private int contactPoolIndex;
+    private int[] stack = new int[32];
     private final Vector3f _tmp0 = new Vector3f();
     private final Vector3f _tmp1 = new Vector3f();
 
@@ -56,9 +60,11 @@ public class Collider {
 
     public void handleCollisionAabbAabbs(AABBf box, Vector3f v, KDTreei<Voxel> tree, Vector3f delta) {
         float minX = box.minX + min(0.0f, v.x), minY = box.minY + min(0.0f, v.y), minZ = box.minZ + min(0.0f, v.z);
-        float maxX = box.maxX + max(0.0f, v.x), maxY = box.maxY + max(0.0f, v.x), maxZ = box.maxZ + max(0.0f, v.z);
+        float maxX = box.maxX + max(0.0f, v.x), maxY = box.maxY + max(0.0f, v.y), maxZ = box.maxZ + max(0.0f, v.z);
         candidates.clear();
-        tree.intersects(minX, minY, minZ, maxX, maxY, maxZ, candidates);
+        if (stack.length < tree.stackSize())
+            stack = new int[tree.stackSize()];
+        tree.intersects(minX, minY, minZ, maxX, maxY, maxZ, addCandidate, stack);
         if (candidates.isEmpty()) {
             delta.set(v);
             return;
@@ -82,8 +88,17 @@ public class Collider {
         }
     }
 
+    private Contact newContact() {
+        if (contactPoolIndex == contactPool.size())
+            contactPool.add(new Contact());
+        Contact c = contactPool.get(contactPoolIndex++);
+        c.n.zero();
+        return c;
+    }
+
     private void handleCollisionAabbAabbsCntd(AABBf box, Vector3f v, Vector3f delta) {
         contacts.clear();
+        contactPoolIndex = 0;
         for (Voxel c : candidates)
             intersectAabbAabb(box, v, c);
         removeImplausibleContacts();
@@ -128,7 +143,7 @@ public class Collider {
             float entry = invEntry / v.get(k);
             float exit = invExit / v.get(k);
             if (entry >= -1.0f && entry < exit) {
-                Contact c = new Contact();
+                Contact c = newContact();
                 contacts.add(c);
                 c.n.setComponent(k, invEntry > 0 ? -1 : 1);
                 c.t = entry;
@@ -160,6 +175,67 @@ public class Collider {
         return t > tm ? NaN : max(0.0f, t / tm);
     }
 
+    /**
+     * Determine the time of impact of a sphere at <code>s0</code> with radius
+     * <code>r0</code> moving along <code>d</code> with a static sphere at
+     * <code>s1</code> with radius <code>r1</code>.
+     * 
+     * @return the time of impact in <code>[0..1]</code> or {@link Float#NaN}
+     */
+    public static float intersectSweptSphereSphere(Vector3f s0, float r0, Vector3f d, Vector3f s1, float r1) {
+        return intersectSegmentSphere(s0, d.x, d.y, d.z, s1, r0 + r1);
+    }
+
+    /**
+     * Determine the time of impact of the box <code>a</code> moving along
+     * <code>(vx, vy, vz)</code> with the static box <code>b</code>.
+     * <p>
+     * Reference: Christer Ericson, "Real-Time Collision Detection", 5.5.8
+     * 
+     * @param normal will hold the contact normal pointing from <code>b</code>
+     *               towards <code>a</code>, or zero if both boxes overlap
+     *               already
+     * @return the time of impact in <code>[0..1]</code> or {@link Float#NaN}
+     */
+    public static float intersectMovingAabbAabb(AABBf a, float vx, float vy, float vz, AABBf b, Vector3f normal) {
+        normal.zero();
+        if (a.maxX > b.minX && a.minX < b.maxX && a.maxY > b.minY && a.minY < b.maxY && a.maxZ > b.minZ
+                && a.minZ < b.maxZ)
+            return 0.0f;
+        float tFirst = 0.0f, tLast = 1.0f;
+        int axis = -1;
+        for (int k = 0; k < 3; k++) {
+            float v = k == X ? vx : k == Y ? vy : vz;
+            float aMin = a.getMin(k), aMax = a.getMax(k), bMin = b.getMin(k), bMax = b.getMax(k);
+            float tEntry, tExit;
+            if (v < 0.0f) {
+                if (aMax <= bMin)
+                    return NaN;
+                tEntry = (bMax - aMin) / v;
+                tExit = (bMin - aMax) / v;
+            } else if (v > 0.0f) {
+                if (aMin >= bMax)
+                    return NaN;
+                tEntry = (bMin - aMax) / v;
+                tExit = (bMax - aMin) / v;
+            } else {
+                if (aMax <= bMin || aMin >= bMax)
+                    return NaN;
+                continue;
+            }
+            if (tEntry > tFirst) {
+                tFirst = tEntry;
+                axis = k;
+            }
+            tLast = min(tLast, tExit);
+            if (tFirst > tLast)
+                return NaN;
+        }
+        if (axis != -1)
+            normal.setComponent(axis, (axis == X ? vx : axis == Y ? vy : vz) > 0.0f ? -1 : 1);
+        return tFirst;
+    }
+
     private static float intersectSegmentCapsule(Vector3f s0, Vector3f n, Vector3f p, Vector3f q, float r) {
         float dx = q.x - p.x, dy = q.y - p.y, dz = q.z - p.z;
         float mx = s0.x - p.x, my = s0.y - p.y, mz = s0.z - p.z;
@@ -320,10 +396,10 @@ public class Collider {
         return pl;
     }
 
-    private static class CollisionResult {
-        Vector3f normal = new Vector3f();
-        Vector3f point = new Vector3f();
-        float t;
+    public static class CollisionResult {
+        public final Vector3f normal = new Vector3f();
+        public final Vector3f point = new Vector3f();
+        public float t;
     }
 
     private static Vector3f corner(Vector3f min, Vector3f max, int n, Vector3f c) {
@@ -334,8 +410,7 @@ public class Collider {
     public boolean intersectSweptSphereAabb(Vector3f s, float r, Vector3f d, Vector3f min, Vector3f max,
             CollisionResult result) {
         PointLocation pl = closestPoint(s, min, max, result.point, result.normal);
-        Vector3f cmf = new Vector3f(result.point).sub(s);
-        if (pl != PointLocation.OUTSIDE || cmf.lengthSquared() <= r * r) {
+        if (pl != PointLocation.OUTSIDE || result.point.distanceSquared(s) <= r * r) {
             result.t = 0.0f;
             return true;
         }
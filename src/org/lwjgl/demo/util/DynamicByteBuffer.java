@@ -7,14 +7,90 @@ package org.lwjgl.demo.util;
 import static org.lwjgl.system.MemoryUtil.*;
 
 import java.nio.*;
+import java.util.ArrayDeque;
 
 /**
  * Dynamically growable {@link ByteBuffer}.
- * 
+ * <p>
+ * Besides the checked scalar <code>put*</code> methods, there are bulk puts
+ * copying whole arrays, buffers or memory regions, and <code>put*NoGrow</code>
+ * methods without any capacity check, which can be used after
+ * {@link #reserve(int) reserving} enough space for a batch of writes.
+ * <p>
+ * Buffers which are repeatedly allocated and freed, such as those of meshing
+ * tasks, can be reused via a {@link Pool}.
+ *
  * @author Kai Burjack
  */
 public class DynamicByteBuffer {
 
+    /**
+     * A thread-safe pool of {@link DynamicByteBuffer}s, binned by power-of-two
+     * size classes of their capacity.
+     */
+    public static class Pool {
+        private static final int MIN_SIZE_CLASS = 12;
+
+        private final ArrayDeque<DynamicByteBuffer>[] classes;
+        private final int maxPerClass;
+
+        /**
+         * Create a pool retaining at most <code>maxPerClass</code> buffers per size class.
+         */
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        public Pool(int maxPerClass) {
+            this.maxPerClass = maxPerClass;
+            this.classes = new ArrayDeque[Integer.SIZE];
+            for (int i = 0; i < classes.length; i++)
+                classes[i] = new ArrayDeque<>();
+        }
+
+        /**
+         * Return an empty buffer with a capacity of at least <code>minCapacity</code> bytes.
+         */
+        public DynamicByteBuffer acquire(int minCapacity) {
+            int c = Math.max(MIN_SIZE_CLASS, Integer.SIZE - Integer.numberOfLeadingZeros(Math.max(minCapacity, 1) - 1));
+            ArrayDeque<DynamicByteBuffer> q = classes[c];
+            synchronized (q) {
+                DynamicByteBuffer bb = q.pollFirst();
+                if (bb != null)
+                    return bb;
+            }
+            return new DynamicByteBuffer(1 << c);
+        }
+
+        /**
+         * Return the given buffer to the pool, or free it if its size class is full.
+         * The buffer must not be used anymore by the caller.
+         */
+        public void release(DynamicByteBuffer bb) {
+            bb.pos = 0;
+            int c = Integer.SIZE - 1 - Integer.numberOfLeadingZeros(bb.cap);
+            if (c >= MIN_SIZE_CLASS) {
+                ArrayDeque<DynamicByteBuffer> q = classes[c];
+                synchronized (q) {
+                    if (q.size() < maxPerClass) {
+                        q.addFirst(bb);
+                        return;
+                    }
+                }
+            }
+            bb.free();
+        }
+
+        /**
+         * Free all pooled buffers.
+         */
+        public void clear() {
+            for (ArrayDeque<DynamicByteBuffer> q : classes) {
+                synchronized (q) {
+                    for (DynamicByteBuffer bb; (bb = q.pollFirst()) != null;)
+                        bb.free();
+                }
+            }
+        }
+    }
+
     public long addr;
     public int pos;
     public int cap;
@@ -28,11 +104,16 @@ public class DynamicByteBuffer {
         cap = initialSize;
     }
 
-    private void grow() {
-        int newCap = (int) (cap * 1.5f);
-        long newAddr = nmemRealloc(addr, newCap);
-        cap = newCap;
-        addr = newAddr;
+    /**
+     * Ensure that at least <code>n</code> more bytes can be written without growing.
+     */
+    public DynamicByteBuffer reserve(int n) {
+        if (cap - pos < n) {
+            int newCap = Math.max((int) (cap * 1.5f), Math.addExact(pos, n));
+            addr = nmemRealloc(addr, newCap);
+            cap = newCap;
+        }
+        return this;
     }
 
     public void free() {
@@ -41,7 +122,11 @@ public class DynamicByteBuffer {
 
     public DynamicByteBuffer putFloat(float v) {
         if (cap - pos < 4)
-            grow();
+            reserve(4);
+        return putFloatNoGrow(v);
+    }
+
+    public DynamicByteBuffer putFloatNoGrow(float v) {
         memPutFloat(addr + pos, v);
         pos += 4;
         return this;
@@ -49,7 +134,11 @@ public class DynamicByteBuffer {
 
     public DynamicByteBuffer putLong(long v) {
         if (cap - pos < 8)
-            grow();
+            reserve(8);
+        return putLongNoGrow(v);
+    }
+
+    public DynamicByteBuffer putLongNoGrow(long v) {
         memPutLong(addr + pos, v);
         pos += 8;
         return this;
@@ -57,7 +146,11 @@ public class DynamicByteBuffer {
 
     public DynamicByteBuffer putInt(int v) {
         if (cap - pos < 4)
-            grow();
+            reserve(4);
+        return putIntNoGrow(v);
+    }
+
+    public DynamicByteBuffer putIntNoGrow(int v) {
         memPutInt(addr + pos, v);
         pos += 4;
         return this;
@@ -67,7 +160,11 @@ public class DynamicByteBuffer {
         if (v > 1 << 16)
             throw new IllegalArgumentException();
         if (cap - pos < 2)
-            grow();
+            reserve(2);
+        return putShortNoGrow(v);
+    }
+
+    public DynamicByteBuffer putShortNoGrow(int v) {
         memPutShort(addr + pos, (short) v);
         pos += 2;
         return this;
@@ -77,12 +174,92 @@ public class DynamicByteBuffer {
         if (v > 255)
             throw new IllegalArgumentException();
         if (cap - pos < 1)
-            grow();
+            reserve(1);
+        return putByteNoGrow(v);
+    }
+
+    public DynamicByteBuffer putByteNoGrow(int v) {
         memPutByte(addr + pos, (byte) (v & 0xFF));
         pos++;
         return this;
     }
 
+    /**
+     * Copy <code>length</code> bytes starting at the given address.
+     */
+    public DynamicByteBuffer put(long address, int length) {
+        reserve(length);
+        memCopy(address, addr + pos, length);
+        pos += length;
+        return this;
+    }
+
+    /**
+     * Copy the remaining bytes of the given buffer, without changing its position.
+     */
+    public DynamicByteBuffer put(ByteBuffer src) {
+        int length = src.remaining();
+        reserve(length);
+        if (src.isDirect())
+            memCopy(memAddress(src), addr + pos, length);
+        else
+            memByteBuffer(addr + pos, length).put(src.duplicate());
+        pos += length;
+        return this;
+    }
+
+    public DynamicByteBuffer put(byte[] src, int off, int len) {
+        reserve(len);
+        memByteBuffer(addr + pos, len).put(src, off, len);
+        pos += len;
+        return this;
+    }
+
+    public DynamicByteBuffer put(short[] src, int off, int len) {
+        reserve(len << 1);
+        memShortBuffer(addr + pos, len).put(src, off, len);
+        pos += len << 1;
+        return this;
+    }
+
+    public DynamicByteBuffer put(int[] src, int off, int len) {
+        reserve(len << 2);
+        memIntBuffer(addr + pos, len).put(src, off, len);
+        pos += len << 2;
+        return this;
+    }
+
+    public DynamicByteBuffer put(float[] src, int off, int len) {
+        reserve(len << 2);
+        memFloatBuffer(addr + pos, len).put(src, off, len);
+        pos += len << 2;
+        return this;
+    }
+
+    /**
+     * Return a view of the written bytes <code>[0, pos)</code>, without copying.
+     * The view is only valid until this buffer grows or is freed.
+     */
+    public ByteBuffer buffer() {
+        return memByteBuffer(addr, pos);
+    }
+
+    /**
+     * Return a view of the written bytes as ints, without copying.
+     * The view is only valid until this buffer grows or is freed.
+     */
+    public IntBuffer intBuffer() {
+        return memIntBuffer(addr, pos >> 2);
+    }
+
+    /**
+     * Return a view of the written bytes as floats, without copying.
+     * The view is only valid until this buffer grows or is freed.
+     */
+    public FloatBuffer floatBuffer() {
+        return memFloatBuffer(addr, pos >> 2);
+    }
+
     public int remaining() {
         return (int) (cap - pos);
     }
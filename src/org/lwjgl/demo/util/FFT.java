@@ -7,6 +7,11 @@ package org.lwjgl.demo.util;
 import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
 import java.awt.image.WritableRaster;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
 
 /**
  * Implementation of Cooley-Tukey radix-2 Decimation-In-Time (DIT) discrete Fourier transform (DFT) algorithm
@@ -14,68 +19,266 @@ import java.awt.image.WritableRaster;
  * <p>
  * This can be used to assess the quality of a sampling algorithm by analyzing the frequency spectrum of the resulting
  * image. Ideally, it should not contain any low-frequency components, which the human eye is very sensitive to.
+ * <p>
+ * An instance of this class is an engine for images of a fixed power-of-two width and height. It transforms flat
+ * row-major arrays of complex values, stored as interleaved real and imaginary parts, iteratively and in place using
+ * precomputed bit-reversal and twiddle tables. Real images transform two rows with a single complex transform. All
+ * rows and then all columns are transformed in parallel. An engine can be used by one thread at a time.
  *
  * @author Kai Burjack
  */
 public class FFT {
 
-    private static double[][][] transpose(double[][][] inout) {
-        int N = inout.length;
-        for (int i = 0; i < N; i++)
-            for (int j = i + 1; j < N; j++) {
-                double[] tmp = inout[i][j];
-                inout[i][j] = inout[j][i];
-                inout[j][i] = tmp;
-            }
-        return inout;
+    /**
+     * Number of adjacent columns copied into contiguous scratch memory and transformed together.
+     */
+    private static final int COLUMN_BLOCK = 8;
+
+    private final int width, height;
+    private final ForkJoinPool pool;
+    private final int[] rowReverse, columnReverse;
+    private final double[] rowTwiddles, columnTwiddles;
+    private final ThreadLocal<double[]> scratch;
+    private double[] spectrum;
+
+    /**
+     * Create an engine for images of the given size, running on the common {@link ForkJoinPool}.
+     *
+     * @param width  the width of the images, which must be a power of two
+     * @param height the height of the images, which must be a power of two
+     */
+    public FFT(int width, int height) {
+        this(width, height, ForkJoinPool.commonPool());
     }
 
-    private static double[][][] dfft2D(double[][][] inout) {
-        int N = inout.length;
-        for (int i = 0; i < N; i++)
-            inout[i] = dfftShift(dfft1D(inout[i]));
-        transpose(inout);
-        for (int i = 0; i < N; i++)
-            inout[i] = dfftShift(dfft1D(inout[i]));
-        return transpose(inout);
+    /**
+     * Create an engine for images of the given size, running on the given {@link ForkJoinPool}.
+     *
+     * @param width  the width of the images, which must be a power of two
+     * @param height the height of the images, which must be a power of two
+     * @param pool   the pool to transform rows and columns on
+     */
+    public FFT(int width, int height, ForkJoinPool pool) {
+        if (width < 1 || Integer.bitCount(width) != 1 || height < 1 || Integer.bitCount(height) != 1)
+            throw new IllegalArgumentException("width and height must be powers of two: " + width + "x" + height);
+        this.width = width;
+        this.height = height;
+        this.pool = pool;
+        this.rowReverse = bitReversal(width);
+        this.rowTwiddles = twiddles(width);
+        this.columnReverse = bitReversal(height);
+        this.columnTwiddles = twiddles(height);
+        int scratchSize = Math.max(2 * width, 2 * COLUMN_BLOCK * height);
+        this.scratch = ThreadLocal.withInitial(() -> new double[scratchSize]);
+    }
+
+    public int width() {
+        return width;
     }
 
-    private static double[][] dfft1D(double[][] inout) {
-        int N = inout.length;
-        if (N == 1) return inout;
-        double[][] e = new double[N>>>1][], o = new double[N>>>1][];
-        for (int i = 0; i < N>>>1; i++) {
-            e[i] = inout[i << 1];
-            o[i] = inout[(i<<1) + 1];
+    public int height() {
+        return height;
+    }
+
+    private static int[] bitReversal(int n) {
+        int[] rev = new int[n];
+        int bits = Integer.numberOfTrailingZeros(n);
+        for (int i = 0; i < n; i++)
+            rev[i] = bits == 0 ? 0 : Integer.reverse(i) >>> (32 - bits);
+        return rev;
+    }
+
+    /**
+     * Compute <code>exp(-2*pi*i*k/n)</code> for <code>k</code> in <code>[0, n/2)</code>, interleaved.
+     */
+    private static double[] twiddles(int n) {
+        double[] tw = new double[Math.max(2, n)];
+        for (int k = 0; k < n >>> 1; k++) {
+            double a = -2.0 * Math.PI * k / n;
+            tw[2 * k] = Math.cos(a);
+            tw[2 * k + 1] = Math.sin(a);
+        }
+        return tw;
+    }
+
+    /**
+     * Transform the <code>n</code> interleaved complex values starting at <code>a[off]</code> in place.
+     */
+    private static void fft1D(double[] a, int off, int n, int[] rev, double[] tw) {
+        for (int i = 0; i < n; i++) {
+            int j = rev[i];
+            if (i < j) {
+                int p = off + 2 * i, q = off + 2 * j;
+                double tr = a[p], ti = a[p + 1];
+                a[p] = a[q];
+                a[p + 1] = a[q + 1];
+                a[q] = tr;
+                a[q + 1] = ti;
+            }
         }
-        double[][] q = dfft1D(e), v = dfft1D(o);
-        for (int i = 0; i < N>>>1; i++) {
-            double k = (i<<1) * Math.PI / N;
-            double cr = org.joml.Math.cos(k), ci = org.joml.Math.sin(k);
-            inout[i] = new double[]{q[i][0] + cr * v[i][0] - ci * v[i][1], q[i][1] + cr * v[i][1] + ci * v[i][0]};
-            inout[i + (N>>>1)] = new double[]{q[i][0] - (cr * v[i][0] - ci * v[i][1]), q[i][1] - (cr * v[i][1] + ci * v[i][0])};
+        for (int len = 2; len <= n; len <<= 1) {
+            int half = len >>> 1, step = 2 * (n / len);
+            for (int k = 0, t = 0; k < half; k++, t += step) {
+                double wr = tw[t], wi = tw[t + 1];
+                for (int i = off + 2 * k; i < off + 2 * n; i += 2 * len) {
+                    int q = i + 2 * half;
+                    double xr = a[q] * wr - a[q + 1] * wi, xi = a[q] * wi + a[q + 1] * wr;
+                    a[q] = a[i] - xr;
+                    a[q + 1] = a[i + 1] - xi;
+                    a[i] += xr;
+                    a[i + 1] += xi;
+                }
+            }
         }
-        return inout;
     }
 
-    private static double[][][] toComplexArray(double[][] in) {
-        int N = in.length;
-        double[][][] output = new double[N][N][];
-        for (int i = 0; i < N; i++)
-            for (int j = 0; j < N; j++)
-                output[i][j] = new double[]{in[i][j], 0};
-        return output;
+    private void parallelFor(int n, IntConsumer body) {
+        Thread t = Thread.currentThread();
+        if (pool == ForkJoinPool.commonPool() || t instanceof ForkJoinWorkerThread && ((ForkJoinWorkerThread) t).getPool() == pool)
+            IntStream.range(0, n).parallel().forEach(body);
+        else
+            pool.submit(() -> IntStream.range(0, n).parallel().forEach(body)).join();
     }
 
-    private static double[][] dfftShift(double[][] inout) {
-        int N = inout.length;
-        int hN = N>>>1;
-        for (int i = 0; i < hN; i++) {
-            double[] tmp = inout[i];
-            inout[i] = inout[i + hN];
-            inout[i + hN] = tmp;
+    private void columns(double[] data) {
+        parallelFor((width + COLUMN_BLOCK - 1) / COLUMN_BLOCK, block -> {
+            double[] s = scratch.get();
+            int c0 = block * COLUMN_BLOCK, nc = Math.min(COLUMN_BLOCK, width - c0);
+            for (int r = 0; r < height; r++)
+                for (int c = 0, src = 2 * (r * width + c0); c < nc; c++, src += 2) {
+                    s[2 * (c * height + r)] = data[src];
+                    s[2 * (c * height + r) + 1] = data[src + 1];
+                }
+            for (int c = 0; c < nc; c++)
+                fft1D(s, 2 * c * height, height, columnReverse, columnTwiddles);
+            for (int r = 0; r < height; r++)
+                for (int c = 0, dst = 2 * (r * width + c0); c < nc; c++, dst += 2) {
+                    data[dst] = s[2 * (c * height + r)];
+                    data[dst + 1] = s[2 * (c * height + r) + 1];
+                }
+        });
+    }
+
+    /**
+     * Compute the 2D DFT of the given complex image in place.
+     *
+     * @param data the <code>width * height</code> complex values in row-major order, as interleaved real and
+     *             imaginary parts
+     */
+    public void forward(double[] data) {
+        parallelFor(height, r -> fft1D(data, 2 * r * width, width, rowReverse, rowTwiddles));
+        columns(data);
+    }
+
+    /**
+     * Compute the 2D DFT of the given real image.
+     * <p>
+     * Each pair of rows is transformed as the real and imaginary part of a single complex row, whose spectrum is then
+     * split using the conjugate symmetry of the spectra of real sequences.
+     *
+     * @param real the <code>width * height</code> real values in row-major order
+     * @param out  will receive the <code>width * height</code> complex values of the DFT in row-major order, as
+     *             interleaved real and imaginary parts
+     */
+    public void forwardReal(double[] real, double[] out) {
+        int mask = width - 1;
+        parallelFor((height + 1) >>> 1, pair -> {
+            double[] z = scratch.get();
+            int r0 = 2 * pair, r1 = r0 + 1;
+            boolean two = r1 < height;
+            for (int j = 0; j < width; j++) {
+                z[2 * j] = real[r0 * width + j];
+                z[2 * j + 1] = two ? real[r1 * width + j] : 0.0;
+            }
+            fft1D(z, 0, width, rowReverse, rowTwiddles);
+            int o0 = 2 * r0 * width, o1 = 2 * r1 * width;
+            for (int k = 0; k < width; k++) {
+                int m = -k & mask;
+                double zr = z[2 * k], zi = z[2 * k + 1], cr = z[2 * m], ci = -z[2 * m + 1];
+                if (!two) {
+                    out[o0 + 2 * k] = zr;
+                    out[o0 + 2 * k + 1] = zi;
+                    continue;
+                }
+                // X0 = (Z[k] + conj(Z[-k])) / 2, X1 = (Z[k] - conj(Z[-k])) / 2i
+                out[o0 + 2 * k] = 0.5 * (zr + cr);
+                out[o0 + 2 * k + 1] = 0.5 * (zi + ci);
+                out[o1 + 2 * k] = 0.5 * (zi - ci);
+                out[o1 + 2 * k + 1] = -0.5 * (zr - cr);
+            }
+        });
+        columns(out);
+    }
+
+    /**
+     * Compute the power spectrum <code>|F|^2 / (width * height)</code> of each of the given real images, averaged
+     * over all images, such as a set of sample point images. The result is shifted such that the zero frequency is at
+     * <code>(width / 2, height / 2)</code>.
+     *
+     * @param images the real images of <code>width * height</code> values each in row-major order
+     * @return the averaged power spectrum with <code>width * height</code> values in row-major order
+     */
+    public double[] powerSpectrum(List<double[]> images) {
+        double[] result = new double[width * height];
+        for (double[] image : images)
+            accumulatePowerSpectrum(image, 1.0 / images.size(), result);
+        return result;
+    }
+
+    /**
+     * Add the power spectrum <code>|F|^2 / (width * height)</code> of the given real image, multiplied by
+     * <code>weight</code> and shifted such that the zero frequency is at <code>(width / 2, height / 2)</code>, to
+     * <code>dest</code>.
+     *
+     * @param image  the real image of <code>width * height</code> values in row-major order
+     * @param weight the factor to scale the power spectrum with
+     * @param dest   will be accumulated into
+     */
+    public void accumulatePowerSpectrum(double[] image, double weight, double[] dest) {
+        if (spectrum == null)
+            spectrum = new double[2 * width * height];
+        double[] f = spectrum;
+        forwardReal(image, f);
+        double scale = weight / ((double) width * height);
+        int hw = width >>> 1, hh = height >>> 1;
+        parallelFor(height, r -> {
+            int dr = (r + hh) & (height - 1);
+            for (int c = 0; c < width; c++) {
+                int i = 2 * (r * width + c);
+                dest[dr * width + ((c + hw) & (width - 1))] += (f[i] * f[i] + f[i + 1] * f[i + 1]) * scale;
+            }
+        });
+    }
+
+    /**
+     * Average the given shifted power spectrum, as computed by {@link #powerSpectrum(List)}, over rings of equal
+     * frequency.
+     * <p>
+     * Bin <code>b</code> holds the mean of all frequencies <code>(fx, fy)</code>, in cycles per image, with
+     * <code>round(sqrt((fx * s / width)^2 + (fy * s / height)^2)) == b</code> where <code>s</code> is the smaller of
+     * width and height. Frequencies beyond the last of the <code>s / 2</code> bins are ignored.
+     *
+     * @param spectrum the shifted spectrum with <code>width * height</code> values
+     * @return the radially averaged spectrum
+     */
+    public double[] radialAverage(double[] spectrum) {
+        int s = Math.min(width, height), bins = Math.max(1, s >>> 1);
+        double[] sum = new double[bins];
+        int[] count = new int[bins];
+        for (int r = 0; r < height; r++) {
+            double fy = (double) (r - (height >>> 1)) * s / height;
+            for (int c = 0; c < width; c++) {
+                double fx = (double) (c - (width >>> 1)) * s / width;
+                int b = (int) Math.round(Math.sqrt(fx * fx + fy * fy));
+                if (b < bins) {
+                    sum[b] += spectrum[r * width + c];
+                    count[b]++;
+                }
+            }
         }
-        return inout;
+        for (int b = 0; b < bins; b++)
+            sum[b] = count[b] > 0 ? sum[b] / count[b] : 0.0;
+        return sum;
     }
 
     /**
@@ -86,21 +289,24 @@ public class FFT {
      * @return the frequency spectrum of the input image
      */
     public static byte[][] frequencySpectrum(double[][] input) {
-        double[][][] shifted = dfft2D(toComplexArray(input));
-        int N = shifted.length;
+        int H = input.length, W = input[0].length;
+        double[] real = new double[W * H];
+        for (int i = 0; i < H; i++)
+            System.arraycopy(input[i], 0, real, i * W, W);
+        double[] f = new double[2 * W * H];
+        new FFT(W, H).forwardReal(real, f);
         double max = 0;
-        double[][] mag = new double[N][N];
-        for (int i = 0; i < N; i++)
-            for (int j = 0; j < N; j++) {
-                mag[i][j] = Math.hypot(shifted[i][j][0], shifted[i][j][1]);
-                if (mag[i][j] > max)
-                    max = mag[i][j];
-            }
-        byte[][] res = new byte[N][N];
-        for (int i = 0; i < N; i++)
-            for (int j = 0; j < N; j++) {
-                int value = (int) (255 * (Math.log1p(mag[i][j]) / Math.log1p(max)));
-                res[i][j] = (byte) value;
+        double[] mag = real;
+        for (int i = 0; i < W * H; i++) {
+            mag[i] = Math.hypot(f[2 * i], f[2 * i + 1]);
+            if (mag[i] > max)
+                max = mag[i];
+        }
+        byte[][] res = new byte[H][W];
+        for (int i = 0; i < H; i++)
+            for (int j = 0; j < W; j++) {
+                int value = (int) (255 * (Math.log1p(mag[i * W + j]) / Math.log1p(max)));
+                res[(i + (H >>> 1)) & (H - 1)][(j + (W >>> 1)) & (W - 1)] = (byte) value;
             }
         return res;
     }
@@ -4,107 +4,287 @@
  */
 package org.lwjgl.demo.util;
 
-import static java.util.Arrays.*;
+import java.util.Arrays;
+import java.util.stream.IntStream;
 
 /**
- * Flood fill algorithm to compute face connectivity graph.
+ * Computes the face connectivity graph of the empty voxels of a grid.
  * <p>
  * Idea from: https://tomcc.github.io/2014/08/31/visibility-1.html
- * 
+ * <p>
+ * Instead of flood filling from every voxel on the faces, the 6-connected components of the
+ * empty voxels are labelled with a two-pass, run-based union-find: the empty voxels of each row
+ * along X are collected into runs, and runs overlapping in neighbouring rows are merged. Slabs
+ * along Z are labelled in parallel and merged at their boundaries afterwards. Memory is
+ * proportional to the number of runs rather than the number of voxels.
+ *
  * @author Kai Burjack
  */
 public class FaceConnectivity {
-    private final byte[] vs;
+    /**
+     * Bits of the faces of the grid, in the order <code>-X, +X, -Y, +Y, -Z, +Z</code>.
+     */
+    public static final int NEG_X = 1, POS_X = 2, NEG_Y = 4, POS_Y = 8, NEG_Z = 16, POS_Z = 32;
+
+    /**
+     * Number of Z slices labelled by a single parallel task.
+     */
+    private static final int SLAB_DEPTH = 16;
+
+    /**
+     * The connected components of the empty voxels.
+     */
+    public static class Components {
+        /**
+         * The number of components.
+         */
+        public final int count;
+        /**
+         * The number of voxels of each component.
+         */
+        public final int[] sizes;
+        /**
+         * The inclusive bounding box of each component as
+         * <code>minX, minY, minZ, maxX, maxY, maxZ</code>, starting at <code>6 * component</code>.
+         */
+        public final int[] bounds;
+        /**
+         * The faces of the grid touched by each component, as a combination of {@link #NEG_X},
+         * {@link #POS_X}, {@link #NEG_Y}, {@link #POS_Y}, {@link #NEG_Z} and {@link #POS_Z}.
+         */
+        public final byte[] faces;
+
+        Components(int count) {
+            this.count = count;
+            this.sizes = new int[count];
+            this.bounds = new int[6 * count];
+            this.faces = new byte[count];
+        }
+    }
+
     private final int w, h, d;
-    private final int[] stack;
-    private int stackPos;
+    /**
+     * The index of the first run of each row <code>y + h * z</code>, followed by the total
+     * number of runs.
+     */
+    private final int[] rowStart;
 
     public FaceConnectivity(int w, int h, int d) {
-        if (w < 1 || w > 256)
+        if (w < 1 || w > 0xFFFF)
             throw new IllegalArgumentException("w");
-        if (h < 1 || h > 256)
+        if (h < 1)
             throw new IllegalArgumentException("h");
-        if (d < 1 || d > 256)
+        if (d < 1)
             throw new IllegalArgumentException("d");
         this.w = w;
         this.h = h;
         this.d = d;
-        this.vs = new byte[w * h * d];
-        this.stack = new int[w * h * d * 5];
+        this.rowStart = new int[h * d + 1];
     }
 
     private int idx(int x, int y, int z) {
         return x + w * (y + z * h);
     }
 
+    /**
+     * Compute which faces of the grid are connected through empty voxels.
+     * <p>
+     * Bits <code>0-5</code> of the result are the faces reachable from the <code>-X</code> face,
+     * bits <code>6-11</code> those reachable from the <code>-Y</code> face and bits
+     * <code>12-17</code> those reachable from the <code>-Z</code> face, each in the order of
+     * {@link #NEG_X}, ..., {@link #POS_Z}.
+     *
+     * @param ds the voxels, indexed by <code>x + w * (y + z * h)</code>, where <code>0</code> is
+     *           empty
+     * @return the connectivity bits
+     */
     public int computeConnectivity(byte[] ds) {
-        fill(vs, (byte) 0);
-        return computeX(ds) | (computeY(ds) << 6) | (computeZ(ds) << 12);
-    }
-
-    private int computeZ(byte[] ds) {
+        Components cs = components(ds);
         int ret = 0;
-        for (int y = 0; y < h; y++)
-            for (int x = 0; x < w; x++)
-                ret |= floodFill(ds, x, y, 0, (byte) 3);
+        for (int c = 0; c < cs.count; c++) {
+            int f = cs.faces[c];
+            if ((f & NEG_X) != 0)
+                ret |= f;
+            if ((f & NEG_Y) != 0)
+                ret |= f << 6;
+            if ((f & NEG_Z) != 0)
+                ret |= f << 12;
+        }
         return ret;
     }
 
-    private int computeY(byte[] ds) {
-        int ret = 0;
+    /**
+     * Label the 6-connected components of the empty voxels.
+     * <p>
+     * Components are numbered in the order of their first voxel in memory order.
+     *
+     * @param ds the voxels, indexed by <code>x + w * (y + z * h)</code>, where <code>0</code> is
+     *           empty
+     * @return the components and their statistics
+     */
+    public Components components(byte[] ds) {
+        int slabs = (d + SLAB_DEPTH - 1) / SLAB_DEPTH;
+        /* First pass: collect the runs of every slab in parallel */
+        int[][] slabRuns = new int[slabs][];
+        IntStream.range(0, slabs).parallel().forEach(s -> slabRuns[s] = collectRuns(ds, s));
+        int total = 0;
+        for (int s = 0; s < slabs; s++) {
+            int first = s * SLAB_DEPTH * h, last = Math.min(d, (s + 1) * SLAB_DEPTH) * h;
+            for (int r = first; r < last; r++)
+                rowStart[r] += total;
+            total += slabRuns[s].length;
+        }
+        rowStart[h * d] = total;
+        int[] runs = new int[total];
+        for (int s = 0, o = 0; s < slabs; s++) {
+            System.arraycopy(slabRuns[s], 0, runs, o, slabRuns[s].length);
+            o += slabRuns[s].length;
+            slabRuns[s] = null;
+        }
+        int[] parent = new int[total];
+        byte[] rank = new byte[total];
+        for (int i = 0; i < total; i++)
+            parent[i] = i;
+        /* Merge overlapping runs within each slab in parallel, and then across the slab boundaries */
+        IntStream.range(0, slabs).parallel().forEach(s -> {
+            int z0 = s * SLAB_DEPTH, z1 = Math.min(d, z0 + SLAB_DEPTH);
+            for (int z = z0; z < z1; z++)
+                for (int y = 0; y < h; y++) {
+                    int row = y + h * z;
+                    if (y > 0)
+                        unionRows(runs, parent, rank, row - 1, row);
+                    if (z > z0)
+                        unionRows(runs, parent, rank, row - h, row);
+                }
+        });
+        for (int s = 1; s < slabs; s++) {
+            int z = s * SLAB_DEPTH;
+            for (int y = 0; y < h; y++) {
+                int row = y + h * z;
+                unionRows(runs, parent, rank, row - h, row);
+            }
+        }
+        /*
+         * Second pass: number the components in the order of their first run and accumulate their
+         * statistics. A numbered root stores the complement of its number as its parent.
+         */
+        int count = 0;
+        for (int i = 0; i < total; i++)
+            if (find(parent, i) == i)
+                count++;
+        Components cs = new Components(count);
+        int next = 0;
         for (int z = 0; z < d; z++)
-            for (int x = 0; x < w; x++)
-                ret |= floodFill(ds, x, 0, z, (byte) 2);
-        return ret;
+            for (int y = 0; y < h; y++) {
+                int row = y + h * z;
+                for (int i = rowStart[row]; i < rowStart[row + 1]; i++) {
+                    int r = i;
+                    while (parent[r] >= 0 && parent[r] != r)
+                        r = parent[r];
+                    int c;
+                    if (parent[r] >= 0) {
+                        c = next++;
+                        parent[r] = ~c;
+                        int b = 6 * c;
+                        cs.bounds[b] = cs.bounds[b + 1] = cs.bounds[b + 2] = Integer.MAX_VALUE;
+                        cs.bounds[b + 3] = cs.bounds[b + 4] = cs.bounds[b + 5] = Integer.MIN_VALUE;
+                    } else
+                        c = ~parent[r];
+                    if (r != i)
+                        parent[i] = r;
+                    int x0 = runs[i] & 0xFFFF, x1 = runs[i] >>> 16, b = 6 * c;
+                    cs.sizes[c] += x1 - x0;
+                    cs.bounds[b] = Math.min(cs.bounds[b], x0);
+                    cs.bounds[b + 1] = Math.min(cs.bounds[b + 1], y);
+                    cs.bounds[b + 2] = Math.min(cs.bounds[b + 2], z);
+                    cs.bounds[b + 3] = Math.max(cs.bounds[b + 3], x1 - 1);
+                    cs.bounds[b + 4] = Math.max(cs.bounds[b + 4], y);
+                    cs.bounds[b + 5] = Math.max(cs.bounds[b + 5], z);
+                    int f = 0;
+                    if (x0 == 0)
+                        f |= NEG_X;
+                    if (x1 == w)
+                        f |= POS_X;
+                    if (y == 0)
+                        f |= NEG_Y;
+                    if (y == h - 1)
+                        f |= POS_Y;
+                    if (z == 0)
+                        f |= NEG_Z;
+                    if (z == d - 1)
+                        f |= POS_Z;
+                    cs.faces[c] |= f;
+                }
+            }
+        return cs;
     }
 
-    private int computeX(byte[] ds) {
-        int ret = 0;
-        for (int y = 0; y < h; y++)
-            for (int z = 0; z < d; z++)
-                ret |= floodFill(ds, 0, y, z, (byte) 1);
-        return ret;
+    /**
+     * Collect the runs of empty voxels of the given slab, each packed as
+     * <code>x0 | x1 << 16</code> with <code>x1</code> exclusive, and store the slab-relative
+     * index of the first run of each row in {@link #rowStart}.
+     */
+    private int[] collectRuns(byte[] ds, int slab) {
+        int z0 = slab * SLAB_DEPTH, z1 = Math.min(d, z0 + SLAB_DEPTH);
+        int[] runs = new int[64];
+        int n = 0;
+        for (int z = z0; z < z1; z++)
+            for (int y = 0; y < h; y++) {
+                rowStart[y + h * z] = n;
+                int i = idx(0, y, z);
+                for (int x = 0; x < w;) {
+                    if (ds[i + x] != 0) {
+                        x++;
+                        continue;
+                    }
+                    int x0 = x;
+                    while (x < w && ds[i + x] == 0)
+                        x++;
+                    if (n == runs.length)
+                        runs = Arrays.copyOf(runs, n * 2);
+                    runs[n++] = x0 | x << 16;
+                }
+            }
+        return Arrays.copyOf(runs, n);
     }
 
-    private int floodFill(byte[] ds, int x, int y, int z, byte p) {
-        if (ds[idx(x, y, z)] != 0)
-            return 0;
-        stack[stackPos = 0] = x | y << 8 | z << 16;
-        int ret = 0;
-        while (stackPos >= 0) {
-            int sv = stack[stackPos--], px = sv & 0xFF, py = sv >>> 8 & 0xFF, pz = sv >>> 16 & 0xFF;
-            if (ds[idx(px, py, pz)] != 0 || vs[idx(px, py, pz)] == p)
-                continue;
-            vs[idx(px, py, pz)] = p;
-            if (px < w - 1)
-                stack[++stackPos] = px + 1 | py << 8 | pz << 16;
-            else
-                ret |= 2;
-            if (px > 0) {
-                if (p != 1)
-                    stack[++stackPos] = px - 1 | py << 8 | pz << 16;
-            } else
-                ret |= 1;
-            if (py < h - 1)
-                stack[++stackPos] = px | py + 1 << 8 | pz << 16;
-            else
-                ret |= 8;
-            if (py > 0) {
-                if (p != 2)
-                    stack[++stackPos] = px | py - 1 << 8 | pz << 16;
-            } else
-                ret |= 4;
-            if (pz < d - 1)
-                stack[++stackPos] = px | py << 8 | pz + 1 << 16;
+    /**
+     * Merge all overlapping runs of the two given rows.
+     */
+    private void unionRows(int[] runs, int[] parent, byte[] rank, int rowA, int rowB) {
+        int a = rowStart[rowA], aEnd = rowStart[rowA + 1];
+        int b = rowStart[rowB], bEnd = rowStart[rowB + 1];
+        while (a < aEnd && b < bEnd) {
+            int a0 = runs[a] & 0xFFFF, a1 = runs[a] >>> 16;
+            int b0 = runs[b] & 0xFFFF, b1 = runs[b] >>> 16;
+            if (a0 < b1 && b0 < a1)
+                union(parent, rank, a, b);
+            if (a1 < b1)
+                a++;
             else
-                ret |= 32;
-            if (pz > 0) {
-                if (p != 3)
-                    stack[++stackPos] = px | py << 8 | pz - 1 << 16;
-            } else
-                ret |= 16;
+                b++;
         }
-        return ret;
     }
 
+    private static int find(int[] parent, int i) {
+        while (parent[i] != i) {
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+        return i;
+    }
+
+    private static void union(int[] parent, byte[] rank, int a, int b) {
+        int ra = find(parent, a), rb = find(parent, b);
+        if (ra == rb)
+            return;
+        if (rank[ra] < rank[rb])
+            parent[ra] = rb;
+        else if (rank[ra] > rank[rb])
+            parent[rb] = ra;
+        else {
+            parent[rb] = ra;
+            rank[ra]++;
+        }
+    }
 }
@@ -4,6 +4,11 @@
  */
 package org.lwjgl.demo.util;
 
+import static org.lwjgl.system.MemoryUtil.*;
+
+import java.nio.FloatBuffer;
+import java.util.stream.IntStream;
+
 import org.joml.Vector2f;
 import org.joml.Vector2i;
 
@@ -21,10 +26,22 @@ import org.joml.Vector2i;
  * <li><a href="http://graphics.ucsd.edu/~henrik/papers/wavelet_importance_sampling.pdf">"Wavelet Importance: Efficiently Evaluating Products of Complex Functions" by Clarberg et al.</a></li>
  * <li><a href="https://www.ea.com/seed/news/siggraph21-global-illumination-surfels">SIGGRAPH 21: Global Illumination Based on Surfels</a></li>
  * </ul>
+ * <p>
+ * The distribution is represented by <code>float[][] levels</code>, where <code>levels[0]</code> is the coarsest level
+ * of 2x2 texels and every following level doubles the resolution. Each texel holds the sum of the four texels below it,
+ * so the finest level is the (luminance of the) image itself. Such a pyramid is built by
+ * {@link #levels(FloatBuffer, int, int)} or {@link #levels(float[], int)} and can be rebuilt in place via
+ * {@link #update(float[][])} when the finest level changed.
  *
  * @author Kai Burjack
  */
 public class HierarchicalSampleWarping {
+  /**
+   * Number of texels from which on levels are built, and samples are warped, in parallel.
+   */
+  private static final int PARALLEL_THRESHOLD = 1 << 14;
+  private static final float ONE_MINUS_EPSILON = 0x1.fffffep-1f;
+
   private static int idx(int x, int y, int lod) {
     return x + y * (2 << lod);
   }
@@ -47,7 +64,7 @@ public class HierarchicalSampleWarping {
       float left = s0 + s2, right = s1 + s3;
       float pLeft = left / (left + right);
       float uxFactor = step(pLeft, u.x);
-      float pLower = mix(s0 / left, s1 / right, uxFactor);
+      float pLower = uxFactor == 0 ? s0 / left : s1 / right;
       float uyFactor = step(pLower, u.y);
       float uxDen = mix(pLeft, 1.0f - pLeft, uxFactor);
       float uyDen = mix(pLower, 1.0f - pLower, uyFactor);
@@ -59,4 +76,228 @@ public class HierarchicalSampleWarping {
     }
     return new Vector2i(x, y);
   }
+
+  private static int sizeOf(float[][] levels) {
+    return 2 << levels.length - 1;
+  }
+  private static float luminance(float r, float g, float b) {
+    return r * 0.2126f + g * 0.7152f + b * 0.0722f;
+  }
+  private static IntStream range(int n, boolean parallel) {
+    IntStream s = IntStream.range(0, n);
+    return parallel ? s.parallel() : s;
+  }
+
+  /**
+   * Build the summed pyramid for the given square image whose texels have <code>components</code> floats each, such as
+   * one loaded via <code>stbi_loadf_from_memory</code>. Texels with three or more components are weighted by their
+   * luminance, otherwise by their first component.
+   *
+   * @param image      the image with <code>size * size * components</code> floats, starting at its position
+   * @param size       the width and height of the image, which must be a power of two of at least 2
+   * @param components the number of floats per texel
+   * @return the levels of the pyramid
+   */
+  public static float[][] levels(FloatBuffer image, int size, int components) {
+    float[][] levels = allocate(size);
+    float[] finest = levels[levels.length - 1];
+    long address = memAddress(image);
+    range(size, size * size >= PARALLEL_THRESHOLD).forEach(y -> {
+      long a = address + (long) y * size * components * 4;
+      for (int x = 0, i = y * size; x < size; x++, i++, a += components * 4) {
+        finest[i] = components >= 3 ? luminance(memGetFloat(a), memGetFloat(a + 4), memGetFloat(a + 8)) : memGetFloat(a);
+      }
+    });
+    update(levels);
+    return levels;
+  }
+
+  /**
+   * Build the summed pyramid for the given square grid of non-negative values, such as an irradiance grid.
+   *
+   * @param values the <code>size * size</code> values in row-major order, which are copied into the finest level
+   * @param size   the width and height of the grid, which must be a power of two of at least 2
+   * @return the levels of the pyramid
+   */
+  public static float[][] levels(float[] values, int size) {
+    float[][] levels = allocate(size);
+    System.arraycopy(values, 0, levels[levels.length - 1], 0, size * size);
+    update(levels);
+    return levels;
+  }
+
+  private static float[][] allocate(int size) {
+    if (size < 2 || Integer.bitCount(size) != 1)
+      throw new IllegalArgumentException("size must be a power of two of at least 2: " + size);
+    float[][] levels = new float[Integer.numberOfTrailingZeros(size)][];
+    for (int lod = 0; lod < levels.length; lod++)
+      levels[lod] = new float[(2 << lod) * (2 << lod)];
+    return levels;
+  }
+
+  /**
+   * Recompute all coarser levels from the finest level <code>levels[levels.length - 1]</code>, in place.
+   * <p>
+   * Large levels are reduced in parallel, one row of the coarser level per task.
+   *
+   * @param levels the pyramid whose finest level has been updated
+   */
+  public static void update(float[][] levels) {
+    for (int lod = levels.length - 2; lod >= 0; lod--) {
+      float[] src = levels[lod + 1], dst = levels[lod];
+      int s = 2 << lod, l = lod, lodBelow = lod + 1;
+      range(s, s * s >= PARALLEL_THRESHOLD).forEach(y -> {
+        for (int x = 0; x < s; x++)
+          dst[idx(x, y, l)] = src[idx(2 * x, 2 * y, lodBelow)] + src[idx(2 * x + 1, 2 * y, lodBelow)]
+                              + src[idx(2 * x, 2 * y + 1, lodBelow)] + src[idx(2 * x + 1, 2 * y + 1, lodBelow)];
+      });
+    }
+  }
+
+  /**
+   * Warp the given uniformly distributed sample points in place, such that they are distributed proportionally to
+   * the texels of the finest level.
+   * <p>
+   * On input, <code>(u[i], v[i])</code> is a point in <code>[0, 1)^2</code>. On output, it is the warped point in
+   * <code>[0, 1)^2</code>, where <code>(0, 0)</code> is the first texel of the finest level, and <code>pdf[i]</code>
+   * is the density of that point with respect to area on the unit square.
+   *
+   * @param levels the pyramid
+   * @param u      the first coordinates of the sample points
+   * @param v      the second coordinates of the sample points
+   * @param pdf    will receive the density of each warped point
+   */
+  public static void warp(float[][] levels, float[] u, float[] v, float[] pdf) {
+    int n = Math.min(Math.min(u.length, v.length), pdf.length);
+    int size = sizeOf(levels);
+    float invSize = 1.0f / size, area = (float) size * size;
+    range((n + 1023) >>> 10, n >= PARALLEL_THRESHOLD).forEach(block -> {
+      for (int i = block << 10, end = Math.min(n, i + 1024); i < end; i++) {
+        float ux = u[i], uy = v[i], p = area;
+        int x = 0, y = 0;
+        for (int lod = 0; lod < levels.length; lod++) {
+          float[] l = levels[lod];
+          x <<= 1; y <<= 1;
+          float s0 = l[idx(x  ,y  ,lod)], s1 = l[idx(x+1,y  ,lod)];
+          float s2 = l[idx(x  ,y+1,lod)], s3 = l[idx(x+1,y+1,lod)];
+          float left = s0 + s2, right = s1 + s3;
+          float pLeft = left / (left + right);
+          if (ux < pLeft) {
+            ux /= pLeft;
+            p *= pLeft;
+            float pLower = s0 / left;
+            if (uy < pLower) {
+              uy /= pLower;
+              p *= pLower;
+            } else {
+              uy = (uy - pLower) / (1.0f - pLower);
+              p *= 1.0f - pLower;
+              y++;
+            }
+          } else {
+            ux = (ux - pLeft) / (1.0f - pLeft);
+            p *= 1.0f - pLeft;
+            float pLower = s1 / right;
+            if (uy < pLower) {
+              uy /= pLower;
+              p *= pLower;
+            } else {
+              uy = (uy - pLower) / (1.0f - pLower);
+              p *= 1.0f - pLower;
+              y++;
+            }
+            x++;
+          }
+          // rounding must not push the remainders onto the next texel, which might have zero weight
+          ux = Math.min(ux, ONE_MINUS_EPSILON);
+          uy = Math.min(uy, ONE_MINUS_EPSILON);
+        }
+        // and neither must the conversion to the unit square
+        u[i] = Math.min((x + ux) * invSize, Math.nextDown((x + 1) * invSize));
+        v[i] = Math.min((y + uy) * invSize, Math.nextDown((y + 1) * invSize));
+        pdf[i] = p;
+      }
+    });
+  }
+
+  /**
+   * Compute the density of {@link #warp(float[][], float[], float[], float[]) warped} points at the given point in
+   * <code>[0, 1)^2</code>, with respect to area on the unit square. This is the value needed to weight samples
+   * generated by other strategies in multiple importance sampling.
+   *
+   * @param levels the pyramid
+   * @param x      the first coordinate
+   * @param y      the second coordinate
+   * @return the density
+   */
+  public static float pdf(float[][] levels, float x, float y) {
+    float[] top = levels[0], finest = levels[levels.length - 1];
+    int size = sizeOf(levels), lod = levels.length - 1;
+    float total = top[0] + top[1] + top[2] + top[3];
+    int px = Math.min((int) (x * size), size - 1), py = Math.min((int) (y * size), size - 1);
+    return total > 0.0f ? finest[idx(px, py, lod)] / total * size * size : 0.0f;
+  }
+
+  /**
+   * Invert {@link #warp(float[][], float[], float[], float[]) warp} in place: map points in <code>[0, 1)^2</code>
+   * back to the uniformly distributed points that are warped onto them.
+   * <p>
+   * Points on texels with zero weight cannot be generated by the warp and map to an undefined point.
+   *
+   * @param levels the pyramid
+   * @param x      the first coordinates, which will receive the first coordinates of the uniform points
+   * @param y      the second coordinates, which will receive the second coordinates of the uniform points
+   */
+  public static void inverse(float[][] levels, float[] x, float[] y) {
+    int n = Math.min(x.length, y.length);
+    int size = sizeOf(levels), finestLod = levels.length - 1;
+    range((n + 1023) >>> 10, n >= PARALLEL_THRESHOLD).forEach(block -> {
+      for (int i = block << 10, end = Math.min(n, i + 1024); i < end; i++) {
+        float fx = x[i] * size, fy = y[i] * size;
+        int px = Math.min((int) fx, size - 1), py = Math.min((int) fy, size - 1);
+        float ux = fx - px, uy = fy - py;
+        // walk from the finest level up to the coarsest, undoing one level of warping each
+        for (int lod = finestLod; lod >= 0; lod--) {
+          float[] l = levels[lod];
+          int shift = finestLod - lod;
+          int cx = px >>> shift, cy = py >>> shift, bx = cx & ~1, by = cy & ~1;
+          float s0 = l[idx(bx  ,by  ,lod)], s1 = l[idx(bx+1,by  ,lod)];
+          float s2 = l[idx(bx  ,by+1,lod)], s3 = l[idx(bx+1,by+1,lod)];
+          float left = s0 + s2, right = s1 + s3;
+          float pLeft = left / (left + right);
+          float pLower = (cx & 1) == 0 ? s0 / left : s1 / right;
+          ux = (cx & 1) == 0 ? ux * pLeft : pLeft + ux * (1.0f - pLeft);
+          uy = (cy & 1) == 0 ? uy * pLower : pLower + uy * (1.0f - pLower);
+        }
+        x[i] = ux;
+        y[i] = uy;
+      }
+    });
+  }
+
+  /**
+   * @return the number of bytes needed to {@link #write(float[][], long) write} the given pyramid
+   */
+  public static int byteSize(float[][] levels) {
+    int n = 0;
+    for (float[] l : levels)
+      n += l.length;
+    return n * 4;
+  }
+
+  /**
+   * Write the given pyramid as a mip chain for a <code>GL_R32F</code> texture: first the finest level, which is mip
+   * level 0, then each coarser level, down to the 2x2 level. Each level is stored in row-major order, so level
+   * <code>k</code> of a pyramid of size <code>s</code> starts <code>4 * (s*s + (s/2)*(s/2) + ...)</code> bytes after
+   * the start, summing over all finer levels.
+   *
+   * @param levels  the pyramid
+   * @param address the address to write {@link #byteSize(float[][])} bytes at
+   */
+  public static void write(float[][] levels, long address) {
+    for (int lod = levels.length - 1; lod >= 0; lod--) {
+      memFloatBuffer(address, levels[lod].length).put(levels[lod]);
+      address += levels[lod].length * 4L;
+    }
+  }
 }
@@ -5,16 +5,142 @@
 package org.lwjgl.demo.util;
 
 import java.io.*;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
 import java.net.URL;
+import java.net.URLConnection;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
 
 import org.lwjgl.BufferUtils;
 
 /**
+ * Loading of classpath resources into direct {@link ByteBuffer}s.
+ * <p>
+ * Resources which are plain files are memory-mapped. Resources inside of jar
+ * files on the file system are read from the memory-mapped jar, either as a
+ * zero-copy slice when stored or by inflating directly into a direct buffer of
+ * the exact size. All other resources, such as those of a native image, are
+ * streamed into a buffer pre-sized from the known content length.
+ * <p>
+ * Resources can also be memoized in a size-bounded LRU cache shared by all
+ * demos via {@link #cachedResource(String)} and be loaded in parallel ahead of
+ * time via {@link #prefetchResources(String...)}. The capacity of the cache in
+ * bytes is given by the system property <code>resourcecache</code> and
+ * defaults to 256 MB.
+ *
  * @author Kai Burjack
  */
 public class IOUtils {
+    private static final int LOCAL_HEADER = 0x04034b50;
+    private static final int CENTRAL_HEADER = 0x02014b50;
+    private static final int END_OF_CENTRAL_DIRECTORY = 0x06054b50;
+    private static final int STORED = 0, DEFLATED = 8;
+
+    private static final long RESOURCE_CACHE_CAPACITY = Long.getLong("resourcecache", 256L << 20);
+    private static final Map<String, ByteBuffer> resourceCache = new LinkedHashMap<>(16, 0.75f, true);
+    private static long resourceCacheBytes;
+
+    /* Central directories of all jar files resources have been loaded from */
+    private static final Map<String, ZipIndex> jarIndices = new ConcurrentHashMap<>();
+
+    /**
+     * Location of a single entry inside of a zip file.
+     */
+    private static class ZipEntry {
+        int method;
+        long compressedSize;
+        long size;
+        long localHeaderOffset;
+    }
+
+    /**
+     * A memory-mapped or in-memory zip file together with its central
+     * directory.
+     */
+    private static class ZipIndex {
+        final ByteBuffer zip;
+        final Map<String, ZipEntry> entries = new LinkedHashMap<>();
+
+        ZipIndex(ByteBuffer zip) throws IOException {
+            this.zip = zip.slice().order(ByteOrder.LITTLE_ENDIAN);
+            readCentralDirectory();
+        }
+
+        private void readCentralDirectory() throws IOException {
+            int eocd = -1;
+            for (int i = zip.limit() - 22, end = Math.max(0, i - 0xFFFF); i >= end; i--) {
+                if (zip.getInt(i) == END_OF_CENTRAL_DIRECTORY) {
+                    eocd = i;
+                    break;
+                }
+            }
+            if (eocd < 0)
+                throw new ZipException("End of central directory not found");
+            int numEntries = zip.getShort(eocd + 10) & 0xFFFF;
+            long pos = zip.getInt(eocd + 16) & 0xFFFFFFFFL;
+            for (int i = 0; i < numEntries; i++) {
+                int p = (int) pos;
+                if (zip.getInt(p) != CENTRAL_HEADER)
+                    throw new ZipException("Invalid central directory header");
+                int nameLength = zip.getShort(p + 28) & 0xFFFF;
+                int extraLength = zip.getShort(p + 30) & 0xFFFF;
+                int commentLength = zip.getShort(p + 32) & 0xFFFF;
+                byte[] name = new byte[nameLength];
+                zip.duplicate().position(p + 46).get(name);
+                ZipEntry e = new ZipEntry();
+                e.method = zip.getShort(p + 10) & 0xFFFF;
+                e.compressedSize = zip.getInt(p + 20) & 0xFFFFFFFFL;
+                e.size = zip.getInt(p + 24) & 0xFFFFFFFFL;
+                e.localHeaderOffset = zip.getInt(p + 42) & 0xFFFFFFFFL;
+                /* Zip64 entries are not indexed, and will be loaded through the JDK instead */
+                if (e.compressedSize != 0xFFFFFFFFL && e.size != 0xFFFFFFFFL && e.localHeaderOffset != 0xFFFFFFFFL)
+                    entries.put(new String(name, StandardCharsets.UTF_8), e);
+                pos += 46 + nameLength + extraLength + commentLength;
+            }
+        }
+
+        ByteBuffer read(ZipEntry e) throws IOException {
+            int p = (int) e.localHeaderOffset;
+            if (zip.getInt(p) != LOCAL_HEADER)
+                throw new ZipException("Invalid local file header");
+            int dataOffset = p + 30 + (zip.getShort(p + 26) & 0xFFFF) + (zip.getShort(p + 28) & 0xFFFF);
+            ByteBuffer data = zip.duplicate().order(ByteOrder.BIG_ENDIAN).position(dataOffset)
+                    .limit(dataOffset + (int) e.compressedSize).slice();
+            if (e.method == STORED)
+                return data;
+            if (e.method != DEFLATED)
+                throw new ZipException("Unsupported compression method: " + e.method);
+            ByteBuffer out = BufferUtils.createByteBuffer((int) e.size);
+            Inflater inflater = new Inflater(true);
+            try {
+                inflater.setInput(data);
+                while (out.hasRemaining() && !inflater.finished()) {
+                    if (inflater.inflate(out) == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                        throw new ZipException("Truncated zip entry");
+                }
+            } catch (DataFormatException ex) {
+                throw new ZipException(ex.getMessage());
+            } finally {
+                inflater.end();
+            }
+            out.flip();
+            return out;
+        }
+    }
+
     private static ByteBuffer resizeBuffer(ByteBuffer buffer, int newCapacity) {
         ByteBuffer newBuffer = BufferUtils.createByteBuffer(newCapacity);
         buffer.flip();
@@ -22,38 +148,195 @@ public class IOUtils {
         return newBuffer;
     }
 
+    private static ByteBuffer mapFile(File file) throws IOException {
+        try (FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+        }
+    }
+
+    /**
+     * Load the given classpath resource.
+     * <p>
+     * The returned buffer must be treated as read-only, because it may be
+     * memory-mapped.
+     *
+     * @param resource   the classpath of the resource
+     * @param bufferSize the initial buffer size when the size of the resource
+     *                   is unknown
+     * @return the resource's content
+     */
     public static ByteBuffer ioResourceToByteBuffer(String resource, int bufferSize) throws IOException {
-        ByteBuffer buffer;
         URL url = Thread.currentThread().getContextClassLoader().getResource(resource);
         if (url == null)
             throw new IOException("Classpath resource not found: " + resource);
         File file = new File(url.getFile());
-        if (file.isFile()) {
-            FileInputStream fis = new FileInputStream(file);
-            FileChannel fc = fis.getChannel();
-            buffer = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
-            fc.close();
-            fis.close();
+        if (file.isFile())
+            return mapFile(file);
+        URLConnection connection = url.openConnection();
+        long size = -1L;
+        if (connection instanceof JarURLConnection) {
+            JarURLConnection jarConnection = (JarURLConnection) connection;
+            ByteBuffer buffer = readFromJar(jarConnection);
+            if (buffer != null)
+                return buffer;
+            size = jarConnection.getJarEntry().getSize();
         } else {
-            buffer = BufferUtils.createByteBuffer(bufferSize);
-            InputStream source = url.openStream();
+            size = connection.getContentLengthLong();
+        }
+        try (InputStream source = connection.getInputStream()) {
             if (source == null)
                 throw new FileNotFoundException(resource);
-            try {
-                byte[] buf = new byte[8192];
-                while (true) {
-                    int bytes = source.read(buf, 0, buf.length);
-                    if (bytes == -1)
-                        break;
-                    if (buffer.remaining() < bytes)
-                        buffer = resizeBuffer(buffer, Math.max(buffer.capacity() * 2, buffer.capacity() - buffer.remaining() + bytes));
-                    buffer.put(buf, 0, bytes);
-                }
-                buffer.flip();
-            } finally {
-                source.close();
+            return readFully(source, size >= 0L && size < Integer.MAX_VALUE ? (int) size : bufferSize);
+        }
+    }
+
+    /**
+     * Read the entry of the given connection from the memory-mapped jar file,
+     * if the jar is a plain file and the entry could be found in its central
+     * directory.
+     */
+    private static ByteBuffer readFromJar(JarURLConnection connection) throws IOException {
+        URL jarUrl = connection.getJarFileURL();
+        if (!"file".equals(jarUrl.getProtocol()))
+            return null;
+        File jar;
+        try {
+            jar = Paths.get(jarUrl.toURI()).toFile();
+        } catch (URISyntaxException | IllegalArgumentException e) {
+            return null;
+        }
+        if (!jar.isFile())
+            return null;
+        ZipIndex index = jarIndices.get(jar.getPath());
+        if (index == null) {
+            index = new ZipIndex(mapFile(jar));
+            ZipIndex existing = jarIndices.putIfAbsent(jar.getPath(), index);
+            if (existing != null)
+                index = existing;
+        }
+        ZipEntry e = index.entries.get(connection.getEntryName());
+        return e != null ? index.read(e) : null;
+    }
+
+    /**
+     * Read the whole stream into a direct buffer of the expected size, growing
+     * it only if the stream turns out to be larger.
+     */
+    private static ByteBuffer readFully(InputStream source, int expectedSize) throws IOException {
+        ByteBuffer buffer = BufferUtils.createByteBuffer(Math.max(expectedSize, 1));
+        ReadableByteChannel channel = Channels.newChannel(source);
+        while (true) {
+            if (!buffer.hasRemaining()) {
+                /* Probe for the end of the stream before growing a buffer of the exact size */
+                int b = source.read();
+                if (b == -1)
+                    break;
+                buffer = resizeBuffer(buffer, buffer.capacity() * 2);
+                buffer.put((byte) b);
             }
+            if (channel.read(buffer) == -1)
+                break;
         }
+        buffer.flip();
         return buffer;
     }
+
+    /**
+     * Return the content of the single (or first) file inside of the given zip
+     * classpath resource, inflated directly into a direct buffer.
+     * <p>
+     * The zip file itself is obtained via {@link #cachedResource(String)}, so
+     * it benefits from {@link #prefetchResources(String...) prefetching}.
+     *
+     * @param zipResource the classpath of a zip file containing a single file
+     * @return the decompressed content of that file
+     */
+    public static ByteBuffer ioSingleFileZipToByteBuffer(String zipResource) throws IOException {
+        ZipIndex index = new ZipIndex(cachedResource(zipResource));
+        Iterator<ZipEntry> it = index.entries.values().iterator();
+        if (!it.hasNext())
+            throw new IOException("Empty zip file: " + zipResource);
+        return index.read(it.next());
+    }
+
+    /**
+     * Return the content of the given classpath resource from the shared
+     * resource cache, loading it via {@link #ioResourceToByteBuffer(String, int)}
+     * on a cache miss.
+     * <p>
+     * Resources are evicted in least-recently-used order once the total size of
+     * all cached resources exceeds the cache capacity.
+     *
+     * @param resource the classpath of the resource
+     * @return a read-only view of the resource's content
+     */
+    public static ByteBuffer cachedResource(String resource) throws IOException {
+        ByteBuffer buffer;
+        synchronized (resourceCache) {
+            buffer = resourceCache.get(resource);
+        }
+        if (buffer == null) {
+            buffer = ioResourceToByteBuffer(resource, 8192).asReadOnlyBuffer();
+            synchronized (resourceCache) {
+                ByteBuffer existing = resourceCache.get(resource);
+                if (existing != null)
+                    buffer = existing;
+                else if (buffer.remaining() <= RESOURCE_CACHE_CAPACITY) {
+                    resourceCache.put(resource, buffer);
+                    resourceCacheBytes += buffer.remaining();
+                    evict();
+                }
+            }
+        }
+        return buffer.duplicate();
+    }
+
+    private static void evict() {
+        Iterator<ByteBuffer> it = resourceCache.values().iterator();
+        while (resourceCacheBytes > RESOURCE_CACHE_CAPACITY && it.hasNext()) {
+            resourceCacheBytes -= it.next().remaining();
+            it.remove();
+        }
+    }
+
+    /**
+     * Load all given classpath resources in parallel into the shared resource
+     * cache.
+     *
+     * @param resources the classpaths of the resources
+     * @return a future completing when all resources have been loaded
+     */
+    public static CompletableFuture<Void> prefetchResources(String... resources) {
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[resources.length];
+        for (int i = 0; i < resources.length; i++) {
+            String resource = resources[i];
+            futures[i] = CompletableFuture.runAsync(() -> {
+                try {
+                    cachedResource(resource);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        }
+        return CompletableFuture.allOf(futures);
+    }
+
+    /**
+     * @return the total number of bytes of all resources in the shared cache
+     */
+    public static long resourceCacheBytes() {
+        synchronized (resourceCache) {
+            return resourceCacheBytes;
+        }
+    }
+
+    /**
+     * Remove all resources from the shared cache.
+     */
+    public static void clearResourceCache() {
+        synchronized (resourceCache) {
+            resourceCache.clear();
+            resourceCacheBytes = 0L;
+        }
+    }
 }
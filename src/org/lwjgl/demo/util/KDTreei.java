@@ -22,10 +22,32 @@ public class KDTreei<T extends Boundable<T>> {
     private static final int Y = 1;
     private static final int Z = 2;
 
+    private static final int NODE_STRIDE = 8;
+    private static final int NODE_RIGHT_OR_FIRST = 6;
+    private static final int NODE_COUNT = 7;
+
     public Node<T> root;
     private int maxVoxelCount = 4;
     private short[] intervals = new short[512];
 
+    /* Flattened tree for allocation-free queries */
+    private int[] nodes;
+    private Object[] leafBoundables;
+    private int[] stack;
+
+    /**
+     * Callback for the allocation-free queries of {@link KDTreei}.
+     */
+    @FunctionalInterface
+    public interface Visitor<T> {
+        /**
+         * @param boundable a boundable intersecting the query box
+         * @return <code>true</code> to continue the query; <code>false</code> to
+         *         terminate it
+         */
+        boolean visit(T boundable);
+    }
+
     public static class Box implements Boundable<Box> {
         public int minX, minY, minZ;
         public int maxX, maxY, maxZ;
@@ -339,7 +361,7 @@ public class KDTreei<T extends Boundable<T>> {
         }
 
         private void intersects(float minX, float minY, float minZ, float maxX, float maxY, float maxZ,
-                List<B> boundables) {
+                List<B> result) {
             Box b = bb;
             if (!b.intersects(minX, minY, minZ, maxX, maxY, maxZ))
                 return;
@@ -347,11 +369,11 @@ public class KDTreei<T extends Boundable<T>> {
                 for (B voxel : boundables) {
                     if (!voxel.intersects(minX, minY, minZ, maxX, maxY, maxZ))
                         continue;
-                    boundables.add(voxel);
+                    result.add(voxel);
                 }
             } else {
-                left.intersects(minX, minY, minZ, maxX, maxY, maxZ, boundables);
-                right.intersects(minX, minY, minZ, maxX, maxY, maxZ, boundables);
+                left.intersects(minX, minY, minZ, maxX, maxY, maxZ, result);
+                right.intersects(minX, minY, minZ, maxX, maxY, maxZ, result);
             }
         }
     }
@@ -384,6 +406,111 @@ public class KDTreei<T extends Boundable<T>> {
         root.intersects(minX, minY, minZ, maxX, maxY, maxZ, boundables);
     }
 
+    /**
+     * Visit all boundables intersecting the given box without allocating any
+     * memory.
+     * <p>
+     * This method uses a traversal stack owned by this tree and must therefore
+     * be externally synchronized. Use
+     * {@link #intersects(float, float, float, float, float, float, Visitor, int[])}
+     * to query concurrently.
+     * 
+     * @return <code>true</code> if the visitor terminated the query early;
+     *         <code>false</code> otherwise
+     */
+    public boolean intersects(float minX, float minY, float minZ, float maxX, float maxY, float maxZ,
+            Visitor<? super T> visitor) {
+        return intersects(minX, minY, minZ, maxX, maxY, maxZ, visitor, stack);
+    }
+
+    /**
+     * Visit all boundables intersecting the given box without allocating any
+     * memory, using the given traversal stack.
+     * 
+     * @param stack a traversal stack of at least {@link #stackSize()} elements
+     * @return <code>true</code> if the visitor terminated the query early;
+     *         <code>false</code> otherwise
+     */
+    @SuppressWarnings("unchecked")
+    public boolean intersects(float minX, float minY, float minZ, float maxX, float maxY, float maxZ,
+            Visitor<? super T> visitor, int[] stack) {
+        int[] ns = nodes;
+        int sp = 0;
+        stack[sp++] = 0;
+        while (sp > 0) {
+            int n = stack[--sp] * NODE_STRIDE;
+            if (!intersects(ns, n, minX, minY, minZ, maxX, maxY, maxZ))
+                continue;
+            int count = ns[n + NODE_COUNT];
+            if (count < 0) {
+                stack[sp++] = ns[n + NODE_RIGHT_OR_FIRST];
+                stack[sp++] = n / NODE_STRIDE + 1;
+                continue;
+            }
+            for (int i = ns[n + NODE_RIGHT_OR_FIRST], e = i + count; i < e; i++) {
+                T b = (T) leafBoundables[i];
+                if (b.intersects(minX, minY, minZ, maxX, maxY, maxZ) && !visitor.visit(b))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Count all boundables intersecting the given box without allocating any
+     * memory.
+     * <p>
+     * This method uses a traversal stack owned by this tree and must therefore
+     * be externally synchronized.
+     */
+    public int count(float minX, float minY, float minZ, float maxX, float maxY, float maxZ) {
+        return count(minX, minY, minZ, maxX, maxY, maxZ, stack);
+    }
+
+    /**
+     * Count all boundables intersecting the given box without allocating any
+     * memory, using the given traversal stack.
+     * 
+     * @param stack a traversal stack of at least {@link #stackSize()} elements
+     */
+    @SuppressWarnings("unchecked")
+    public int count(float minX, float minY, float minZ, float maxX, float maxY, float maxZ, int[] stack) {
+        int[] ns = nodes;
+        int sp = 0, result = 0;
+        stack[sp++] = 0;
+        while (sp > 0) {
+            int n = stack[--sp] * NODE_STRIDE;
+            if (!intersects(ns, n, minX, minY, minZ, maxX, maxY, maxZ))
+                continue;
+            int count = ns[n + NODE_COUNT];
+            if (count < 0) {
+                stack[sp++] = ns[n + NODE_RIGHT_OR_FIRST];
+                stack[sp++] = n / NODE_STRIDE + 1;
+                continue;
+            }
+            for (int i = ns[n + NODE_RIGHT_OR_FIRST], e = i + count; i < e; i++) {
+                if (((T) leafBoundables[i]).intersects(minX, minY, minZ, maxX, maxY, maxZ))
+                    result++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the minimum size of a traversal stack to use with
+     *         {@link #intersects(float, float, float, float, float, float, Visitor, int[])}
+     *         and {@link #count(float, float, float, float, float, float, int[])}
+     */
+    public int stackSize() {
+        return stack.length;
+    }
+
+    private static boolean intersects(int[] ns, int n, float minX, float minY, float minZ, float maxX, float maxY,
+            float maxZ) {
+        return ns[n + 3] >= minX && ns[n + 4] >= minY && ns[n + 5] >= minZ && ns[n] <= maxX && ns[n + 1] <= maxY
+                && ns[n + 2] <= maxZ;
+    }
+
     public Node<T> findNode(Vector3d cameraPosition) {
         return root.findNode(cameraPosition);
     }
@@ -400,6 +527,54 @@ public class KDTreei<T extends Boundable<T>> {
         buildTree(root, 0, maxDepth);
         root.processNode(root.ropes = neighbors);
         root.optimizeRopes();
+        flatten();
+    }
+
+    /**
+     * Linearize the tree in depth-first order into an int array, in which the
+     * left child of an inner node directly follows its parent.
+     */
+    private void flatten() {
+        int[] counts = new int[3];
+        count(root, 1, counts);
+        nodes = new int[counts[0] * NODE_STRIDE];
+        leafBoundables = new Object[counts[1]];
+        stack = new int[counts[2] + 1];
+        counts[0] = counts[1] = 0;
+        flatten(root, counts);
+    }
+
+    private static void count(Node<?> node, int depth, int[] counts) {
+        counts[0]++;
+        counts[2] = Math.max(counts[2], depth);
+        if (node.left == null) {
+            counts[1] += node.boundables.size();
+        } else {
+            count(node.left, depth + 1, counts);
+            count(node.right, depth + 1, counts);
+        }
+    }
+
+    private int flatten(Node<T> node, int[] counts) {
+        int i = counts[0]++, n = i * NODE_STRIDE;
+        Box b = node.bb;
+        nodes[n] = b.minX;
+        nodes[n + 1] = b.minY;
+        nodes[n + 2] = b.minZ;
+        nodes[n + 3] = b.maxX;
+        nodes[n + 4] = b.maxY;
+        nodes[n + 5] = b.maxZ;
+        if (node.left == null) {
+            nodes[n + NODE_RIGHT_OR_FIRST] = counts[1];
+            nodes[n + NODE_COUNT] = node.boundables.size();
+            for (int j = 0; j < node.boundables.size(); j++)
+                leafBoundables[counts[1]++] = node.boundables.get(j);
+        } else {
+            flatten(node.left, counts);
+            nodes[n + NODE_RIGHT_OR_FIRST] = flatten(node.right, counts);
+            nodes[n + NODE_COUNT] = -1;
+        }
+        return i;
     }
 
     private void buildTree(Node<T> node, int depth, int maxDepth) {
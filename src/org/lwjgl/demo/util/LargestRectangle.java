@@ -4,63 +4,172 @@
  */
 package org.lwjgl.demo.util;
 
-import static java.lang.Math.*;
-
-import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
 
 /**
+ * Decomposes the cells of a voxel layer into rectangles by repeatedly extracting the largest
+ * rectangle.
+ * <p>
+ * Every cell keeps the height of the column of cells ending in it, and every row keeps the largest
+ * rectangle whose bottom edge lies in that row, found with the stack-based largest rectangle in a
+ * histogram algorithm in <code>O(width)</code>. After a rectangle is extracted, only the column
+ * heights below it and the rows whose heights changed are updated.
+ * <p>
+ * Instances hold the scratch memory for the largest layer seen so far and are not thread-safe, but
+ * different instances can decompose different layers concurrently, see
+ * {@link #mergeLayers(byte[], int, int, int, int, Consumer)}.
+ *
  * @author Kai Burjack
  */
 public class LargestRectangle {
-    private static final byte[] a = new byte[256 * 256];
-    private static final short[] w = new short[256 * 256];
-    private static final short[] d = new short[256 * 256];
+    private byte[] a = new byte[0];
+    private int[] h = new int[0];
+    private int[] stack = new int[0];
+    private int[] rowArea = new int[0], rowC0 = new int[0], rowC1 = new int[0], rowHeight = new int[0];
+    private int width, depth;
 
-    public static void merge(byte[] arr, int width, int depth, int layer, int minArea, List<KDTreei.Voxel> voxels) {
-        System.arraycopy(arr, width * depth * layer, a, 0, width * depth);
-        int maxArea = 0;
-        do {
-            Arrays.fill(w, (short) 0);
-            Arrays.fill(d, (short) 0);
-            int c0 = 0, r0 = 0, c1 = 0, r1 = 0;
-            maxArea = 0;
+    /**
+     * Decompose the cells of a layer with value <code>~0</code> into rectangles.
+     * <p>
+     * Rectangles are extracted in order of decreasing area, until the last extracted rectangle is
+     * smaller than <code>minArea</code>. All remaining cells are emitted as single voxels.
+     *
+     * @param arr     the layers, each with <code>width * depth</code> cells indexed by
+     *                <code>x + width * z</code>
+     * @param width   the number of cells along X
+     * @param depth   the number of cells along Z
+     * @param layer   the index of the layer in <code>arr</code>, which is also used as the Y
+     *                coordinate of the emitted voxels
+     * @param minArea the area from which on rectangles are extracted
+     * @param voxels  will be called with every rectangle
+     */
+    public void decompose(byte[] arr, int width, int depth, int layer, int minArea, Consumer<KDTreei.Voxel> voxels) {
+        init(arr, width, depth, layer);
+        while (true) {
+            int best = -1, bestArea = 0;
             for (int r = 0; r < depth; r++)
-                for (int c = 0; c < width; c++) {
-                    if (a[r * width + c] != ~0)
-                        continue;
-                    if (r == 0)
-                        d[r * width + c] = 1;
-                    else
-                        d[r * width + c] = (short) (d[(r - 1) * width + c] + 1);
-                    if (c == 0)
-                        w[r * width + c] = 1;
-                    else
-                        w[r * width + c] = (short) (w[r * width + c - 1] + 1);
-                    int minw = w[r * width + c];
-                    for (int dh = 0; dh < d[r * width + c]; dh++) {
-                        minw = min(minw, w[(r - dh) * width + c]);
-                        int area = (dh + 1) * minw;
-                        if (area > maxArea) {
-                            maxArea = area;
-                            r0 = r - dh;
-                            c0 = c - minw + 1;
-                            r1 = r;
-                            c1 = c;
-                        }
-                    }
+                if (rowArea[r] > bestArea) {
+                    bestArea = rowArea[r];
+                    best = r;
                 }
-            for (int r = r0; r <= r1; r++)
-                for (int c = c0; c <= c1; c++)
-                    a[r * width + c] = 1;
-            if (maxArea > 0)
-                voxels.add(new KDTreei.Voxel(c0, layer, r0, c1 - c0, 0, r1 - r0, 0));
-        } while (maxArea >= minArea);
+            if (best < 0)
+                break;
+            int r0 = best - rowHeight[best] + 1, r1 = best, c0 = rowC0[best], c1 = rowC1[best];
+            voxels.accept(new KDTreei.Voxel(c0, layer, r0, c1 - c0, 0, r1 - r0, 0));
+            remove(r0, c0, r1, c1);
+            if (bestArea < minArea)
+                break;
+        }
         for (int r = 0; r < depth; r++)
             for (int c = 0; c < width; c++) {
                 if (a[r * width + c] != ~0)
                     continue;
-                voxels.add(new KDTreei.Voxel(c, layer, r, 0));
+                voxels.accept(new KDTreei.Voxel(c, layer, r, 0));
+            }
+    }
+
+    private void init(byte[] arr, int width, int depth, int layer) {
+        this.width = width;
+        this.depth = depth;
+        int n = width * depth;
+        if (a.length < n) {
+            a = new byte[n];
+            h = new int[n];
+        }
+        if (stack.length < width + 1)
+            stack = new int[width + 1];
+        if (rowArea.length < depth) {
+            rowArea = new int[depth];
+            rowC0 = new int[depth];
+            rowC1 = new int[depth];
+            rowHeight = new int[depth];
+        }
+        System.arraycopy(arr, n * layer, a, 0, n);
+        for (int r = 0; r < depth; r++) {
+            for (int c = 0, i = r * width; c < width; c++, i++)
+                h[i] = a[i] != ~0 ? 0 : r > 0 ? h[i - width] + 1 : 1;
+            largestInRow(r);
+        }
+    }
+
+    /**
+     * Mark the cells of the given rectangle as done and update the column heights and the largest
+     * rectangles of all affected rows.
+     */
+    private void remove(int r0, int c0, int r1, int c1) {
+        for (int r = r0; r <= r1; r++)
+            for (int c = c0; c <= c1; c++)
+                a[r * width + c] = 1;
+        int last = r1;
+        for (int c = c0; c <= c1; c++) {
+            for (int r = r0; r < depth; r++) {
+                int i = r * width + c;
+                int nh = a[i] != ~0 ? 0 : r > 0 ? h[i - width] + 1 : 1;
+                if (r > r1 && nh == h[i])
+                    break;
+                h[i] = nh;
+                last = Math.max(last, r);
+            }
+        }
+        for (int r = r0; r <= last; r++)
+            largestInRow(r);
+    }
+
+    /**
+     * Find the largest rectangle whose bottom edge lies in row <code>r</code>.
+     */
+    private void largestInRow(int r) {
+        int base = r * width, sp = 0, bestArea = 0, bestC0 = 0, bestC1 = 0, bestHeight = 0;
+        for (int c = 0; c <= width; c++) {
+            int hc = c < width ? h[base + c] : 0;
+            while (sp > 0 && h[base + stack[sp - 1]] >= hc) {
+                int height = h[base + stack[--sp]];
+                int left = sp > 0 ? stack[sp - 1] + 1 : 0;
+                int area = height * (c - left);
+                if (area > bestArea) {
+                    bestArea = area;
+                    bestC0 = left;
+                    bestC1 = c - 1;
+                    bestHeight = height;
+                }
             }
+            stack[sp++] = c;
+        }
+        rowArea[r] = bestArea;
+        rowC0[r] = bestC0;
+        rowC1[r] = bestC1;
+        rowHeight[r] = bestHeight;
+    }
+
+    /**
+     * Decompose all <code>height</code> layers of <code>arr</code> concurrently, each like
+     * {@link #decompose(byte[], int, int, int, int, Consumer)}.
+     * <p>
+     * The voxels are passed to <code>voxels</code> in the calling thread, in order of their
+     * layers.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public static void mergeLayers(byte[] arr, int width, int depth, int height, int minArea,
+            Consumer<KDTreei.Voxel> voxels) {
+        ThreadLocal<LargestRectangle> rectangles = ThreadLocal.withInitial(LargestRectangle::new);
+        List<KDTreei.Voxel>[] layers = new List[height];
+        IntStream.range(0, height).parallel().forEach(y -> {
+            List<KDTreei.Voxel> layer = new ArrayList<>();
+            rectangles.get().decompose(arr, width, depth, y, minArea, layer::add);
+            layers[y] = layer;
+        });
+        for (List<KDTreei.Voxel> layer : layers)
+            layer.forEach(voxels);
+    }
+
+    /**
+     * Decompose a single layer like {@link #decompose(byte[], int, int, int, int, Consumer)} and
+     * add the voxels to the given list.
+     */
+    public static void merge(byte[] arr, int width, int depth, int layer, int minArea, List<KDTreei.Voxel> voxels) {
+        new LargestRectangle().decompose(arr, width, depth, layer, minArea, voxels::add);
     }
 }
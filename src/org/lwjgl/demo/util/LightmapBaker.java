@@ -0,0 +1,270 @@
+/*
+ * Copyright LWJGL. All rights reserved.
+ * License terms: https://www.lwjgl.org/license
+ */
+package org.lwjgl.demo.util;
+
+import static java.lang.Math.*;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import org.lwjgl.demo.util.GreedyMeshing.Face;
+import org.lwjgl.demo.util.KDTreei.Node;
+import org.lwjgl.demo.util.KDTreei.Voxel;
+
+/**
+ * Headless CPU lightmap baker for greedy-meshed {@link Face}s whose lightmap
+ * coordinates were packed by {@link FacePacker#pack(List)}.
+ * <p>
+ * For every lightmap texel, cosine-weighted hemisphere rays are traced against
+ * a {@link KDTreei} of {@link Voxel}s to compute ambient occlusion (or, with a
+ * sky color other than white, sky irradiance). This mirrors what the
+ * "voxellightmapping" lightmap fragment shader computes on the GPU, so both
+ * results can be mixed: every call to {@link #bake(int)} adds more samples to
+ * the running average of each texel and faces are distributed over all
+ * available cores.
+ * <p>
+ * The result can be written to and read from a small cache file, so that a demo
+ * can skip baking at startup.
+ *
+ * @author Kai Burjack
+ */
+public class LightmapBaker {
+    private static final int MAGIC = 0x4C4D4150; // "LMAP"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 6 * Integer.BYTES + Long.BYTES;
+    private static final int MAX_STACK_DEPTH = 64;
+    private static final float NORMAL_OFFSET = 1E-4f;
+    private static final float EDGE_OFFSET = 1E-3f;
+
+    private final List<Face> faces;
+    private final KDTreei<Voxel> tree;
+    private final int width, height;
+    private final long key;
+    private final float[] texels;
+    private int samples;
+
+    /**
+     * The radius within which occluders are considered. Defaults to infinity.
+     */
+    public float maxDistance = Float.POSITIVE_INFINITY;
+
+    /**
+     * The constant radiance of the sky. White yields plain ambient occlusion.
+     */
+    public float skyR = 1.0f, skyG = 1.0f, skyB = 1.0f;
+
+    /**
+     * @param faces  the faces with their lightmap coordinates already packed
+     * @param width  the width of the lightmap (see {@link FacePacker.PackResult#w})
+     * @param height the height of the lightmap (see {@link FacePacker.PackResult#h})
+     * @param tree   the kd-tree of all voxels used to trace occlusion rays
+     */
+    public LightmapBaker(List<Face> faces, int width, int height, KDTreei<Voxel> tree) {
+        this.faces = faces;
+        this.tree = tree;
+        this.width = width;
+        this.height = height;
+        this.key = key(faces, width, height);
+        this.texels = new float[width * height * 4];
+    }
+
+    /**
+     * Compute a hash identifying the given packed faces, used to validate a
+     * cached lightmap. The hash does not depend on the order of the faces.
+     */
+    public static long key(List<Face> faces, int width, int height) {
+        long h = mix((long) width << 32 | height);
+        for (int i = 0; i < faces.size(); i++) {
+            Face f = faces.get(i);
+            h += mix((long) (f.u0 | f.v0 << 16) << 32 | (f.u1 | f.v1 << 16) & 0xFFFFFFFFL)
+               ^ mix((long) (f.p | f.s << 16) << 32 | (f.tx | f.ty << 16) & 0xFFFFFFFFL);
+        }
+        return h;
+    }
+
+    private static long mix(long h) {
+        h = (h ^ h >>> 33) * 0xff51afd7ed558ccdL;
+        h = (h ^ h >>> 33) * 0xc4ceb9fe1a85ec53L;
+        return h ^ h >>> 33;
+    }
+
+    public int width() {
+        return width;
+    }
+
+    public int height() {
+        return height;
+    }
+
+    /**
+     * @return the number of samples accumulated so far per texel
+     */
+    public int samples() {
+        return samples;
+    }
+
+    /**
+     * @return the RGBA texels of the lightmap in row-major order
+     */
+    public float[] texels() {
+        return texels;
+    }
+
+    /**
+     * Trace <code>numSamples</code> additional rays for every texel and blend
+     * them into the current result.
+     *
+     * @param numSamples the number of samples to add per texel
+     * @return the total number of samples per texel
+     */
+    public int bake(int numSamples) {
+        int first = samples;
+        IntStream.range(0, faces.size()).parallel().forEach(i -> bakeFace(faces.get(i), first, numSamples));
+        samples += numSamples;
+        return samples;
+    }
+
+    private void bakeFace(Face f, int firstSample, int numSamples) {
+        Node<Voxel>[] stack = newStack();
+        int axis = f.s >>> 1;
+        float n = (f.s & 1) != 0 ? 1.0f : -1.0f;
+        float[] o = new float[3], nrm = new float[3], d = new float[3];
+        nrm[axis] = n;
+        int uAxis = axis == 0 ? 1 : axis == 1 ? 2 : 0, vAxis = axis == 0 ? 2 : axis == 1 ? 0 : 1;
+        for (int j = 0; j < f.th(); j++) {
+            for (int i = 0; i < f.tw(); i++) {
+                o[axis] = f.p + n * NORMAL_OFFSET;
+                o[uAxis] = min(max(f.u0 + i, f.u0 + EDGE_OFFSET), f.u1 - EDGE_OFFSET);
+                o[vAxis] = min(max(f.v0 + j, f.v0 + EDGE_OFFSET), f.v1 - EDGE_OFFSET);
+                int tx = f.tx + i, ty = f.ty + j, t = (tx + ty * width) * 4;
+                float visible = 0.0f;
+                for (int s = 0; s < numSamples; s++) {
+                    int h = hash(tx, ty, firstSample + s);
+                    cosineWeightedDirection(nrm, (h & 0xFFFF) / 65536.0f, (h >>> 16) / 65536.0f, d);
+                    if (!occluded(o, d, stack))
+                        visible += 1.0f;
+                }
+                float blend = (float) firstSample / (firstSample + numSamples), v = visible / (firstSample + numSamples);
+                texels[t] = texels[t] * blend + skyR * v;
+                texels[t + 1] = texels[t + 1] * blend + skyG * v;
+                texels[t + 2] = texels[t + 2] * blend + skyB * v;
+                texels[t + 3] = 1.0f;
+            }
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Node<Voxel>[] newStack() {
+        return new Node[MAX_STACK_DEPTH];
+    }
+
+    /**
+     * Integer hash from "Hash Functions for GPU Rendering",
+     * <a href="http://www.jcgt.org/published/0009/03/02/">pcg3d</a>.
+     */
+    private static int hash(int x, int y, int z) {
+        x = x * 1664525 + 1013904223;
+        y = y * 1664525 + 1013904223;
+        z = z * 1664525 + 1013904223;
+        x += y * z; y += z * x; z += x * y;
+        x ^= x >>> 16; y ^= y >>> 16; z ^= z >>> 16;
+        x += y * z; y += z * x; z += x * y;
+        return x ^ y ^ z;
+    }
+
+    private static void cosineWeightedDirection(float[] n, float r0, float r1, float[] d) {
+        float c = (float) sqrt(r1), s = (float) sqrt(1.0f - r1), p = (float) (2.0 * PI * r0);
+        float x = (float) cos(p) * s, y = (float) sin(p) * s;
+        // build an orthonormal basis around the axis-aligned normal
+        int axis = n[0] != 0.0f ? 0 : n[1] != 0.0f ? 1 : 2;
+        d[axis] = c * n[axis];
+        d[(axis + 1) % 3] = x;
+        d[(axis + 2) % 3] = y;
+    }
+
+    private boolean occluded(float[] o, float[] d, Node<Voxel>[] stack) {
+        float idx = 1.0f / d[0], idy = 1.0f / d[1], idz = 1.0f / d[2];
+        int sp = 0;
+        stack[sp++] = tree.root;
+        while (sp > 0) {
+            Node<Voxel> node = stack[--sp];
+            KDTreei.Box b = node.bb;
+            if (!intersectsBox(o, idx, idy, idz, b.minX, b.minY, b.minZ, b.maxX, b.maxY, b.maxZ))
+                continue;
+            if (node.left == null) {
+                List<Voxel> vs = node.boundables;
+                for (int i = 0; i < vs.size(); i++) {
+                    Voxel v = vs.get(i);
+                    if (intersectsBox(o, idx, idy, idz, v.min(0), v.min(1), v.min(2), v.max(0), v.max(1), v.max(2)))
+                        return true;
+                }
+            } else {
+                stack[sp++] = node.left;
+                stack[sp++] = node.right;
+            }
+        }
+        return false;
+    }
+
+    private boolean intersectsBox(float[] o, float idx, float idy, float idz, float minX, float minY, float minZ,
+            float maxX, float maxY, float maxZ) {
+        float t1 = (minX - o[0]) * idx, t2 = (maxX - o[0]) * idx;
+        float t3 = (minY - o[1]) * idy, t4 = (maxY - o[1]) * idy;
+        float t5 = (minZ - o[2]) * idz, t6 = (maxZ - o[2]) * idz;
+        float tn = max(max(min(t1, t2), min(t3, t4)), min(t5, t6));
+        float tf = min(min(max(t1, t2), max(t3, t4)), max(t5, t6));
+        return tf > 0.0f && tn <= tf && tn < maxDistance;
+    }
+
+    /**
+     * Write the current result to the given file.
+     * <p>
+     * The file is little-endian and consists of a header (magic, version, width,
+     * height, samples, reserved, {@link #key(List, int, int) key}) followed by
+     * <code>width * height</code> RGBA float texels.
+     */
+    public void write(Path file) throws IOException {
+        ByteBuffer bb = ByteBuffer.allocateDirect(HEADER_SIZE + texels.length * Float.BYTES)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        bb.putInt(MAGIC).putInt(VERSION).putInt(width).putInt(height).putInt(samples).putInt(0).putLong(key);
+        bb.asFloatBuffer().put(texels);
+        bb.clear();
+        try (FileChannel fc = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (bb.hasRemaining())
+                fc.write(bb);
+        }
+    }
+
+    /**
+     * Read a lightmap previously written via {@link #write(Path)} into this
+     * baker, so that baking can continue from there.
+     *
+     * @return <code>true</code> if the file exists and was baked for the same
+     *         faces and lightmap size; <code>false</code> otherwise
+     */
+    public boolean read(Path file) throws IOException {
+        if (!Files.isRegularFile(file))
+            return false;
+        try (FileChannel fc = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (fc.size() != HEADER_SIZE + (long) texels.length * Float.BYTES)
+                return false;
+            ByteBuffer bb = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size()).order(ByteOrder.LITTLE_ENDIAN);
+            if (bb.getInt() != MAGIC || bb.getInt() != VERSION || bb.getInt() != width || bb.getInt() != height)
+                return false;
+            int s = bb.getInt();
+            bb.getInt();
+            if (bb.getLong() != key)
+                return false;
+            bb.asFloatBuffer().get(texels);
+            samples = s;
+            return true;
+        }
+    }
+}
@@ -8,9 +8,19 @@ import static java.lang.Math.*;
 import static java.nio.charset.StandardCharsets.*;
 
 import java.io.*;
+import java.nio.*;
+import java.util.*;
+import java.util.stream.IntStream;
 
 /**
  * Loader for MagicaVoxel .vox files.
+ * <p>
+ * Files can either be read from an {@link InputStream} one voxel at a time, or
+ * from a {@link ByteBuffer} holding the whole file (e.g. memory-mapped via
+ * {@link IOUtils#ioResourceToByteBuffer(String, int)}). The latter decodes the
+ * voxels of each <code>XYZI</code> chunk in bulk and can deliver them in
+ * batches to a {@link BatchCallback} or write them straight into a dense voxel
+ * field.
  * 
  * @author Kai Burjack
  */
@@ -22,6 +32,21 @@ public class MagicaVoxelLoader {
         void paletteMaterial(int i, Material m);
     }
 
+    /**
+     * Callback receiving voxels in batches of packed ints. Each voxel is packed
+     * as <code>x | y &lt;&lt; 8 | z &lt;&lt; 16 | c &lt;&lt; 24</code>, which is
+     * exactly the little-endian layout of the file.
+     */
+    public interface BatchCallback {
+        void size(int model, int x, int y, int z);
+        /**
+         * May be called concurrently from multiple threads, even for the same
+         * model.
+         */
+        void voxels(int model, int[] packed, int offset, int count);
+        void paletteMaterial(int i, Material m);
+    }
+
     public static class Chunk {
         public int id;
         public int size;
@@ -80,8 +105,19 @@ public class MagicaVoxelLoader {
             0xffaa0000, 0xff880000, 0xff770000, 0xff550000, 0xff440000, 0xff220000, 0xff110000, 0xffeeeeee, 0xffdddddd,
             0xffbbbbbb, 0xffaaaaaa, 0xff888888, 0xff777777, 0xff555555, 0xff444444, 0xff222222, 0xff111111 };
 
+    private static final int BATCH_SIZE = 1 << 16;
+
     private final byte[] buf = new byte[4];
 
+    /**
+     * A <code>SIZE</code>/<code>XYZI</code> chunk pair in a file read from a
+     * {@link ByteBuffer}.
+     */
+    private static class Model {
+        int sizeX, sizeY, sizeZ;
+        IntBuffer voxels;
+    }
+
     private static void skip(InputStream input, int skip) throws IOException {
         while (skip > 0) {
             int skipped = (int) input.skip(skip);
@@ -129,36 +165,8 @@ public class MagicaVoxelLoader {
                 int mid = read32(input), dc = read32(input);
                 Material mat = mats[mid];
                 numMaterials = max(numMaterials, mid + 1);
-                for (int i = 0; i < dc; i++) {
-                    String k = readString(input);
-                    String v = readString(input);
-                    switch (k) {
-                    case "_type":
-                        mat.type = Material.Type.valueOf(v);
-                        break;
-                    case "_weight":
-                        mat.weight = Float.parseFloat(v);
-                        break;
-                    case "_rough":
-                        mat.rought = Float.parseFloat(v);
-                        break;
-                    case "_spec":
-                        mat.spec = Float.parseFloat(v);
-                        break;
-                    case "_ior":
-                        mat.ior = Float.parseFloat(v);
-                        break;
-                    case "_att":
-                        mat.att = Float.parseFloat(v);
-                        break;
-                    case "_flux":
-                        mat.flux = Float.parseFloat(v);
-                        break;
-                    case "_plastic":
-                        mat.plastic = true;
-                        break;
-                    }
-                }
+                for (int i = 0; i < dc; i++)
+                    parseMaterialProperty(mat, readString(input), readString(input));
             } else {
                 // System.out.println("Unknown chunk type: " + magicaValueString(chunk.id));
                 skip(input, chunk.size + chunk.childrenCount);
@@ -172,6 +180,221 @@ public class MagicaVoxelLoader {
             callback.paletteMaterial(p, mats[p]);
     }
 
+    /**
+     * Read the file in the given buffer, producing the same callback events as
+     * {@link #read(InputStream, Callback)}.
+     * <p>
+     * The position of the given buffer is not modified.
+     */
+    public void read(ByteBuffer buffer, Callback callback) throws IOException {
+        Material[] mats = new Material[512];
+        List<Model> models = new ArrayList<>();
+        int numMaterials = readChunks(buffer, models, mats);
+        int[] batch = new int[BATCH_SIZE];
+        for (Model m : models) {
+            callback.size(m.sizeX, m.sizeY, m.sizeZ);
+            IntBuffer voxels = m.voxels.duplicate();
+            while (voxels.hasRemaining()) {
+                int n = min(batch.length, voxels.remaining());
+                voxels.get(batch, 0, n);
+                for (int i = 0; i < n; i++) {
+                    int v = batch[i];
+                    callback.voxel(v & 0xFF, v >>> 8 & 0xFF, v >>> 16 & 0xFF, (byte) (v >>> 24));
+                }
+            }
+        }
+        for (int p = 0; p < numMaterials; p++)
+            callback.paletteMaterial(p, mats[p]);
+    }
+
+    /**
+     * Read the file in the given buffer and deliver the voxels of all models in
+     * batches.
+     * <p>
+     * All {@link BatchCallback#size(int, int, int, int) size} events are
+     * delivered first, in file order. Afterwards, the voxels of all models are
+     * decoded in parallel and {@link BatchCallback#voxels(int, int[], int, int)}
+     * is called concurrently from the common fork-join pool. Palette materials
+     * are delivered last.
+     * <p>
+     * The position of the given buffer is not modified.
+     */
+    public void read(ByteBuffer buffer, BatchCallback callback) throws IOException {
+        Material[] mats = new Material[512];
+        List<Model> models = new ArrayList<>();
+        int numMaterials = readChunks(buffer, models, mats);
+        List<long[]> batches = new ArrayList<>();
+        for (int i = 0; i < models.size(); i++) {
+            Model m = models.get(i);
+            callback.size(i, m.sizeX, m.sizeY, m.sizeZ);
+            for (int o = 0; o < m.voxels.capacity(); o += BATCH_SIZE)
+                batches.add(new long[] { i, o, min(BATCH_SIZE, m.voxels.capacity() - o) });
+        }
+        IntStream.range(0, batches.size()).parallel().forEach(b -> {
+            long[] batch = batches.get(b);
+            int model = (int) batch[0], count = (int) batch[2];
+            int[] packed = new int[count];
+            IntBuffer voxels = models.get(model).voxels.duplicate();
+            voxels.position((int) batch[1]);
+            voxels.get(packed);
+            callback.voxels(model, packed, 0, count);
+        });
+        for (int p = 0; p < numMaterials; p++)
+            callback.paletteMaterial(p, mats[p]);
+    }
+
+    /**
+     * Read the first model of the file in the given buffer straight into a
+     * dense voxel field, using the Y-up convention of the demos:
+     * <code>(x, y, z)</code> in the file becomes <code>(x, z, sizeY - y - 1)</code>,
+     * and that is stored at <code>(x + 1) + (w + 2) * ((z + 1) + (d + 2) * (y + 1))</code>
+     * where <code>w</code> and <code>d</code> are the converted sizes along X and Z.
+     * <p>
+     * The given callback receives the size of the model (unconverted) before
+     * the field is written to, as well as all palette materials, but no
+     * individual voxels.
+     *
+     * @param field  the field to write to. Must hold at least
+     *               <code>(w + 2) * (h + 2) * (d + 2)</code> voxels
+     * @param bounds will hold the converted minimum and (inclusive) maximum
+     *               coordinates of all voxels as <code>minX, minY, minZ, maxX, maxY, maxZ</code>.
+     *               May be <code>null</code>
+     */
+    public void readField(ByteBuffer buffer, byte[] field, int[] bounds, Callback callback) throws IOException {
+        Material[] mats = new Material[512];
+        List<Model> models = new ArrayList<>();
+        int numMaterials = readChunks(buffer, models, mats);
+        if (models.isEmpty())
+            throw new IOException("No model");
+        Model m = models.get(0);
+        callback.size(m.sizeX, m.sizeY, m.sizeZ);
+        int w = m.sizeX, h = m.sizeZ, d = m.sizeY;
+        if (field.length < (w + 2) * (h + 2) * (d + 2))
+            throw new IllegalArgumentException("field");
+        int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, minZ = Integer.MAX_VALUE;
+        int maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE, maxZ = Integer.MIN_VALUE;
+        int[] batch = new int[BATCH_SIZE];
+        IntBuffer voxels = m.voxels.duplicate();
+        while (voxels.hasRemaining()) {
+            int n = min(batch.length, voxels.remaining());
+            voxels.get(batch, 0, n);
+            for (int i = 0; i < n; i++) {
+                int v = batch[i];
+                int x = v & 0xFF, y = v >>> 16 & 0xFF, z = d - (v >>> 8 & 0xFF) - 1;
+                field[(x + 1) + (w + 2) * ((z + 1) + (d + 2) * (y + 1))] = (byte) (v >>> 24);
+                minX = min(minX, x); minY = min(minY, y); minZ = min(minZ, z);
+                maxX = max(maxX, x); maxY = max(maxY, y); maxZ = max(maxZ, z);
+            }
+        }
+        if (bounds != null) {
+            bounds[0] = minX; bounds[1] = minY; bounds[2] = minZ;
+            bounds[3] = maxX; bounds[4] = maxY; bounds[5] = maxZ;
+        }
+        for (int p = 0; p < numMaterials; p++)
+            callback.paletteMaterial(p, mats[p]);
+    }
+
+    /**
+     * Walk all chunks of the file, collecting the models and the palette.
+     *
+     * @return the number of palette materials
+     */
+    private static int readChunks(ByteBuffer buffer, List<Model> models, Material[] mats) throws IOException {
+        ByteBuffer bb = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            if (bb.getInt() != magicValue('V', 'O', 'X', ' '))
+                throw new IOException();
+            if (bb.getInt() < 150)
+                throw new IOException();
+            if (bb.getInt() != magicValue('M', 'A', 'I', 'N'))
+                throw new IOException();
+            int mainSize = bb.getInt();
+            bb.getInt();
+            bb.position(bb.position() + mainSize);
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException(e);
+        }
+        boolean foundPalette = false;
+        for (int p = 0; p < 512; p++)
+            mats[p] = new Material();
+        int numMaterials = 0;
+        Model model = null;
+        while (bb.remaining() >= 12) {
+            int id = bb.getInt(), size = bb.getInt(), childrenSize = bb.getInt();
+            int end = bb.position() + size;
+            if (size < 0 || childrenSize < 0 || end + childrenSize > bb.limit())
+                throw new IOException("Truncated chunk");
+            if (id == magicValue('S', 'I', 'Z', 'E')) {
+                model = new Model();
+                model.sizeX = bb.getInt();
+                model.sizeY = bb.getInt();
+                model.sizeZ = bb.getInt();
+            } else if (id == magicValue('X', 'Y', 'Z', 'I')) {
+                if (model == null)
+                    throw new IOException("XYZI without SIZE");
+                int numVoxels = bb.getInt();
+                if (numVoxels < 0 || numVoxels > (size - 4) / 4)
+                    throw new IOException("Invalid XYZI chunk");
+                model.voxels = bb.slice().limit(numVoxels * 4).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+                models.add(model);
+                model = null;
+            } else if (id == magicValue('R', 'G', 'B', 'A')) {
+                mats[0].color = DEFAULT_PALETTE[0];
+                numMaterials = max(numMaterials, 256);
+                for (int p = 1; p < 256; p++)
+                    mats[p].color = bb.getInt();
+                foundPalette = true;
+            } else if (id == magicValue('M', 'A', 'T', 'L')) {
+                int mid = bb.getInt(), dc = bb.getInt();
+                Material mat = mats[mid];
+                numMaterials = max(numMaterials, mid + 1);
+                for (int i = 0; i < dc; i++)
+                    parseMaterialProperty(mat, readString(bb), readString(bb));
+            }
+            bb.position(end + childrenSize);
+        }
+        if (!foundPalette) {
+            for (int p = 0; p < numMaterials; p++)
+                mats[p].color = DEFAULT_PALETTE[p];
+        }
+        return numMaterials;
+    }
+
+    private static String readString(ByteBuffer bb) {
+        byte[] str = new byte[bb.getInt()];
+        bb.get(str);
+        return new String(str, US_ASCII);
+    }
+
+    private static void parseMaterialProperty(Material mat, String k, String v) {
+        switch (k) {
+        case "_type":
+            mat.type = Material.Type.valueOf(v);
+            break;
+        case "_weight":
+            mat.weight = Float.parseFloat(v);
+            break;
+        case "_rough":
+            mat.rought = Float.parseFloat(v);
+            break;
+        case "_spec":
+            mat.spec = Float.parseFloat(v);
+            break;
+        case "_ior":
+            mat.ior = Float.parseFloat(v);
+            break;
+        case "_att":
+            mat.att = Float.parseFloat(v);
+            break;
+        case "_flux":
+            mat.flux = Float.parseFloat(v);
+            break;
+        case "_plastic":
+            mat.plastic = true;
+            break;
+        }
+    }
+
     private void readChunk(InputStream input, Chunk chunk) throws IOException {
         chunk.id = read32(input);
         chunk.size = read32(input);
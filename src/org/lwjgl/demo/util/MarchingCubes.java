@@ -4,18 +4,39 @@
  */
 package org.lwjgl.demo.util;
 
+import static org.lwjgl.system.MemoryUtil.*;
+
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.stream.IntStream;
+
 import org.joml.Vector3i;
 
 /**
  * Custom marching cubes algorithm that generates vertices on an integer lattice
  * without linear interpolating the density values.
+ * <p>
+ * Vertices are located at the midpoints of cell edges, given in doubled lattice
+ * coordinates, i.e. the vertex on the edge between the lattice points
+ * <code>(x, y, z)</code> and <code>(x+1, y, z)</code> is at
+ * <code>(2x+1, 2y, 2z)</code>.
+ * <p>
+ * {@link #march(byte[], byte, int, int, int)} generates an unindexed triangle
+ * list, while
+ * {@link #march(byte[], byte, int, int, int, DynamicByteBuffer, DynamicByteBuffer)}
+ * generates an indexed mesh in which every edge vertex is shared by all cells
+ * around the edge.
  * 
  * @author Kai Burjack
  */
 public class MarchingCubes {
 
+    /**
+     * Number of cell slices along Z processed by a single parallel task.
+     */
+    private static final int BLOCK_SLICES = 8;
+
     private static final short[] E = { 0x0, 0x109, 0x203, 0x30a, 0x406, 0x50f, 0x605, 0x70c, 0x80c, 0x905, 0xa0f, 0xb06,
             0xc0a, 0xd03, 0xe09, 0xf00, 0x190, 0x99, 0x393, 0x29a, 0x596, 0x49f, 0x795, 0x69c, 0x99c, 0x895, 0xb9f,
             0xa96, 0xd9a, 0xc93, 0xf99, 0xe90, 0x230, 0x339, 0x33, 0x13a, 0x636, 0x73f, 0x435, 0x53c, 0xa3c, 0xb35,
@@ -130,4 +151,186 @@ public class MarchingCubes {
         return ci;
     }
 
+    /**
+     * The output of a single slab of {@link #BLOCK_SLICES} cell slices.
+     */
+    private static final class Block {
+        final int z0, z1;
+        DynamicByteBuffer positions, indices;
+        int vertexCount, offset;
+        /**
+         * The indices of the vertices on the X and Y edges of the top lattice plane
+         * <code>z1</code>, which are shared with the next block.
+         */
+        int[] topX, topY;
+
+        Block(int z0, int z1) {
+            this.z0 = z0;
+            this.z1 = z1;
+        }
+    }
+
+    /**
+     * Generate an indexed mesh of the isosurface and append its vertices and
+     * indices to the given buffers.
+     * <p>
+     * The grid is split into slabs along Z which are processed in parallel. Within
+     * a slab, the vertices on the edges of the current and the next lattice plane
+     * are cached per slice, so that every vertex is created only once. Vertices on
+     * the plane between two slabs are created by the lower slab and referenced by
+     * the upper one, so the result does not depend on the order in which slabs
+     * complete.
+     * <p>
+     * Every vertex is written as three <code>int</code>s in doubled lattice
+     * coordinates, and every triangle as three <code>int</code> indices, counted
+     * from the first vertex in <code>positions</code>.
+     *
+     * @param ds        the densities of <code>dx * dy * dz</code> lattice points,
+     *                  indexed by <code>x + dx * (y + dy * z)</code>
+     * @param iso       the iso value. Lattice points with a greater density are
+     *                  inside
+     * @param dx        the number of lattice points along X
+     * @param dy        the number of lattice points along Y
+     * @param dz        the number of lattice points along Z
+     * @param positions will receive the vertices
+     * @param indices   will receive the indices
+     * @return the number of vertices appended to <code>positions</code>
+     */
+    public static int march(byte[] ds, byte iso, int dx, int dy, int dz, DynamicByteBuffer positions,
+            DynamicByteBuffer indices) {
+        DynamicByteBuffer.Pool pool = new DynamicByteBuffer.Pool(0);
+        try {
+            return march(ds, iso, dx, dy, dz, positions, indices, pool);
+        } finally {
+            pool.clear();
+        }
+    }
+
+    /**
+     * Like {@link #march(byte[], byte, int, int, int, DynamicByteBuffer, DynamicByteBuffer)},
+     * but takes the per-slab scratch buffers from the given pool and returns them to it, so
+     * that they can be reused by subsequent calls. The caller owns the pool and is responsible
+     * for {@link DynamicByteBuffer.Pool#clear() clearing} it.
+     *
+     * @param pool the pool providing the per-slab scratch buffers
+     */
+    public static int march(byte[] ds, byte iso, int dx, int dy, int dz, DynamicByteBuffer positions,
+            DynamicByteBuffer indices, DynamicByteBuffer.Pool pool) {
+        int slices = Math.max(0, dz - 1);
+        Block[] blocks = new Block[(slices + BLOCK_SLICES - 1) / BLOCK_SLICES];
+        for (int b = 0; b < blocks.length; b++)
+            blocks[b] = new Block(b * BLOCK_SLICES, Math.min(slices, (b + 1) * BLOCK_SLICES));
+        IntStream.range(0, blocks.length).parallel().forEach(b -> marchBlock(ds, iso, dx, dy, blocks[b], b > 0, pool));
+        int base = positions.pos / 12, total = 0, indexBytes = 0;
+        for (Block block : blocks) {
+            block.offset = base + total;
+            total += block.vertexCount;
+            indexBytes += block.indices.pos;
+        }
+        positions.reserve(total * 12);
+        indices.reserve(indexBytes);
+        long positionsAddr = positions.addr + positions.pos, indicesAddr = indices.addr + indices.pos;
+        long[] indexOffsets = new long[blocks.length];
+        for (int b = 1; b < blocks.length; b++)
+            indexOffsets[b] = indexOffsets[b - 1] + blocks[b - 1].indices.pos;
+        IntStream.range(0, blocks.length).parallel().forEach(b -> {
+            Block block = blocks[b], below = b > 0 ? blocks[b - 1] : null;
+            memCopy(block.positions.addr, positionsAddr + (long) (block.offset - base) * 12, block.positions.pos);
+            long dst = indicesAddr + indexOffsets[b];
+            for (int i = 0, n = block.indices.pos >>> 2; i < n; i++) {
+                int v = memGetInt(block.indices.addr + 4L * i);
+                /* negative indices reference a vertex on the plane shared with the block below */
+                int global;
+                if (v >= 0)
+                    global = block.offset + v;
+                else {
+                    int key = -v - 1, plane = dx * dy;
+                    global = below.offset + (key < plane ? below.topX[key] : below.topY[key - plane]);
+                }
+                memPutInt(dst + 4L * i, global);
+            }
+        });
+        positions.pos += total * 12;
+        indices.pos += indexBytes;
+        for (Block block : blocks) {
+            pool.release(block.positions);
+            pool.release(block.indices);
+        }
+        return total;
+    }
+
+    private static void marchBlock(byte[] ds, byte iso, int dx, int dy, Block block, boolean sharedBottom,
+            DynamicByteBuffer.Pool pool) {
+        int plane = dx * dy;
+        DynamicByteBuffer positions = pool.acquire(4096), indices = pool.acquire(4096);
+        /* vertex indices of the X and Y edges of the lower and upper lattice plane, and of the Z edges between */
+        int[] lowX = new int[plane], lowY = new int[plane], highX = new int[plane], highY = new int[plane];
+        int[] midZ = new int[plane];
+        if (sharedBottom) {
+            for (int i = 0; i < plane; i++) {
+                lowX[i] = -1 - i;
+                lowY[i] = -1 - plane - i;
+            }
+        } else {
+            Arrays.fill(lowX, Integer.MIN_VALUE);
+            Arrays.fill(lowY, Integer.MIN_VALUE);
+        }
+        int[] tri = new int[12];
+        int vertexCount = 0;
+        for (int z = block.z0; z < block.z1; z++) {
+            Arrays.fill(highX, Integer.MIN_VALUE);
+            Arrays.fill(highY, Integer.MIN_VALUE);
+            Arrays.fill(midZ, Integer.MIN_VALUE);
+            for (int y = 0; y < dy - 1; y++) {
+                for (int x = 0; x < dx - 1; x++) {
+                    int ci = determineCase(ds, iso, dx, dy, z, y, x);
+                    int b = E[ci];
+                    if (b == 0)
+                        continue;
+                    for (int i = 0; i < 12; i++) {
+                        if ((b & 1 << i) == 0)
+                            continue;
+                        int ox = CS[i] & 3, oy = CS[i] >>> 2 & 3, oz = CS[i] >>> 4 & 3;
+                        int[] cache;
+                        int slot;
+                        if (ox == 1) {
+                            cache = oz == 0 ? lowX : highX;
+                            slot = x + dx * (y + (oy >>> 1));
+                        } else if (oy == 1) {
+                            cache = oz == 0 ? lowY : highY;
+                            slot = x + (ox >>> 1) + dx * y;
+                        } else {
+                            cache = midZ;
+                            slot = x + (ox >>> 1) + dx * (y + (oy >>> 1));
+                        }
+                        int v = cache[slot];
+                        if (v == Integer.MIN_VALUE) {
+                            v = vertexCount++;
+                            positions.reserve(12);
+                            positions.putIntNoGrow((x << 1) + ox).putIntNoGrow((y << 1) + oy).putIntNoGrow((z << 1) + oz);
+                            cache[slot] = v;
+                        }
+                        tri[i] = v;
+                    }
+                    for (long c = TS[ci]; c != 0L; c >>>= 12) {
+                        int i1 = (int) (c & 0xF) - 1, i2 = (int) (c >>> 4 & 0xF) - 1, i3 = (int) (c >>> 8 & 0xF) - 1;
+                        indices.reserve(12);
+                        indices.putIntNoGrow(tri[i3]).putIntNoGrow(tri[i2]).putIntNoGrow(tri[i1]);
+                    }
+                }
+            }
+            int[] t = lowX;
+            lowX = highX;
+            highX = t;
+            t = lowY;
+            lowY = highY;
+            highY = t;
+        }
+        block.positions = positions;
+        block.indices = indices;
+        block.vertexCount = vertexCount;
+        block.topX = lowX;
+        block.topY = lowY;
+    }
+
 }
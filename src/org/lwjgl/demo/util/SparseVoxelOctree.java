@@ -0,0 +1,339 @@
+/*
+ * Copyright LWJGL. All rights reserved.
+ * License terms: https://www.lwjgl.org/license
+ */
+package org.lwjgl.demo.util;
+
+import static java.lang.Math.*;
+
+import java.util.Arrays;
+
+import org.lwjgl.demo.util.MagicaVoxelLoader.Material;
+
+/**
+ * Sparse voxel octree with 4x4x4 voxel bricks as leaves, which can optionally
+ * be compressed into a directed acyclic graph (DAG) by sharing identical
+ * subtrees.
+ * <p>
+ * The octree grows on demand to contain all voxels set via
+ * {@link #set(int, int, int, byte)}, so memory scales with the number of
+ * occupied bricks instead of the bounding volume of the scene. It can be
+ * populated directly while loading a MagicaVoxel file, because it implements
+ * {@link MagicaVoxelLoader.Callback}.
+ * <p>
+ * For the existing greedy meshers, arbitrary regions can be exported as dense
+ * fields with a one voxel border via
+ * {@link #exportDense(int, int, int, int, int, int, byte[])}.
+ *
+ * @author Kai Burjack
+ */
+public class SparseVoxelOctree implements MagicaVoxelLoader.Callback {
+    private static final int BRICK_BITS = 2;
+    private static final int BRICK_SIZE = 1 << BRICK_BITS;
+    private static final int BRICK_MASK = BRICK_SIZE - 1;
+    private static final int BRICK_VOXELS = BRICK_SIZE * BRICK_SIZE * BRICK_SIZE;
+
+    /* Index 0 is reserved as the "empty" child reference in both arrays */
+    private int[] nodes = new int[8 * 64];
+    private byte[] bricks = new byte[BRICK_VOXELS * 64];
+    private int numNodes = 1, numBricks = 1;
+    private int root;
+    private int levels;
+    private boolean compressed;
+
+    /* Coordinate mapping when used as MagicaVoxelLoader.Callback */
+    private final boolean yUp;
+    private int sizeX, sizeY, sizeZ;
+
+    /**
+     * Create an empty octree storing coordinates as is.
+     */
+    public SparseVoxelOctree() {
+        this(false);
+    }
+
+    /**
+     * Create an empty octree.
+     *
+     * @param yUp whether voxels received via
+     *            {@link #voxel(int, int, int, byte)} should be converted from
+     *            MagicaVoxel's Z-up coordinate system to the Y-up system used by
+     *            the demos, i.e. <code>(x, y, z) -> (x, z, sizeY - y - 1)</code>
+     */
+    public SparseVoxelOctree(boolean yUp) {
+        this.yUp = yUp;
+        this.root = allocateNode();
+        this.levels = 1;
+    }
+
+    @Override
+    public void size(int x, int y, int z) {
+        if (yUp) {
+            sizeX = x;
+            sizeY = z;
+            sizeZ = y;
+        } else {
+            sizeX = x;
+            sizeY = y;
+            sizeZ = z;
+        }
+    }
+
+    @Override
+    public void voxel(int x, int y, int z, byte c) {
+        if (yUp)
+            set(x, z, sizeZ - y - 1, c);
+        else
+            set(x, y, z, c);
+    }
+
+    @Override
+    public void paletteMaterial(int i, Material m) {
+    }
+
+    /**
+     * @return the size along X of the last model received via
+     *         {@link #size(int, int, int)}, after coordinate conversion
+     */
+    public int sizeX() {
+        return sizeX;
+    }
+
+    /**
+     * @return the size along Y of the last model received via
+     *         {@link #size(int, int, int)}, after coordinate conversion
+     */
+    public int sizeY() {
+        return sizeY;
+    }
+
+    /**
+     * @return the size along Z of the last model received via
+     *         {@link #size(int, int, int)}, after coordinate conversion
+     */
+    public int sizeZ() {
+        return sizeZ;
+    }
+
+    /**
+     * @return the edge length of the cubic volume currently covered
+     */
+    public int extent() {
+        return BRICK_SIZE << levels;
+    }
+
+    /**
+     * @return the number of inner nodes
+     */
+    public int nodeCount() {
+        return numNodes - 1;
+    }
+
+    /**
+     * @return the number of 4x4x4 bricks
+     */
+    public int brickCount() {
+        return numBricks - 1;
+    }
+
+    /**
+     * @return the number of bytes used by nodes and bricks
+     */
+    public long memoryBytes() {
+        return (long) numNodes * 8 * Integer.BYTES + (long) numBricks * BRICK_VOXELS;
+    }
+
+    private int allocateNode() {
+        if (numNodes * 8 == nodes.length)
+            nodes = Arrays.copyOf(nodes, nodes.length * 2);
+        return numNodes++;
+    }
+
+    private int allocateBrick() {
+        if (numBricks * BRICK_VOXELS == bricks.length)
+            bricks = Arrays.copyOf(bricks, bricks.length * 2);
+        return numBricks++;
+    }
+
+    private static int octant(int x, int y, int z, int shift) {
+        return x >>> shift & 1 | (y >>> shift & 1) << 1 | (z >>> shift & 1) << 2;
+    }
+
+    private static int voxelIndex(int x, int y, int z) {
+        return x & BRICK_MASK | (y & BRICK_MASK) << BRICK_BITS | (z & BRICK_MASK) << (BRICK_BITS << 1);
+    }
+
+    /**
+     * Set the voxel at the given position to <code>c</code>, growing the octree
+     * if necessary.
+     *
+     * @throws IllegalStateException if the octree has been {@link #compress()
+     *                               compressed}
+     */
+    public void set(int x, int y, int z, byte c) {
+        if (compressed)
+            throw new IllegalStateException("octree has been compressed");
+        if ((x | y | z) < 0)
+            throw new IllegalArgumentException("negative coordinate");
+        while ((x | y | z) >= extent()) {
+            int r = allocateNode();
+            nodes[r * 8] = root;
+            root = r;
+            levels++;
+        }
+        int n = root;
+        for (int l = levels; l > 1; l--) {
+            int i = n * 8 + octant(x, y, z, BRICK_BITS + l - 1);
+            int child = nodes[i];
+            if (child == 0) {
+                child = allocateNode();
+                nodes[i] = child;
+            }
+            n = child;
+        }
+        int i = n * 8 + octant(x, y, z, BRICK_BITS);
+        int b = nodes[i];
+        if (b == 0) {
+            if (c == 0)
+                return;
+            b = allocateBrick();
+            nodes[i] = b;
+        }
+        bricks[b * BRICK_VOXELS + voxelIndex(x, y, z)] = c;
+    }
+
+    /**
+     * @return the voxel at the given position, or <code>0</code> if empty or
+     *         outside of the octree
+     */
+    public byte load(int x, int y, int z) {
+        if ((x | y | z) < 0 || (x | y | z) >= extent())
+            return 0;
+        int[] ns = nodes;
+        int n = root;
+        for (int l = levels; l > 0 && n != 0; l--)
+            n = ns[n * 8 + octant(x, y, z, BRICK_BITS + l - 1)];
+        return n == 0 ? 0 : bricks[n * BRICK_VOXELS + voxelIndex(x, y, z)];
+    }
+
+    /**
+     * Export the voxels in the box <code>[x0, x0 + w) x [y0, y0 + h) x [z0, z0 + d)</code>
+     * into the given dense field, including a border of one voxel around the
+     * box, in the layout expected by {@link GreedyMeshing}, {@link GreedyMeshingNoAo}
+     * and {@link GreedyVoxels}: the voxel at <code>(x0 + x, y0 + y, z0 + z)</code>
+     * is stored at <code>(x + 1) + (w + 2) * ((z + 1) + (d + 2) * (y + 1))</code>.
+     *
+     * @param field the field to write to, or <code>null</code> to allocate a new one
+     * @return the field
+     */
+    public byte[] exportDense(int x0, int y0, int z0, int w, int h, int d, byte[] field) {
+        int size = (w + 2) * (h + 2) * (d + 2);
+        if (field == null)
+            field = new byte[size];
+        else
+            Arrays.fill(field, 0, size, (byte) 0);
+        export(root, levels, 0, 0, 0, x0 - 1, y0 - 1, z0 - 1, w + 2, h + 2, d + 2, field);
+        return field;
+    }
+
+    private void export(int n, int level, int ox, int oy, int oz, int x0, int y0, int z0, int w, int h, int d,
+            byte[] field) {
+        int s = BRICK_SIZE << level;
+        if (ox >= x0 + w || oy >= y0 + h || oz >= z0 + d || ox + s <= x0 || oy + s <= y0 || oz + s <= z0)
+            return;
+        if (level == 0) {
+            exportBrick(n, ox, oy, oz, x0, y0, z0, w, h, d, field);
+            return;
+        }
+        int cs = s >>> 1;
+        for (int i = 0; i < 8; i++) {
+            int c = nodes[n * 8 + i];
+            if (c != 0)
+                export(c, level - 1, ox + (i & 1) * cs, oy + (i >>> 1 & 1) * cs, oz + (i >>> 2 & 1) * cs, x0, y0,
+                        z0, w, h, d, field);
+        }
+    }
+
+    private void exportBrick(int b, int ox, int oy, int oz, int x0, int y0, int z0, int w, int h, int d,
+            byte[] field) {
+        int minX = max(ox, x0), maxX = min(ox + BRICK_SIZE, x0 + w);
+        int minY = max(oy, y0), maxY = min(oy + BRICK_SIZE, y0 + h);
+        int minZ = max(oz, z0), maxZ = min(oz + BRICK_SIZE, z0 + d);
+        for (int y = minY; y < maxY; y++)
+            for (int z = minZ; z < maxZ; z++)
+                for (int x = minX; x < maxX; x++)
+                    field[(x - x0) + w * ((z - z0) + d * (y - y0))] = bricks[b * BRICK_VOXELS + voxelIndex(x, y, z)];
+    }
+
+    /**
+     * Compress the octree into a DAG by sharing all identical bricks and
+     * subtrees. After this, the octree can no longer be modified.
+     */
+    public void compress() {
+        int[] brickMap = new int[numBricks];
+        byte[] newBricks = new byte[bricks.length];
+        int[] table = new int[tableSize(numBricks)];
+        int newNumBricks = 1;
+        for (int b = 1; b < numBricks; b++) {
+            int h = hashBrick(bricks, b), mask = table.length - 1;
+            for (int i = h & mask;; i = i + 1 & mask) {
+                int e = table[i];
+                if (e == 0) {
+                    System.arraycopy(bricks, b * BRICK_VOXELS, newBricks, newNumBricks * BRICK_VOXELS, BRICK_VOXELS);
+                    table[i] = newNumBricks;
+                    brickMap[b] = newNumBricks++;
+                    break;
+                }
+                if (Arrays.equals(bricks, b * BRICK_VOXELS, (b + 1) * BRICK_VOXELS, newBricks, e * BRICK_VOXELS,
+                        (e + 1) * BRICK_VOXELS)) {
+                    brickMap[b] = e;
+                    break;
+                }
+            }
+        }
+        int[] newNodes = new int[numNodes * 8];
+        int[] newNumNodes = { 1 };
+        int[][] tables = new int[levels + 1][];
+        root = compress(root, levels, brickMap, newNodes, newNumNodes, tables);
+        nodes = Arrays.copyOf(newNodes, max(8, newNumNodes[0] * 8));
+        numNodes = newNumNodes[0];
+        bricks = Arrays.copyOf(newBricks, newNumBricks * BRICK_VOXELS);
+        numBricks = newNumBricks;
+        compressed = true;
+    }
+
+    private int compress(int n, int level, int[] brickMap, int[] newNodes, int[] newNumNodes, int[][] tables) {
+        int[] children = new int[8];
+        for (int i = 0; i < 8; i++) {
+            int c = nodes[n * 8 + i];
+            children[i] = c == 0 ? 0
+                    : level == 1 ? brickMap[c] : compress(c, level - 1, brickMap, newNodes, newNumNodes, tables);
+        }
+        int[] table = tables[level];
+        if (table == null)
+            tables[level] = table = new int[tableSize(numNodes)];
+        int h = Arrays.hashCode(children), mask = table.length - 1;
+        for (int i = h & mask;; i = i + 1 & mask) {
+            int e = table[i];
+            if (e == 0) {
+                int r = newNumNodes[0]++;
+                System.arraycopy(children, 0, newNodes, r * 8, 8);
+                table[i] = r;
+                return r;
+            }
+            if (Arrays.equals(children, 0, 8, newNodes, e * 8, e * 8 + 8))
+                return e;
+        }
+    }
+
+    private static int tableSize(int n) {
+        return Integer.highestOneBit(max(n, 8) * 2) << 1;
+    }
+
+    private static int hashBrick(byte[] bricks, int b) {
+        int h = 1;
+        for (int i = b * BRICK_VOXELS, e = i + BRICK_VOXELS; i < e; i++)
+            h = 31 * h + bricks[i];
+        return h ^ h >>> 16;
+    }
+}
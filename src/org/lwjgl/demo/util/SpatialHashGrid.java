@@ -0,0 +1,120 @@
+/*
+ * Copyright LWJGL. All rights reserved.
+ * License terms: https://www.lwjgl.org/license
+ */
+package org.lwjgl.demo.util;
+
+import static java.lang.Math.*;
+
+import java.util.Arrays;
+
+/**
+ * Uniform grid spatial hash over axis-aligned boxes, stored entirely in
+ * primitive arrays.
+ * <p>
+ * The grid is rebuilt from scratch via {@link #build(int, float[], float[], float[], float[], float[], float[])}
+ * using a two-pass counting sort, which is linear in the number of occupied
+ * cells and does not allocate once the arrays have grown to their working size.
+ * All boxes overlapping a cell are stored contiguously in a hash bucket, and the
+ * entries of a bucket are sorted by box index.
+ * <p>
+ * After building, queries are read-only and can be performed concurrently.
+ *
+ * @author Kai Burjack
+ */
+public class SpatialHashGrid {
+    private final float invCellSize;
+    private final int mask;
+    private final int[] bucketStart;
+    private int[] entries = new int[1024];
+
+    /**
+     * @param cellSize   the edge length of a single cubic grid cell; should be
+     *                   about the size of a typical box
+     * @param bucketBits the base-2 logarithm of the number of hash buckets
+     */
+    public SpatialHashGrid(float cellSize, int bucketBits) {
+        if (cellSize <= 0.0f)
+            throw new IllegalArgumentException("cellSize");
+        if (bucketBits < 1 || bucketBits > 28)
+            throw new IllegalArgumentException("bucketBits");
+        this.invCellSize = 1.0f / cellSize;
+        this.mask = (1 << bucketBits) - 1;
+        this.bucketStart = new int[(1 << bucketBits) + 1];
+    }
+
+    /**
+     * @return the integer grid coordinate containing the given world coordinate
+     */
+    public int cell(float v) {
+        return (int) floor(v * invCellSize);
+    }
+
+    /**
+     * @return the hash bucket of the given grid cell
+     */
+    public int bucket(int x, int y, int z) {
+        return (x * 73856093 ^ y * 19349663 ^ z * 83492791) & mask;
+    }
+
+    /**
+     * @return the index of the first entry of the given bucket in
+     *         {@link #entries()}
+     */
+    public int bucketStart(int bucket) {
+        return bucketStart[bucket];
+    }
+
+    /**
+     * @return the index one past the last entry of the given bucket in
+     *         {@link #entries()}
+     */
+    public int bucketEnd(int bucket) {
+        return bucketStart[bucket + 1];
+    }
+
+    /**
+     * @return the box indices of all buckets. A box overlapping multiple cells
+     *         mapping to the same bucket is stored multiple times, next to each
+     *         other.
+     */
+    public int[] entries() {
+        return entries;
+    }
+
+    /**
+     * Rebuild the grid from the first <code>count</code> boxes of the given
+     * arrays.
+     */
+    public void build(int count, float[] minX, float[] minY, float[] minZ, float[] maxX, float[] maxY,
+            float[] maxZ) {
+        int[] starts = bucketStart;
+        Arrays.fill(starts, 0);
+        int total = 0;
+        for (int i = 0; i < count; i++) {
+            int x0 = cell(minX[i]), y0 = cell(minY[i]), z0 = cell(minZ[i]);
+            int x1 = cell(maxX[i]), y1 = cell(maxY[i]), z1 = cell(maxZ[i]);
+            for (int z = z0; z <= z1; z++)
+                for (int y = y0; y <= y1; y++)
+                    for (int x = x0; x <= x1; x++) {
+                        starts[bucket(x, y, z) + 1]++;
+                        total++;
+                    }
+        }
+        for (int i = 1; i < starts.length; i++)
+            starts[i] += starts[i - 1];
+        if (entries.length < total)
+            entries = new int[max(total, entries.length * 3 / 2)];
+        for (int i = 0; i < count; i++) {
+            int x0 = cell(minX[i]), y0 = cell(minY[i]), z0 = cell(minZ[i]);
+            int x1 = cell(maxX[i]), y1 = cell(maxY[i]), z1 = cell(maxZ[i]);
+            for (int z = z0; z <= z1; z++)
+                for (int y = y0; y <= y1; y++)
+                    for (int x = x0; x <= x1; x++)
+                        entries[starts[bucket(x, y, z)]++] = i;
+        }
+        // the fill pass advanced every start to the start of the next bucket
+        System.arraycopy(starts, 0, starts, 1, starts.length - 1);
+        starts[0] = 0;
+    }
+}
@@ -4,27 +4,37 @@
  */
 package org.lwjgl.demo.util;
 
+import static java.lang.invoke.MethodType.methodType;
+import static org.lwjgl.system.MemoryUtil.*;
+
 import java.lang.annotation.*;
-import java.lang.reflect.Array;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
 import java.nio.ByteBuffer;
-import java.util.IdentityHashMap;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
 
 import org.joml.Vector3f;
 import org.joml.Vector4f;
+import org.lwjgl.system.MemoryUtil;
 
 /**
  * Writes a "struct" (i.e. a class with field members) to a {@link ByteBuffer} in std430 layout.
- * 
+ * <p>
+ * The layout of a class is computed only once, when its {@link StructWriter} is
+ * first requested via {@link #writer(Class, Layout)}. The writer then stores all
+ * fields at their precomputed offsets via a single composed {@link MethodHandle}.
+ *
  * @author Kai Burjack
  */
 public class Std430Writer {
 
     /**
      * Used to annotate a struct member (i.e. field in a class representing a GLSL struct).
-     * 
+     *
      * @author Kai Burjack
      */
     @Retention(RetentionPolicy.RUNTIME)
@@ -38,27 +48,259 @@ public class Std430Writer {
 
     }
 
-    private static final Map<Class<?>, Integer> SIZES = new IdentityHashMap<Class<?>, Integer>();
-    static {
-        SIZES.put(int.class, Integer.valueOf(1));
-        SIZES.put(float.class, Integer.valueOf(1));
-        SIZES.put(Vector3f.class, Integer.valueOf(3));
-        SIZES.put(Vector4f.class, Integer.valueOf(4));
+    /**
+     * The supported GLSL buffer layouts.
+     */
+    public enum Layout {
+        /**
+         * Layout of uniform blocks, rounding up the alignment of arrays and structs to that of a vec4.
+         */
+        STD140,
+        /**
+         * Layout of shader storage blocks.
+         */
+        STD430
     }
-    private static final Map<Class<?>, Integer> ALIGNMENTS = new IdentityHashMap<Class<?>, Integer>();
+
+    /**
+     * Writes instances of a single class in a fixed {@link Layout}.
+     *
+     * @param <T>
+     *          the type of the struct
+     */
+    public static final class StructWriter<T> {
+        private final MethodHandle writer;
+        private final int size;
+
+        private StructWriter(MethodHandle writer, int size) {
+            this.writer = writer;
+            this.size = size;
+        }
+
+        /**
+         * @return the size of a struct in bytes, including all padding, which is also the array stride
+         */
+        public int size() {
+            return size;
+        }
+
+        /**
+         * Write the given struct at the given address, including zeroed padding.
+         *
+         * @param obj
+         *          the struct object
+         * @param address
+         *          the address to write {@link #size()} bytes at
+         */
+        public void write(T obj, long address) {
+            memSet(address, 0, size);
+            put(obj, address);
+        }
+
+        private void put(Object obj, long address) {
+            try {
+                writer.invokeExact(address, obj);
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable t) {
+                throw new RuntimeException("Could not write struct: " + obj, t);
+            }
+        }
+
+        /**
+         * Append all structs of the given {@link List} to the given {@link DynamicByteBuffer}.
+         *
+         * @param list
+         *          the list containing the struct objects to write
+         * @param bb
+         *          the {@link DynamicByteBuffer} to write into
+         */
+        public void write(List<? extends T> list, DynamicByteBuffer bb) {
+            int n = list.size();
+            long address = reserve(bb, n);
+            for (int i = 0; i < n; i++, address += size)
+                put(list.get(i), address);
+        }
+
+        /**
+         * Append all structs of the given array to the given {@link DynamicByteBuffer}.
+         *
+         * @param array
+         *          the array containing the struct objects to write
+         * @param bb
+         *          the {@link DynamicByteBuffer} to write into
+         */
+        public void write(T[] array, DynamicByteBuffer bb) {
+            long address = reserve(bb, array.length);
+            for (T t : array) {
+                put(t, address);
+                address += size;
+            }
+        }
+
+        private long reserve(DynamicByteBuffer bb, int count) {
+            int bytes = Math.multiplyExact(count, size);
+            bb.reserve(bytes);
+            long address = bb.addr + bb.pos;
+            memSet(address, 0, bytes);
+            bb.pos += bytes;
+            return address;
+        }
+    }
+
+    private static final MethodHandle ADD, PUT_INT, PUT_FLOAT, PUT_VECTOR3F, PUT_VECTOR4F, PUT_INTS, PUT_FLOATS,
+            PUT_VECTOR3FS, PUT_VECTOR4FS;
     static {
-        ALIGNMENTS.put(int.class, Integer.valueOf(1));
-        ALIGNMENTS.put(float.class, Integer.valueOf(1));
-        ALIGNMENTS.put(Vector3f.class, Integer.valueOf(4));
-        ALIGNMENTS.put(Vector4f.class, Integer.valueOf(4));
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        try {
+            ADD = lookup.findStatic(Long.class, "sum", methodType(long.class, long.class, long.class));
+            PUT_INT = lookup.findStatic(MemoryUtil.class, "memPutInt", methodType(void.class, long.class, int.class));
+            PUT_FLOAT = lookup.findStatic(MemoryUtil.class, "memPutFloat", methodType(void.class, long.class, float.class));
+            PUT_VECTOR3F = lookup.findStatic(Std430Writer.class, "putVector3f", methodType(void.class, long.class, Vector3f.class));
+            PUT_VECTOR4F = lookup.findStatic(Std430Writer.class, "putVector4f", methodType(void.class, long.class, Vector4f.class));
+            MethodType arrayType = methodType(void.class, long.class, Object.class, int.class, int.class);
+            PUT_INTS = lookup.findStatic(Std430Writer.class, "putInts", arrayType.changeParameterType(1, int[].class));
+            PUT_FLOATS = lookup.findStatic(Std430Writer.class, "putFloats", arrayType.changeParameterType(1, float[].class));
+            PUT_VECTOR3FS = lookup.findStatic(Std430Writer.class, "putVector3fs", arrayType.changeParameterType(1, Vector3f[].class));
+            PUT_VECTOR4FS = lookup.findStatic(Std430Writer.class, "putVector4fs", arrayType.changeParameterType(1, Vector4f[].class));
+        } catch (ReflectiveOperationException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static final ClassValue<StructWriter<?>> STD140_WRITERS = new ClassValue<StructWriter<?>>() {
+        protected StructWriter<?> computeValue(Class<?> type) {
+            return compile(type, Layout.STD140);
+        }
+    };
+    private static final ClassValue<StructWriter<?>> STD430_WRITERS = new ClassValue<StructWriter<?>>() {
+        protected StructWriter<?> computeValue(Class<?> type) {
+            return compile(type, Layout.STD430);
+        }
+    };
+
+    private static void putVector3f(long address, Vector3f v) {
+        memPutFloat(address, v.x);
+        memPutFloat(address + 4, v.y);
+        memPutFloat(address + 8, v.z);
+    }
+
+    private static void putVector4f(long address, Vector4f v) {
+        memPutFloat(address, v.x);
+        memPutFloat(address + 4, v.y);
+        memPutFloat(address + 8, v.z);
+        memPutFloat(address + 12, v.w);
+    }
+
+    private static void putInts(long address, int[] a, int length, int stride) {
+        for (int i = 0, n = Math.min(length, a.length); i < n; i++)
+            memPutInt(address + (long) i * stride, a[i]);
+    }
+
+    private static void putFloats(long address, float[] a, int length, int stride) {
+        for (int i = 0, n = Math.min(length, a.length); i < n; i++)
+            memPutFloat(address + (long) i * stride, a[i]);
+    }
+
+    private static void putVector3fs(long address, Vector3f[] a, int length, int stride) {
+        for (int i = 0, n = Math.min(length, a.length); i < n; i++)
+            putVector3f(address + (long) i * stride, a[i]);
+    }
+
+    private static void putVector4fs(long address, Vector4f[] a, int length, int stride) {
+        for (int i = 0, n = Math.min(length, a.length); i < n; i++)
+            putVector4f(address + (long) i * stride, a[i]);
+    }
+
+    private static int roundUp(int v, int alignment) {
+        return (v + alignment - 1) / alignment * alignment;
     }
 
     /**
-     * Write the given {@link List} of struct objects into the given {@link DynamicByteBuffer}, taking into account 
+     * Compute the offset of each member of the given class and compose a {@link MethodHandle} of type
+     * <code>(long, Object)void</code> writing all members at those offsets relative to the given address.
+     */
+    private static <T> StructWriter<T> compile(Class<T> clazz, Layout layout) {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        MethodHandle writer = MethodHandles.empty(methodType(void.class, long.class, Object.class));
+        List<MethodHandle> puts = new ArrayList<>();
+        int offset = 0, structAlign = layout == Layout.STD140 ? 16 : 4;
+        for (Field f : clazz.getDeclaredFields()) {
+            if (Modifier.isStatic(f.getModifiers()) || f.isSynthetic())
+                continue;
+            Class<?> t = f.getType();
+            Class<?> ct = t.isArray() ? t.getComponentType() : t;
+            int size, align;
+            MethodHandle put;
+            if (ct == int.class || ct == float.class) {
+                size = 4;
+                align = 4;
+                put = t.isArray() ? ct == int.class ? PUT_INTS : PUT_FLOATS : ct == int.class ? PUT_INT : PUT_FLOAT;
+            } else if (ct == Vector3f.class || ct == Vector4f.class) {
+                size = ct == Vector3f.class ? 12 : 16;
+                align = 16;
+                put = t.isArray() ? ct == Vector3f.class ? PUT_VECTOR3FS : PUT_VECTOR4FS
+                        : ct == Vector3f.class ? PUT_VECTOR3F : PUT_VECTOR4F;
+            } else
+                throw new UnsupportedOperationException("Unsupported type of struct field: " + f);
+            if (t.isArray()) {
+                Member mem = f.getAnnotation(Member.class);
+                if (mem == null || mem.length() <= 0)
+                    throw new IllegalArgumentException("Array field without @Member(length): " + f);
+                int stride = roundUp(size, align);
+                if (layout == Layout.STD140) {
+                    stride = roundUp(stride, 16);
+                    align = 16;
+                }
+                put = MethodHandles.insertArguments(put, 2, mem.length(), stride);
+                size = stride * mem.length();
+            }
+            offset = roundUp(offset, align);
+            structAlign = Math.max(structAlign, align);
+            f.setAccessible(true);
+            MethodHandle getter;
+            try {
+                getter = lookup.unreflectGetter(f);
+            } catch (IllegalAccessException e) {
+                throw new IllegalArgumentException("Could not access struct field: " + f, e);
+            }
+            /* (long base, Object obj) -> put(base + offset, obj.f) */
+            put = MethodHandles.filterArguments(put, 0, MethodHandles.insertArguments(ADD, 1, (long) offset));
+            put = MethodHandles.filterArguments(put, 1, getter.asType(methodType(t, Object.class)));
+            puts.add(put);
+            offset += size;
+        }
+        if (puts.isEmpty())
+            throw new IllegalArgumentException("Struct has no members: " + clazz);
+        for (int i = puts.size() - 1; i >= 0; i--)
+            writer = MethodHandles.foldArguments(writer, puts.get(i));
+        return new StructWriter<>(writer, roundUp(offset, structAlign));
+    }
+
+    /**
+     * Return the cached {@link StructWriter} for the given class and layout.
+     * <p>
+     * All non-static fields are members of the struct, in declaration order. The GLSL types int, float, vec3 and vec4
+     * are mapped to <code>int</code>, <code>float</code>, {@link Vector3f} and {@link Vector4f}, respectively. Arrays of
+     * these must be annotated with {@link Member#length()}.
+     *
+     * @param clazz
+     *          the class representing the struct
+     * @param layout
+     *          the layout to write
+     * @return the writer
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> StructWriter<T> writer(Class<T> clazz, Layout layout) {
+        return (StructWriter<T>) (layout == Layout.STD140 ? STD140_WRITERS : STD430_WRITERS).get(clazz);
+    }
+
+    /**
+     * Write the given {@link List} of struct objects into the given {@link DynamicByteBuffer}, taking into account
      * data type alignments and necessary paddings.
      * <p>
      * The GLSL types vec3 and vec4 are mapped to the JOML types {@link Vector3f} and {@link Vector4f}, respectively.
-     * 
+     *
      * @param list
      *          the list containing the struct objects to write
      * @param clazz
@@ -67,73 +309,7 @@ public class Std430Writer {
      *          the {@link DynamicByteBuffer} to write into
      */
     public static <T> void write(List<T> list, Class<T> clazz, DynamicByteBuffer bb) {
-        Field[] fields = clazz.getDeclaredFields();
-        int ints = 0;
-        int[] paddings = new int[fields.length];
-        int largestAlign = 0;
-        /* Compute necessary padding after each field */
-        for (int i = 0; i < fields.length; i++) {
-            Field f = fields[i];
-            f.setAccessible(true);
-            Class<?> t = f.getType();
-            int len = 1;
-            if (t.isArray()) {
-                t = t.getComponentType();
-                Member mem = f.getAnnotation(Member.class);
-                len = mem.length();
-            }
-            int align = ALIGNMENTS.get(t).intValue();
-            largestAlign = Math.max(largestAlign, align);
-            if (i >= 1) {
-                int neededPadding = (align - ints % align) % align;
-                paddings[i - 1] = neededPadding;
-                ints += neededPadding;
-            }
-            int size = SIZES.get(t).intValue() * len;
-            ints += size;
-        }
-        /* Compute padding at the end of the struct */
-        int endPadding = (largestAlign - ints % largestAlign) % largestAlign;
-        paddings[fields.length - 1] = endPadding;
-        /* Write list */
-        for (T t : list) {
-            for (int i = 0; i < fields.length; i++) {
-                // Write field value
-                Field f = fields[i];
-                try {
-                    writeField(f, t, bb);
-                } catch (Exception e) {
-                    throw new RuntimeException("Could not write struct field: " + f, e);
-                }
-                // Write padding
-                int pad = paddings[i];
-                for (int p = 0; p < pad; p++)
-                    bb.putInt((byte) 0);
-            }
-        }
-    }
-
-    private static <T> void writeField(Field f, T obj, DynamicByteBuffer bb) throws IllegalArgumentException, IllegalAccessException {
-        Class<?> t = f.getType();
-        if (t == int.class)
-            bb.putInt(f.getInt(obj));
-        else if (t == float.class)
-            bb.putFloat(f.getFloat(obj));
-        else if (t == Vector3f.class) {
-            Vector3f v = (Vector3f) f.get(obj);
-            bb.putFloat(v.x).putFloat(v.y).putFloat(v.z);
-        } else if (t.isArray()) {
-            Object arr = f.get(obj);
-            int len = Array.getLength(arr);
-            Class<?> ct = t.getComponentType();
-            for (int i = 0; i < len; i++) {
-                if (ct == int.class)
-                    bb.putInt(Array.getInt(arr, i));
-                else
-                    throw new UnsupportedOperationException("NYI");
-            }
-        } else
-            throw new UnsupportedOperationException("NYI");
+        writer(clazz, Layout.STD430).write(list, bb);
     }
 
 }
@@ -0,0 +1,220 @@
+/*
+ * Copyright LWJGL. All rights reserved.
+ * License terms: https://www.lwjgl.org/license
+ */
+package org.lwjgl.demo.util;
+
+import static java.lang.Math.*;
+
+import java.util.Arrays;
+
+/**
+ * Reorders indexed triangle lists for better post-transform vertex cache and
+ * vertex fetch locality.
+ * <p>
+ * Triangles are reordered using Tom Forsyth's
+ * <a href="https://tomforsyth1000.github.io/papers/fast_vert_cache_opt.html">Linear-Speed
+ * Vertex Cache Optimisation</a>, and vertices can then be renumbered in the
+ * order of their first use. The quality of an ordering can be measured via
+ * {@link #acmr(int[], int, int, int)}.
+ *
+ * @author Kai Burjack
+ */
+public class VertexCacheOptimizer {
+    private static final int CACHE_SIZE = 32;
+    private static final float CACHE_DECAY_POWER = 1.5f;
+    private static final float LAST_TRI_SCORE = 0.75f;
+    private static final float VALENCE_BOOST_SCALE = 2.0f;
+    private static final float VALENCE_BOOST_POWER = 0.5f;
+
+    private VertexCacheOptimizer() {
+    }
+
+    private static float vertexScore(int cachePosition, int numActiveTris) {
+        if (numActiveTris == 0)
+            return -1.0f;
+        float score = 0.0f;
+        if (cachePosition >= 0) {
+            if (cachePosition < 3)
+                score = LAST_TRI_SCORE;
+            else {
+                float s = 1.0f - (cachePosition - 3) * (1.0f / (CACHE_SIZE - 3));
+                score = (float) pow(s, CACHE_DECAY_POWER);
+            }
+        }
+        return score + VALENCE_BOOST_SCALE * (float) pow(numActiveTris, -VALENCE_BOOST_POWER);
+    }
+
+    /**
+     * Reorder the triangles in <code>indices[first, first + count)</code> in place.
+     * <p>
+     * All scratch memory is sized to the number of distinct vertices referenced by the range, so
+     * that many small ranges of a large mesh can be optimized independently and in parallel.
+     *
+     * @param indices the triangle list
+     * @param first   the first index of the range to reorder, must be a multiple of 3
+     * @param count   the number of indices to reorder, must be a multiple of 3
+     */
+    public static void optimizeTriangles(int[] indices, int first, int count) {
+        int numTris = count / 3;
+        if (numTris < 2)
+            return;
+        // renumber the vertices of the range to [0, numVertices)
+        int[] vertices = Arrays.copyOfRange(indices, first, first + count);
+        Arrays.sort(vertices);
+        int numVertices = 0;
+        for (int i = 0; i < count; i++)
+            if (i == 0 || vertices[i] != vertices[i - 1])
+                vertices[numVertices++] = vertices[i];
+        int[] local = new int[count];
+        for (int i = 0; i < count; i++)
+            local[i] = Arrays.binarySearch(vertices, 0, numVertices, indices[first + i]);
+        // build vertex -> triangles adjacency
+        int[] triStart = new int[numVertices + 1];
+        for (int i = 0; i < count; i++)
+            triStart[local[i] + 1]++;
+        for (int v = 0; v < numVertices; v++)
+            triStart[v + 1] += triStart[v];
+        int[] numActive = new int[numVertices];
+        int[] vertexTris = new int[count];
+        for (int t = 0; t < numTris; t++)
+            for (int k = 0; k < 3; k++) {
+                int v = local[t * 3 + k];
+                vertexTris[triStart[v] + numActive[v]++] = t;
+            }
+        int[] cachePos = new int[numVertices];
+        Arrays.fill(cachePos, -1);
+        float[] vertexScores = new float[numVertices];
+        for (int v = 0; v < numVertices; v++)
+            vertexScores[v] = vertexScore(-1, numActive[v]);
+        float[] triScores = new float[numTris];
+        boolean[] added = new boolean[numTris];
+        for (int t = 0; t < numTris; t++) {
+            int i = t * 3;
+            triScores[t] = vertexScores[local[i]] + vertexScores[local[i + 1]] + vertexScores[local[i + 2]];
+        }
+        int[] cache = new int[CACHE_SIZE + 3], newCache = new int[CACHE_SIZE + 3];
+        int cacheCount = 0, cursor = 0, bestTri = -1;
+        for (int o = 0; o < numTris; o++) {
+            if (bestTri < 0) {
+                // no candidate in the cache, so continue with the next unprocessed triangle
+                while (added[cursor])
+                    cursor++;
+                bestTri = cursor;
+            }
+            int t = bestTri;
+            added[t] = true;
+            int i0 = t * 3;
+            for (int k = 0; k < 3; k++)
+                indices[first + o * 3 + k] = vertices[local[i0 + k]];
+            /*
+             * Remove the triangle from the adjacency of its vertices and move them to the front of the
+             * cache. A degenerate triangle is listed once per corner, so every corner removes one copy.
+             */
+            int newCount = 0;
+            for (int k = 0; k < 3; k++) {
+                int v = local[i0 + k];
+                int s = triStart[v], n = numActive[v];
+                for (int j = s; j < s + n; j++)
+                    if (vertexTris[j] == t) {
+                        vertexTris[j] = vertexTris[s + n - 1];
+                        break;
+                    }
+                numActive[v]--;
+                if (k == 0 || v != local[i0] && (k == 1 || v != local[i0 + 1]))
+                    newCache[newCount++] = v;
+            }
+            for (int j = 0; j < cacheCount; j++) {
+                int v = cache[j];
+                if (v != local[i0] && v != local[i0 + 1] && v != local[i0 + 2])
+                    newCache[newCount++] = v;
+            }
+            int[] tmp = cache;
+            cache = newCache;
+            newCache = tmp;
+            // update scores of all vertices which are or were in the cache
+            for (int j = 0; j < newCount; j++) {
+                int v = cache[j];
+                cachePos[v] = j < CACHE_SIZE ? j : -1;
+                float score = vertexScore(cachePos[v], numActive[v]);
+                float delta = score - vertexScores[v];
+                vertexScores[v] = score;
+                for (int a = triStart[v], e = a + numActive[v]; a < e; a++)
+                    triScores[vertexTris[a]] += delta;
+            }
+            cacheCount = min(newCount, CACHE_SIZE);
+            // find the best not yet added triangle touching the cache
+            bestTri = -1;
+            float bestScore = -1.0f;
+            for (int j = 0; j < cacheCount; j++) {
+                int v = cache[j];
+                for (int a = triStart[v], e = a + numActive[v]; a < e; a++) {
+                    int tt = vertexTris[a];
+                    if (added[tt])
+                        continue;
+                    if (triScores[tt] > bestScore) {
+                        bestScore = triScores[tt];
+                        bestTri = tt;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Renumber all vertices in the order of their first use in the given
+     * triangle list and rewrite the indices accordingly.
+     *
+     * @param indices     the triangle list, which will be rewritten
+     * @param count       the number of indices
+     * @param numVertices the number of vertices
+     * @return the permutation mapping each new vertex index to its old index
+     */
+    public static int[] reorderVertices(int[] indices, int count, int numVertices) {
+        int[] remap = new int[numVertices];
+        Arrays.fill(remap, -1);
+        int[] order = new int[numVertices];
+        int next = 0;
+        for (int i = 0; i < count; i++) {
+            int v = indices[i];
+            if (remap[v] < 0) {
+                remap[v] = next;
+                order[next++] = v;
+            }
+            indices[i] = remap[v];
+        }
+        for (int v = 0; v < numVertices; v++)
+            if (remap[v] < 0)
+                order[next++] = v;
+        return order;
+    }
+
+    /**
+     * Compute the average cache miss ratio, which is the average number of
+     * vertex shader invocations per triangle, of a FIFO post-transform cache of
+     * the given size.
+     *
+     * @param indices   the triangle list
+     * @param first     the first index
+     * @param count     the number of indices, must be a multiple of 3
+     * @param cacheSize the number of vertices in the simulated cache
+     * @return the ACMR, which lies between 0.5 for ideal meshes and 3.0
+     */
+    public static float acmr(int[] indices, int first, int count, int cacheSize) {
+        if (count < 3)
+            return 0.0f;
+        int maxIndex = 0;
+        for (int i = first; i < first + count; i++)
+            maxIndex = max(maxIndex, indices[i]);
+        // timestamp of when each vertex entered the cache
+        int[] entered = new int[maxIndex + 1];
+        Arrays.fill(entered, Integer.MIN_VALUE);
+        int misses = 0;
+        for (int i = first; i < first + count; i++) {
+            int v = indices[i];
+            if (entered[v] == Integer.MIN_VALUE || misses - entered[v] >= cacheSize)
+                entered[v] = ++misses;
+        }
+        return (float) misses / (count / 3);
+    }
+}
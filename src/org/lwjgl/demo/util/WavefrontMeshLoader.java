@@ -4,16 +4,25 @@
  */
 package org.lwjgl.demo.util;
 
-import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.zip.ZipInputStream;
+import java.util.stream.IntStream;
 
 import org.lwjgl.BufferUtils;
 
@@ -23,6 +32,14 @@ import org.joml.Vector3f;
  * A simple Wavefront obj file loader.
  * <p>
  * Does not load material files.
+ * <p>
+ * The file is parsed directly from its bytes: it is split into line-aligned
+ * segments which are scanned in parallel, and then the faces are resolved into
+ * de-indexed positions and normals in a second parallel pass.
+ * <p>
+ * Alternatively, with {@link #setIndexed(boolean) indexed} output, each unique
+ * pair of position and normal becomes a single vertex referenced by an index
+ * list, optionally reordered via {@link VertexCacheOptimizer}.
  * 
  * @author Kai Burjack
  */
@@ -34,12 +51,30 @@ public class WavefrontMeshLoader {
         public int numVertices;
         public float boundingSphereRadius;
         public List<MeshObject> objects = new ArrayList<MeshObject>();
-    }
+        /**
+         * The triangle list when loaded with {@link WavefrontMeshLoader#setIndexed(boolean) indexed}
+         * output, in which case {@link #positions} and {@link #normals} contain
+         * {@link #numVertices} unique vertices. Otherwise <code>null</code>.
+         * <p>
+         * {@link MeshObject#first} and {@link MeshObject#count} are always
+         * measured in triangles.
+         */
+        public IntBuffer indices;
+        public int numIndices;
 
-    private static class WavefrontInfo {
-        int numberOfVertices;
-        int numberOfFaces;
-        int numberOfNormals;
+        /**
+         * @return {@link #indices} converted to 16-bit unsigned shorts
+         * @throws IllegalStateException if the mesh is not indexed or has more
+         *                               than 65536 vertices
+         */
+        public ShortBuffer shortIndices() {
+            if (indices == null || numVertices > 65536)
+                throw new IllegalStateException();
+            ShortBuffer res = BufferUtils.createShortBuffer(numIndices);
+            for (int i = 0; i < numIndices; i++)
+                res.put(i, (short) indices.get(i));
+            return res;
+        }
     }
 
     public class MeshObject {
@@ -55,6 +90,9 @@ public class WavefrontMeshLoader {
     }
 
     private boolean fourComponentPosition;
+    private boolean indexed;
+    private boolean optimizeVertexCache;
+    private Path cacheDirectory = defaultCacheDirectory();
 
     public WavefrontMeshLoader() {
     }
@@ -67,178 +105,609 @@ public class WavefrontMeshLoader {
         this.fourComponentPosition = fourComponentPosition;
     }
 
-    private static WavefrontInfo getInfo(BufferedReader reader) throws IOException {
-        String line = "";
-        WavefrontInfo info = new WavefrontInfo();
-        while (true) {
-            line = reader.readLine();
-            if (line == null) {
-                break;
+    public boolean isIndexed() {
+        return indexed;
+    }
+
+    /**
+     * Set whether to deduplicate vertices and produce {@link Mesh#indices}.
+     */
+    public void setIndexed(boolean indexed) {
+        this.indexed = indexed;
+    }
+
+    public Path getCacheDirectory() {
+        return cacheDirectory;
+    }
+
+    /**
+     * Set the directory in which meshes loaded via {@link #loadMesh(String)}
+     * are cached, or <code>null</code> to disable caching.
+     */
+    public void setCacheDirectory(Path cacheDirectory) {
+        this.cacheDirectory = cacheDirectory;
+    }
+
+    public boolean isOptimizeVertexCache() {
+        return optimizeVertexCache;
+    }
+
+    /**
+     * Set whether {@link #setIndexed(boolean) indexed} meshes should have their
+     * triangles reordered within each {@link MeshObject} for post-transform
+     * vertex cache locality and their vertices reordered for fetch locality.
+     */
+    public void setOptimizeVertexCache(boolean optimizeVertexCache) {
+        this.optimizeVertexCache = optimizeVertexCache;
+    }
+
+    private static final int CACHE_MAGIC = 0x4853454D; // "MESH"
+    private static final int CACHE_VERSION = 1;
+    private static final int CACHE_HEADER_SIZE = 8 * Integer.BYTES + Long.BYTES;
+    private static final int CACHE_OBJECT_SIZE = 9 * Integer.BYTES;
+    private static final int MIN_SEGMENT_SIZE = 1 << 16;
+    private static final int FACES_PER_TASK = 1 << 12;
+    private static final double[] POW10 = { 1E0, 1E1, 1E2, 1E3, 1E4, 1E5, 1E6, 1E7, 1E8, 1E9, 1E10, 1E11, 1E12, 1E13,
+            1E14, 1E15, 1E16, 1E17, 1E18, 1E19, 1E20, 1E21, 1E22 };
+
+    /**
+     * @return the directory given by the system property <code>meshcache</code>
+     *         (empty to disable caching), or a directory below
+     *         <code>java.io.tmpdir</code>
+     */
+    private static Path defaultCacheDirectory() {
+        String dir = System.getProperty("meshcache");
+        if (dir == null)
+            return Paths.get(System.getProperty("java.io.tmpdir"), "lwjgl3-demos-meshcache");
+        return dir.isEmpty() ? null : Paths.get(dir);
+    }
+
+    /**
+     * The result of scanning a line-aligned range of the file.
+     */
+    private static class Segment {
+        final ByteBuffer buffer;
+        final int end;
+        int pos;
+        float[] positions, normals;
+        int numPositions, numNormals;
+        /* (position, normal) index pairs of the three corners of each face, zero-based */
+        int[] faces;
+        int numFaces;
+        List<String> objectNames = new ArrayList<>();
+        int[] objectFirstFaces = new int[4];
+        int faceOffset;
+
+        Segment(ByteBuffer buffer, int start, int end) {
+            this.buffer = buffer;
+            this.pos = start;
+            this.end = end;
+            int estimate = Math.max(16, (end - start) / 32);
+            positions = new float[estimate];
+            normals = new float[estimate];
+            faces = new int[estimate];
+        }
+
+        void scan() throws IOException {
+            while (pos < end) {
+                byte c0 = buffer.get(pos);
+                byte c1 = pos + 1 < end ? buffer.get(pos + 1) : 0;
+                if (c0 == 'o' && c1 == ' ') {
+                    int s = pos + 2, e = lineEnd();
+                    int l = e > s && buffer.get(e - 1) == '\r' ? e - 1 : e;
+                    byte[] name = new byte[l - s];
+                    for (int i = s; i < l; i++)
+                        name[i - s] = buffer.get(i);
+                    if (objectNames.size() == objectFirstFaces.length)
+                        objectFirstFaces = Arrays.copyOf(objectFirstFaces, objectFirstFaces.length * 2);
+                    objectFirstFaces[objectNames.size()] = numFaces;
+                    objectNames.add(new String(name));
+                    pos = e;
+                } else if (c0 == 'v' && c1 == 'n' && pos + 2 < end && buffer.get(pos + 2) == ' ') {
+                    pos += 3;
+                    if (numNormals + 3 > normals.length)
+                        normals = Arrays.copyOf(normals, normals.length * 3 / 2 + 3);
+                    normals[numNormals++] = nextFloat();
+                    normals[numNormals++] = nextFloat();
+                    normals[numNormals++] = nextFloat();
+                } else if (c0 == 'v' && c1 == ' ') {
+                    pos += 2;
+                    if (numPositions + 3 > positions.length)
+                        positions = Arrays.copyOf(positions, positions.length * 3 / 2 + 3);
+                    positions[numPositions++] = nextFloat();
+                    positions[numPositions++] = nextFloat();
+                    positions[numPositions++] = nextFloat();
+                } else if (c0 == 'f') {
+                    pos++;
+                    if (numFaces * 6 + 6 > faces.length)
+                        faces = Arrays.copyOf(faces, faces.length * 3 / 2 + 6);
+                    for (int i = 0; i < 3; i++) {
+                        int f = (numFaces * 3 + i) * 2;
+                        faces[f] = nextInt() - 1;
+                        skipSlash();
+                        while (pos < end && buffer.get(pos) != '/' && !isSeparator(buffer.get(pos)))
+                            pos++;
+                        skipSlash();
+                        faces[f + 1] = nextInt() - 1;
+                    }
+                    numFaces++;
+                }
+                pos = lineEnd() + 1;
+            }
+        }
+
+        private int lineEnd() {
+            int e = pos;
+            while (e < end && buffer.get(e) != '\n')
+                e++;
+            return e;
+        }
+
+        private void skipSlash() throws IOException {
+            if (pos >= end || buffer.get(pos) != '/')
+                throw new IOException("Expected face with normal indices");
+            pos++;
+        }
+
+        private int tokenStart() throws IOException {
+            while (pos < end && buffer.get(pos) == ' ')
+                pos++;
+            if (pos >= end || isSeparator(buffer.get(pos)))
+                throw new IOException("Unexpected end of line");
+            return pos;
+        }
+
+        private int nextInt() throws IOException {
+            int s = tokenStart();
+            boolean neg = buffer.get(pos) == '-';
+            if (neg || buffer.get(pos) == '+')
+                pos++;
+            int v = 0;
+            byte c;
+            while (pos < end && (c = buffer.get(pos)) >= '0' && c <= '9') {
+                v = v * 10 + c - '0';
+                pos++;
             }
-            if (line.startsWith("v ")) {
-                info.numberOfVertices++;
-            } else if (line.startsWith("f ")) {
-                info.numberOfFaces++;
-            } else if (line.startsWith("vn ")) {
-                info.numberOfNormals++;
+            if (pos == s || pos == s + 1 && (neg || buffer.get(s) == '+'))
+                throw new NumberFormatException("Expected integer");
+            return neg ? -v : v;
+        }
+
+        /**
+         * Parse the next float with the exact same result as
+         * {@link Float#parseFloat(String)}.
+         * <p>
+         * Plain decimals with up to 15 significant digits are computed exactly in
+         * double precision and then rounded to float. Everything else, including
+         * the rare double values which lie exactly halfway between two floats,
+         * falls back to {@link Float#parseFloat(String)}.
+         */
+        private float nextFloat() throws IOException {
+            int s = tokenStart(), i = s;
+            while (pos < end && !isSeparator(buffer.get(pos)))
+                pos++;
+            int e = pos;
+            byte c = buffer.get(i);
+            boolean neg = c == '-';
+            if (neg || c == '+')
+                i++;
+            long m = 0;
+            int exp = 0, digits = 0, significant = 0;
+            for (; i < e && (c = buffer.get(i)) >= '0' && c <= '9'; i++, digits++)
+                if ((m = m * 10 + c - '0') != 0)
+                    significant++;
+            if (i < e && buffer.get(i) == '.')
+                for (i++; i < e && (c = buffer.get(i)) >= '0' && c <= '9'; i++, digits++, exp--)
+                    if ((m = m * 10 + c - '0') != 0)
+                        significant++;
+            if (i < e && ((c = buffer.get(i)) == 'e' || c == 'E')) {
+                int ev = 0, es = ++i;
+                boolean eneg = i < e && buffer.get(i) == '-';
+                if (eneg || i < e && buffer.get(i) == '+')
+                    es = ++i;
+                for (; i < e && (c = buffer.get(i)) >= '0' && c <= '9' && ev < 1000; i++)
+                    ev = ev * 10 + c - '0';
+                if (i == es)
+                    return fallback(s, e);
+                exp += eneg ? -ev : ev;
             }
+            if (i != e || digits == 0 || significant > 15)
+                return fallback(s, e);
+            if (m == 0)
+                return neg ? -0.0f : 0.0f;
+            if (exp < -22 || exp > 22)
+                return fallback(s, e);
+            double d = exp < 0 ? m / POW10[-exp] : m * POW10[exp];
+            long bits = Double.doubleToRawLongBits(d);
+            if (d < Float.MIN_NORMAL || d > Float.MAX_VALUE || (bits & 0x1FFFFFFFL) == 0x10000000L)
+                return fallback(s, e);
+            return neg ? -(float) d : (float) d;
         }
-        return info;
-    }
 
-    private static byte[] readSingleFileZip(String zipResource) throws IOException {
-        ZipInputStream zipStream = new ZipInputStream(WavefrontMeshLoader.class.getClassLoader().getResourceAsStream(
-                zipResource));
-        zipStream.getNextEntry();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        byte[] buffer = new byte[1024];
-        int read = 0;
-        while ((read = zipStream.read(buffer)) > 0) {
-            baos.write(buffer, 0, read);
+        private float fallback(int s, int e) {
+            byte[] token = new byte[e - s];
+            for (int i = s; i < e; i++)
+                token[i - s] = buffer.get(i);
+            return Float.parseFloat(new String(token));
+        }
+
+        private static boolean isSeparator(byte c) {
+            return c == ' ' || c == '\n' || c == '\r' || c == '\t';
         }
-        zipStream.close();
-        return baos.toByteArray();
     }
 
+    /**
+     * Load the given classpath resource, which is either a zip file containing
+     * a single obj file if the name ends with <code>.zip</code>, or a plain obj
+     * file, which will be memory-mapped if possible.
+     * <p>
+     * If a {@link #setCacheDirectory(Path) cache directory} is set, the loaded
+     * mesh is stored there in a binary file, and subsequent loads of the same
+     * resource with the same options just map that file.
+     */
     public Mesh loadMesh(String resource) throws IOException {
-        byte[] arr = readSingleFileZip(resource);
-        WavefrontInfo info = getInfo(new BufferedReader(new InputStreamReader(new ByteArrayInputStream(arr))));
+        if (cacheDirectory == null)
+            return loadMesh(resource, null);
+        ByteBuffer raw = IOUtils.ioResourceToByteBuffer(resource, 8192);
+        long key = cacheKey(raw);
+        Path file = cacheDirectory.resolve(resource.replaceAll("[^A-Za-z0-9._-]", "_") + "." + flags() + ".mesh");
+        Mesh mesh = readCache(file, key);
+        if (mesh != null)
+            return mesh;
+        mesh = loadMesh(resource, raw);
+        try {
+            writeCache(file, key, mesh);
+        } catch (IOException e) {
+            // the cache is only an optimization
+        }
+        return mesh;
+    }
 
-        // Allocate buffers for all vertices/normal
-        ByteBuffer positionByteBuffer = BufferUtils.createByteBuffer(3 * info.numberOfVertices * 4);
-        ByteBuffer normalByteBuffer = BufferUtils.createByteBuffer(3 * info.numberOfNormals * 4);
-        FloatBuffer positions = positionByteBuffer.asFloatBuffer();
-        FloatBuffer normals = normalByteBuffer.asFloatBuffer();
+    private Mesh loadMesh(String resource, ByteBuffer raw) throws IOException {
+        if (!resource.endsWith(".zip"))
+            return loadMesh(raw != null ? raw : IOUtils.ioResourceToByteBuffer(resource, 8192));
+        return loadMesh(IOUtils.ioSingleFileZipToByteBuffer(resource));
+    }
 
-        // Allocate buffers for the actual face vertices/normals
-        ByteBuffer positionDataByteBuffer = BufferUtils.createByteBuffer((fourComponentPosition ? 4 : 3) * 3 * info.numberOfFaces * 4);
-        ByteBuffer normalDataByteBuffer = BufferUtils.createByteBuffer(3 * 3 * info.numberOfFaces * 4);
-        FloatBuffer positionData = positionDataByteBuffer.asFloatBuffer();
-        FloatBuffer normalData = normalDataByteBuffer.asFloatBuffer();
+    /**
+     * Load an obj file from the remaining bytes of the given buffer. The
+     * position of the buffer is not modified.
+     */
+    public Mesh loadMesh(ByteBuffer obj) throws IOException {
+        Segment[] segments = split(obj);
+        try {
+            IntStream.range(0, segments.length).parallel().forEach(i -> {
+                try {
+                    segments[i].scan();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
 
+        // Concatenate all positions/normals and compute the global face offsets
+        int numPositions = 0, numNormals = 0, faceOffset = 0;
+        for (Segment s : segments) {
+            s.faceOffset = faceOffset;
+            numPositions += s.numPositions;
+            numNormals += s.numNormals;
+            faceOffset += s.numFaces;
+        }
+        int numFaces = faceOffset;
+        float[] positions = new float[numPositions], normals = new float[numNormals];
+        int[] faces = new int[numFaces * 6];
         Mesh mesh = new Mesh();
-        MeshObject object = null;
+        numPositions = numNormals = 0;
+        for (Segment s : segments) {
+            System.arraycopy(s.positions, 0, positions, numPositions, s.numPositions);
+            System.arraycopy(s.normals, 0, normals, numNormals, s.numNormals);
+            System.arraycopy(s.faces, 0, faces, s.faceOffset * 6, s.numFaces * 6);
+            numPositions += s.numPositions;
+            numNormals += s.numNormals;
+            for (int i = 0; i < s.objectNames.size(); i++) {
+                MeshObject object = new MeshObject();
+                object.name = s.objectNames.get(i);
+                object.first = s.faceOffset + s.objectFirstFaces[i];
+                mesh.objects.add(object);
+            }
+        }
+        for (int i = 0; i < mesh.objects.size(); i++) {
+            MeshObject object = mesh.objects.get(i);
+            object.count = (i + 1 < mesh.objects.size() ? mesh.objects.get(i + 1).first : numFaces) - object.first;
+        }
+        if (mesh.objects.isEmpty()) {
+            MeshObject object = new MeshObject();
+            object.count = numFaces;
+            mesh.objects.add(object);
+        }
+
+        // Allocate buffers for the actual face vertices/normals
+        int positionComponents = fourComponentPosition ? 4 : 3;
+        FloatBuffer positionData = indexed ? null : BufferUtils.createFloatBuffer(positionComponents * 3 * numFaces);
+        FloatBuffer normalData = indexed ? null : BufferUtils.createFloatBuffer(3 * 3 * numFaces);
 
+        // Resolve all faces in parallel and compute the bounds of each task
+        int numTasks = (numFaces + FACES_PER_TASK - 1) / FACES_PER_TASK;
+        float[] bounds = new float[numTasks * 6];
+        IntStream.range(0, numTasks).parallel().forEach(t -> {
+            float minX = 1E38f, minY = 1E38f, minZ = 1E38f;
+            float maxX = -1E38f, maxY = -1E38f, maxZ = -1E38f;
+            for (int v = t * FACES_PER_TASK * 3, e = Math.min(numFaces, (t + 1) * FACES_PER_TASK) * 3; v < e; v++) {
+                int p = faces[v * 2] * 3, n = faces[v * 2 + 1] * 3;
+                float x = positions[p], y = positions[p + 1], z = positions[p + 2];
+                minX = minX < x ? minX : x;
+                minY = minY < y ? minY : y;
+                minZ = minZ < z ? minZ : z;
+                maxX = maxX > x ? maxX : x;
+                maxY = maxY > y ? maxY : y;
+                maxZ = maxZ > z ? maxZ : z;
+                if (indexed)
+                    continue;
+                int o = v * positionComponents;
+                positionData.put(o, x).put(o + 1, y).put(o + 2, z);
+                if (fourComponentPosition)
+                    positionData.put(o + 3, 1.0f);
+                normalData.put(v * 3, normals[n]).put(v * 3 + 1, normals[n + 1]).put(v * 3 + 2, normals[n + 2]);
+            }
+            bounds[t * 6] = minX; bounds[t * 6 + 1] = minY; bounds[t * 6 + 2] = minZ;
+            bounds[t * 6 + 3] = maxX; bounds[t * 6 + 4] = maxY; bounds[t * 6 + 5] = maxZ;
+        });
         float minX = 1E38f, minY = 1E38f, minZ = 1E38f;
         float maxX = -1E38f, maxY = -1E38f, maxZ = -1E38f;
+        for (int t = 0; t < numTasks; t++) {
+            minX = minX < bounds[t * 6] ? minX : bounds[t * 6];
+            minY = minY < bounds[t * 6 + 1] ? minY : bounds[t * 6 + 1];
+            minZ = minZ < bounds[t * 6 + 2] ? minZ : bounds[t * 6 + 2];
+            maxX = maxX > bounds[t * 6 + 3] ? maxX : bounds[t * 6 + 3];
+            maxY = maxY > bounds[t * 6 + 4] ? maxY : bounds[t * 6 + 4];
+            maxZ = maxZ > bounds[t * 6 + 5] ? maxZ : bounds[t * 6 + 5];
+        }
 
-        BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(arr)));
-        String line;
-        int faceIndex = 0;
-        Vector3f tmp = new Vector3f();
-        while ((line = reader.readLine()) != null) {
-            if (line.startsWith("o ")) {
-                String name = line.substring(2);
-                object = new MeshObject();
-                object.name = name;
-                object.first = faceIndex;
-                mesh.objects.add(object);
-            } else if (line.startsWith("vn ")) {
-                String[] ns = line.split(" +");
-                float x = Float.parseFloat(ns[1]);
-                float y = Float.parseFloat(ns[2]);
-                float z = Float.parseFloat(ns[3]);
-                normals.put(x).put(y).put(z);
-            } else if (line.startsWith("v ")) {
-                String[] vs = line.split(" +");
-                float x = Float.parseFloat(vs[1]);
-                float y = Float.parseFloat(vs[2]);
-                float z = Float.parseFloat(vs[3]);
-                positions.put(x).put(y).put(z);
-            } else if (line.startsWith("f")) {
-                String[] fs = line.split(" +");
-                String[] f1 = fs[1].split("/");
-                String[] f2 = fs[2].split("/");
-                String[] f3 = fs[3].split("/");
-                int v1 = Integer.parseInt(f1[0]);
-                int v2 = Integer.parseInt(f2[0]);
-                int v3 = Integer.parseInt(f3[0]);
-                int n1 = Integer.parseInt(f1[2]);
-                int n2 = Integer.parseInt(f2[2]);
-                int n3 = Integer.parseInt(f3[2]);
-                float ver1X = positions.get(3 * (v1 - 1) + 0);
-                float ver1Y = positions.get(3 * (v1 - 1) + 1);
-                float ver1Z = positions.get(3 * (v1 - 1) + 2);
-                minX = minX < ver1X ? minX : ver1X;
-                minY = minY < ver1Y ? minY : ver1Y;
-                minZ = minZ < ver1Z ? minZ : ver1Z;
-                maxX = maxX > ver1X ? maxX : ver1X;
-                maxY = maxY > ver1Y ? maxY : ver1Y;
-                maxZ = maxZ > ver1Z ? maxZ : ver1Z;
-                tmp.set(ver1X, ver1Y, ver1Z);
-                if (object != null) {
-                    object.min.min(tmp);
-                    object.max.max(tmp);
-                }
-                float ver2X = positions.get(3 * (v2 - 1) + 0);
-                float ver2Y = positions.get(3 * (v2 - 1) + 1);
-                float ver2Z = positions.get(3 * (v2 - 1) + 2);
-                minX = minX < ver2X ? minX : ver2X;
-                minY = minY < ver2Y ? minY : ver2Y;
-                minZ = minZ < ver2Z ? minZ : ver2Z;
-                maxX = maxX > ver2X ? maxX : ver2X;
-                maxY = maxY > ver2Y ? maxY : ver2Y;
-                maxZ = maxZ > ver2Z ? maxZ : ver2Z;
-                tmp.set(ver2X, ver2Y, ver2Z);
-                if (object != null) {
-                    object.min.min(tmp);
-                    object.max.max(tmp);
-                }
-                float ver3X = positions.get(3 * (v3 - 1) + 0);
-                float ver3Y = positions.get(3 * (v3 - 1) + 1);
-                float ver3Z = positions.get(3 * (v3 - 1) + 2);
-                minX = minX < ver3X ? minX : ver3X;
-                minY = minY < ver3Y ? minY : ver3Y;
-                minZ = minZ < ver3Z ? minZ : ver3Z;
-                maxX = maxX > ver3X ? maxX : ver3X;
-                maxY = maxY > ver3Y ? maxY : ver3Y;
-                maxZ = maxZ > ver3Z ? maxZ : ver3Z;
-                tmp.set(ver3X, ver3Y, ver3Z);
-                if (object != null) {
+        // Compute the bounds of each named object
+        if (mesh.objects.get(0).name != null) {
+            mesh.objects.parallelStream().forEach(object -> {
+                Vector3f tmp = new Vector3f();
+                for (int v = object.first * 3, e = (object.first + object.count) * 3; v < e; v++) {
+                    int p = faces[v * 2] * 3;
+                    tmp.set(positions[p], positions[p + 1], positions[p + 2]);
                     object.min.min(tmp);
                     object.max.max(tmp);
                 }
-                positionData.put(ver1X).put(ver1Y).put(ver1Z);
-                if (fourComponentPosition) {
-                    positionData.put(1.0f);
-                }
-                positionData.put(ver2X).put(ver2Y).put(ver2Z);
-                if (fourComponentPosition) {
-                    positionData.put(1.0f);
-                }
-                positionData.put(ver3X).put(ver3Y).put(ver3Z);
-                if (fourComponentPosition) {
-                    positionData.put(1.0f);
+            });
+        }
+        mesh.boundingSphereRadius = Math.max(maxX - minX, Math.max(maxY - minY, maxZ - minZ)) * 0.5f;
+        if (indexed) {
+            buildIndexed(mesh, faces, numFaces, positions, normals);
+        } else {
+            mesh.positions = positionData;
+            mesh.normals = normalData;
+            mesh.numVertices = numFaces * 3;
+        }
+        return mesh;
+    }
+
+    /**
+     * Deduplicate all (position, normal) index pairs of the given faces using
+     * an open-addressing hash table and build the indexed mesh.
+     */
+    private void buildIndexed(Mesh mesh, int[] faces, int numFaces, float[] positions, float[] normals) {
+        int count = numFaces * 3;
+        int[] indices = new int[count];
+        int[] vertices = new int[count * 2];
+        int[] table = new int[Integer.highestOneBit(Math.max(count, 1)) * 4];
+        int mask = table.length - 1, numVertices = 0;
+        for (int v = 0; v < count; v++) {
+            int p = faces[v * 2], n = faces[v * 2 + 1];
+            int h = p * 0x9E3779B1 ^ n * 0x85EBCA77;
+            for (int i = (h ^ h >>> 16) & mask;; i = i + 1 & mask) {
+                int e = table[i] - 1;
+                if (e < 0) {
+                    table[i] = numVertices + 1;
+                    vertices[numVertices * 2] = p;
+                    vertices[numVertices * 2 + 1] = n;
+                    indices[v] = numVertices++;
+                    break;
                 }
-                float norm1X = normals.get(3 * (n1 - 1) + 0);
-                float norm1Y = normals.get(3 * (n1 - 1) + 1);
-                float norm1Z = normals.get(3 * (n1 - 1) + 2);
-                float norm2X = normals.get(3 * (n2 - 1) + 0);
-                float norm2Y = normals.get(3 * (n2 - 1) + 1);
-                float norm2Z = normals.get(3 * (n2 - 1) + 2);
-                float norm3X = normals.get(3 * (n3 - 1) + 0);
-                float norm3Y = normals.get(3 * (n3 - 1) + 1);
-                float norm3Z = normals.get(3 * (n3 - 1) + 2);
-                normalData.put(norm1X).put(norm1Y).put(norm1Z);
-                normalData.put(norm2X).put(norm2Y).put(norm2Z);
-                normalData.put(norm3X).put(norm3Y).put(norm3Z);
-                faceIndex++;
-                if (object != null) {
-                    object.count++;
+                if (vertices[e * 2] == p && vertices[e * 2 + 1] == n) {
+                    indices[v] = e;
+                    break;
                 }
             }
         }
-        if (mesh.objects.isEmpty()) {
-            object = new MeshObject();
-            object.count = faceIndex;
-            mesh.objects.add(object);
+        int[] order = null;
+        if (optimizeVertexCache) {
+            // triangles may only move within their object, including faces before the first named object
+            List<int[]> ranges = new ArrayList<>();
+            int firstObjectFace = mesh.objects.get(0).name != null ? mesh.objects.get(0).first : 0;
+            if (firstObjectFace > 0)
+                ranges.add(new int[] { 0, firstObjectFace });
+            for (MeshObject object : mesh.objects)
+                ranges.add(new int[] { object.first, object.count });
+            ranges.parallelStream().forEach(r -> VertexCacheOptimizer.optimizeTriangles(indices, r[0] * 3, r[1] * 3));
+            order = VertexCacheOptimizer.reorderVertices(indices, count, numVertices);
+        }
+        int positionComponents = fourComponentPosition ? 4 : 3;
+        FloatBuffer positionData = BufferUtils.createFloatBuffer(positionComponents * numVertices);
+        FloatBuffer normalData = BufferUtils.createFloatBuffer(3 * numVertices);
+        for (int v = 0; v < numVertices; v++) {
+            int u = order != null ? order[v] : v;
+            int p = vertices[u * 2] * 3, n = vertices[u * 2 + 1] * 3;
+            positionData.put(positions[p]).put(positions[p + 1]).put(positions[p + 2]);
+            if (fourComponentPosition)
+                positionData.put(1.0f);
+            normalData.put(normals[n]).put(normals[n + 1]).put(normals[n + 2]);
         }
         positionData.flip();
         normalData.flip();
-        mesh.boundingSphereRadius = Math.max(maxX - minX, Math.max(maxY - minY, maxZ - minZ)) * 0.5f;
         mesh.positions = positionData;
         mesh.normals = normalData;
-        mesh.numVertices = positionData.limit() / (fourComponentPosition ? 4 : 3);
+        mesh.numVertices = numVertices;
+        mesh.indices = BufferUtils.createIntBuffer(count).put(indices, 0, count);
+        mesh.indices.flip();
+        mesh.numIndices = count;
+    }
+
+    private int flags() {
+        return (fourComponentPosition ? 1 : 0) | (indexed ? 2 : 0) | (indexed && optimizeVertexCache ? 4 : 0);
+    }
+
+    /**
+     * Hash the raw (possibly still compressed) bytes of a resource together with
+     * the options affecting the loaded mesh.
+     */
+    private long cacheKey(ByteBuffer raw) {
+        ByteBuffer bb = raw.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        long h = mix(CACHE_VERSION ^ (long) flags() << 8 ^ (long) bb.remaining() << 32);
+        while (bb.remaining() >= Long.BYTES)
+            h = mix(h ^ bb.getLong()) + 0x9E3779B97F4A7C15L;
+        while (bb.hasRemaining())
+            h = mix(h ^ bb.get() & 0xFF);
+        return h;
+    }
+
+    private static long mix(long h) {
+        h = (h ^ h >>> 33) * 0xff51afd7ed558ccdL;
+        h = (h ^ h >>> 33) * 0xc4ceb9fe1a85ec53L;
+        return h ^ h >>> 33;
+    }
+
+    /**
+     * Write the given mesh to a little-endian cache file consisting of a header
+     * (magic, version, flags, vertex count, index count, object count, bounding
+     * sphere radius, reserved, key), all {@link MeshObject}s (first, count, min,
+     * max, UTF-8 name length or -1 and name, padded to 4 bytes) and finally the
+     * positions, normals and indices.
+     */
+    private void writeCache(Path file, long key, Mesh mesh) throws IOException {
+        List<byte[]> names = new ArrayList<>();
+        int objectsSize = 0;
+        for (MeshObject o : mesh.objects) {
+            byte[] name = o.name != null ? o.name.getBytes(StandardCharsets.UTF_8) : null;
+            names.add(name);
+            objectsSize += CACHE_OBJECT_SIZE + (name != null ? name.length + 3 & ~3 : 0);
+        }
+        int pc = fourComponentPosition ? 4 : 3;
+        long size = CACHE_HEADER_SIZE + objectsSize
+                + ((long) mesh.numVertices * (pc + 3) + mesh.numIndices) * Float.BYTES;
+        ByteBuffer bb = BufferUtils.createByteBuffer((int) size).order(ByteOrder.LITTLE_ENDIAN);
+        bb.putInt(CACHE_MAGIC).putInt(CACHE_VERSION).putInt(flags()).putInt(mesh.numVertices)
+          .putInt(mesh.numIndices).putInt(mesh.objects.size()).putFloat(mesh.boundingSphereRadius).putInt(0)
+          .putLong(key);
+        for (int i = 0; i < mesh.objects.size(); i++) {
+            MeshObject o = mesh.objects.get(i);
+            byte[] name = names.get(i);
+            bb.putInt(o.first).putInt(o.count);
+            bb.putFloat(o.min.x).putFloat(o.min.y).putFloat(o.min.z);
+            bb.putFloat(o.max.x).putFloat(o.max.y).putFloat(o.max.z);
+            bb.putInt(name != null ? name.length : -1);
+            if (name != null)
+                bb.put(name).position(bb.position() + (-name.length & 3));
+        }
+        bb.asFloatBuffer().put(mesh.positions.duplicate());
+        bb.position(bb.position() + mesh.numVertices * pc * Float.BYTES);
+        bb.asFloatBuffer().put(mesh.normals.duplicate());
+        bb.position(bb.position() + mesh.numVertices * 3 * Float.BYTES);
+        if (mesh.indices != null)
+            bb.asIntBuffer().put(mesh.indices.duplicate());
+        bb.clear();
+        Files.createDirectories(file.getParent());
+        Path tmp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+        try {
+            try (FileChannel fc = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                while (bb.hasRemaining())
+                    fc.write(bb);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * Map a cache file previously written via {@link #writeCache(Path, long, Mesh)}.
+     * On little-endian platforms, the mesh buffers are views of the mapped file.
+     *
+     * @return the mesh, or <code>null</code> if the file does not exist or was
+     *         written for a different resource or different options
+     */
+    private Mesh readCache(Path file, long key) throws IOException {
+        if (!Files.isRegularFile(file))
+            return null;
+        ByteBuffer bb;
+        try (FileChannel fc = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (fc.size() < CACHE_HEADER_SIZE)
+                return null;
+            bb = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size()).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        if (bb.getInt() != CACHE_MAGIC || bb.getInt() != CACHE_VERSION || bb.getInt() != flags())
+            return null;
+        Mesh mesh = new Mesh();
+        mesh.numVertices = bb.getInt();
+        mesh.numIndices = bb.getInt();
+        int numObjects = bb.getInt();
+        mesh.boundingSphereRadius = bb.getFloat();
+        bb.getInt();
+        if (bb.getLong() != key)
+            return null;
+        try {
+            for (int i = 0; i < numObjects; i++) {
+                MeshObject o = new MeshObject();
+                o.first = bb.getInt();
+                o.count = bb.getInt();
+                o.min.set(bb.getFloat(), bb.getFloat(), bb.getFloat());
+                o.max.set(bb.getFloat(), bb.getFloat(), bb.getFloat());
+                int nameLength = bb.getInt();
+                if (nameLength >= 0) {
+                    byte[] name = new byte[nameLength];
+                    bb.get(name).position(bb.position() + (-nameLength & 3));
+                    o.name = new String(name, StandardCharsets.UTF_8);
+                }
+                mesh.objects.add(o);
+            }
+            int pc = fourComponentPosition ? 4 : 3;
+            if (bb.remaining() != ((long) mesh.numVertices * (pc + 3) + mesh.numIndices) * Float.BYTES)
+                return null;
+            mesh.positions = floats(bb, mesh.numVertices * pc);
+            mesh.normals = floats(bb, mesh.numVertices * 3);
+            if (indexed) {
+                ByteBuffer slice = bb.slice().order(ByteOrder.LITTLE_ENDIAN);
+                if (ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN)
+                    mesh.indices = slice.asIntBuffer();
+                else
+                    mesh.indices = BufferUtils.createIntBuffer(mesh.numIndices).put(slice.asIntBuffer()).flip();
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            return null;
+        }
         return mesh;
     }
+
+    private static FloatBuffer floats(ByteBuffer bb, int count) {
+        ByteBuffer slice = bb.slice().order(ByteOrder.LITTLE_ENDIAN);
+        slice.limit(count * Float.BYTES);
+        bb.position(bb.position() + count * Float.BYTES);
+        if (ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN)
+            return slice.asFloatBuffer();
+        return BufferUtils.createFloatBuffer(count).put(slice.asFloatBuffer()).flip();
+    }
+
+    /**
+     * Split the remaining bytes of the given buffer into line-aligned segments.
+     */
+    private static Segment[] split(ByteBuffer obj) {
+        int start = obj.position(), end = obj.limit();
+        int n = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors() * 4, (end - start) / MIN_SEGMENT_SIZE));
+        Segment[] segments = new Segment[n];
+        int s = start;
+        for (int i = 0; i < n; i++) {
+            int e = i == n - 1 ? end : Math.max(s, start + (int) ((long) (end - start) * (i + 1) / n));
+            while (e < end && obj.get(e - 1) != '\n')
+                e++;
+            segments[i] = new Segment(obj, s, e);
+            s = e;
+        }
+        return segments;
+    }
 }
@@ -17,7 +17,12 @@ import static org.lwjgl.vulkan.VK10.*;
 
 import java.io.IOException;
 import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 import org.lwjgl.PointerBuffer;
 import org.lwjgl.system.*;
@@ -57,15 +62,150 @@ public class VKUtil {
         }
     }
 
+    /**
+     * The directory holding cached SPIR-V binaries, given by the system property
+     * <code>spirvcache</code> (empty to disable caching), or a directory below
+     * <code>java.io.tmpdir</code>.
+     */
+    private static final Path SPIRV_CACHE_DIRECTORY = spirvCacheDirectory();
+    private static final int SPIRV_CACHE_MAGIC = 0x43565053; // "SPVC"
+    private static final int SPIRV_CACHE_VERSION = 2;
+    /* The shaderc options used by compile(), which are also part of the cache key */
+    private static final int SPIRV_TARGET_ENV = shaderc_target_env_vulkan;
+    private static final int SPIRV_TARGET_ENV_VERSION = shaderc_env_version_vulkan_1_2;
+    private static final int SPIRV_VERSION = shaderc_spirv_version_1_4;
+    private static final int SPIRV_OPTIMIZATION_LEVEL = shaderc_optimization_level_performance;
+    private static final AtomicLong spirvCacheHits = new AtomicLong();
+    private static final AtomicLong spirvCacheMisses = new AtomicLong();
+
+    private static Path spirvCacheDirectory() {
+        String dir = System.getProperty("spirvcache");
+        if (dir == null)
+            return Paths.get(System.getProperty("java.io.tmpdir"), "lwjgl3-demos-spirvcache");
+        return dir.isEmpty() ? null : Paths.get(dir);
+    }
+
+    /**
+     * @return the number of shaders found in the SPIR-V cache so far
+     */
+    public static long spirvCacheHits() {
+        return spirvCacheHits.get();
+    }
+
+    /**
+     * @return the number of shaders which had to be compiled so far
+     */
+    public static long spirvCacheMisses() {
+        return spirvCacheMisses.get();
+    }
+
+    /**
+     * Compile the given GLSL classpath resource to SPIR-V.
+     * <p>
+     * Results are cached on disk, keyed by a hash of the source, the stage and
+     * the compile options. Each cache entry also records the includes resolved
+     * during compilation together with a hash of their contents, so that
+     * changing an included file invalidates the entry as well.
+     */
     public static ByteBuffer glslToSpirv(String classPath, int vulkanStage) throws IOException {
         ByteBuffer src = ioResourceToByteBuffer(classPath, 1024);
+        long key = spirvKey(classPath, vulkanStage, src);
+        ByteBuffer cached = readSpirvCache(key);
+        if (cached != null)
+            return cached;
         long compiler = shaderc_compiler_initialize();
+        try {
+            return compileAndCache(compiler, classPath, vulkanStage, src, key);
+        } finally {
+            shaderc_compiler_release(compiler);
+        }
+    }
+
+    /**
+     * Compile all given GLSL classpath resources to SPIR-V, like
+     * {@link #glslToSpirv(String, int)}, but compile all shaders missing from
+     * the cache concurrently, using one shaderc compiler per thread.
+     *
+     * @param classPaths   the GLSL resources
+     * @param vulkanStages the Vulkan shader stage of each resource
+     * @return the SPIR-V binaries in the same order as <code>classPaths</code>
+     */
+    public static ByteBuffer[] glslToSpirv(String[] classPaths, int[] vulkanStages) throws IOException {
+        int n = classPaths.length;
+        ByteBuffer[] result = new ByteBuffer[n];
+        ByteBuffer[] sources = new ByteBuffer[n];
+        long[] keys = new long[n];
+        int[] missing = new int[n];
+        int numMissing = 0;
+        for (int i = 0; i < n; i++) {
+            sources[i] = ioResourceToByteBuffer(classPaths[i], 1024);
+            keys[i] = spirvKey(classPaths[i], vulkanStages[i], sources[i]);
+            if ((result[i] = readSpirvCache(keys[i])) == null)
+                missing[numMissing++] = i;
+        }
+        if (numMissing == 0)
+            return result;
+        int numThreads = Math.min(numMissing, Runtime.getRuntime().availableProcessors());
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        AtomicInteger next = new AtomicInteger();
+        int total = numMissing;
+        try {
+            List<Future<Void>> futures = new ArrayList<>();
+            for (int t = 0; t < numThreads; t++) {
+                futures.add(executor.submit(() -> {
+                    long compiler = shaderc_compiler_initialize();
+                    try {
+                        for (int j; (j = next.getAndIncrement()) < total;) {
+                            int i = missing[j];
+                            result[i] = compileAndCache(compiler, classPaths[i], vulkanStages[i], sources[i], keys[i]);
+                        }
+                    } finally {
+                        shaderc_compiler_release(compiler);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<Void> f : futures)
+                f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new IOException(cause);
+        } finally {
+            executor.shutdown();
+        }
+        return result;
+    }
+
+    private static ByteBuffer compileAndCache(long compiler, String classPath, int vulkanStage, ByteBuffer src, long key)
+            throws IOException {
+        spirvCacheMisses.incrementAndGet();
+        List<String> includes = new ArrayList<>();
+        ByteBuffer spirv = compile(compiler, classPath, vulkanStage, src, includes);
+        try {
+            writeSpirvCache(key, includes, spirv);
+        } catch (IOException e) {
+            // the cache is only an optimization
+        }
+        return spirv;
+    }
+
+    private static ByteBuffer compile(long compiler, String classPath, int vulkanStage, ByteBuffer src,
+            List<String> includes) {
         long options = shaderc_compile_options_initialize();
         ShadercIncludeResolve resolver;
         ShadercIncludeResultRelease releaser;
-        shaderc_compile_options_set_target_env(options, shaderc_target_env_vulkan, shaderc_env_version_vulkan_1_2);
-        shaderc_compile_options_set_target_spirv(options, shaderc_spirv_version_1_4);
-        shaderc_compile_options_set_optimization_level(options, shaderc_optimization_level_performance);
+        shaderc_compile_options_set_target_env(options, SPIRV_TARGET_ENV, SPIRV_TARGET_ENV_VERSION);
+        shaderc_compile_options_set_target_spirv(options, SPIRV_VERSION);
+        shaderc_compile_options_set_optimization_level(options, SPIRV_OPTIMIZATION_LEVEL);
         shaderc_compile_options_set_include_callbacks(options, resolver = new ShadercIncludeResolve() {
             public long invoke(long user_data, long requested_source, int type, long requesting_source, long include_depth) {
                 ShadercIncludeResult res = ShadercIncludeResult.calloc();
@@ -73,6 +213,7 @@ public class VKUtil {
                     String src = classPath.substring(0, classPath.lastIndexOf('/')) + "/" + memUTF8(requested_source);
                     res.content(ioResourceToByteBuffer(src, 1024));
                     res.source_name(memUTF8(src));
+                    includes.add(src);
                     return res.address();
                 } catch (IOException e) {
                     throw new AssertionError("Failed to resolve include: " + src);
@@ -91,18 +232,130 @@ public class VKUtil {
             if (res == 0L)
                 throw new AssertionError("Internal error during compilation!");
         }
-        if (shaderc_result_get_compilation_status(res) != shaderc_compilation_status_success) {
-            throw new AssertionError("Shader compilation failed: " + shaderc_result_get_error_message(res));
+        try {
+            if (shaderc_result_get_compilation_status(res) != shaderc_compilation_status_success) {
+                throw new AssertionError("Shader compilation failed: " + shaderc_result_get_error_message(res));
+            }
+            int size = (int) shaderc_result_get_length(res);
+            ByteBuffer resultBytes = createByteBuffer(size);
+            resultBytes.put(shaderc_result_get_bytes(res));
+            resultBytes.flip();
+            return resultBytes;
+        } finally {
+            shaderc_result_release(res);
+            shaderc_compile_options_release(options);
+            releaser.free();
+            resolver.free();
+        }
+    }
+
+    private static long spirvKey(String classPath, int vulkanStage, ByteBuffer src) {
+        long h = hash(mix(SPIRV_CACHE_VERSION ^ (long) vulkanStage << 32), classPath.getBytes(StandardCharsets.UTF_8));
+        h = mix(h ^ SPIRV_TARGET_ENV ^ (long) SPIRV_TARGET_ENV_VERSION << 32);
+        h = mix(h ^ SPIRV_VERSION ^ (long) SPIRV_OPTIMIZATION_LEVEL << 32);
+        ByteBuffer bb = src.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        while (bb.remaining() >= Long.BYTES)
+            h = mix(h ^ bb.getLong()) + 0x9E3779B97F4A7C15L;
+        while (bb.hasRemaining())
+            h = mix(h ^ bb.get() & 0xFF);
+        return mix(h ^ src.remaining());
+    }
+
+    private static long hash(long h, byte[] bytes) {
+        for (byte b : bytes)
+            h = mix(h ^ b & 0xFF);
+        return h;
+    }
+
+    private static long mix(long h) {
+        h = (h ^ h >>> 33) * 0xff51afd7ed558ccdL;
+        h = (h ^ h >>> 33) * 0xc4ceb9fe1a85ec53L;
+        return h ^ h >>> 33;
+    }
+
+    private static long includesHash(List<String> includes) throws IOException {
+        long h = mix(includes.size());
+        for (String include : includes) {
+            ByteBuffer bb = ioResourceToByteBuffer(include, 1024);
+            h = hash(h, include.getBytes(StandardCharsets.UTF_8));
+            while (bb.hasRemaining())
+                h = mix(h ^ bb.get() & 0xFF);
+        }
+        return h;
+    }
+
+    /**
+     * Write a little-endian cache entry consisting of magic, version, the number
+     * of includes, each include as UTF-8 length and bytes padded to a multiple
+     * of four, the hash of all include contents, the SPIR-V size and the SPIR-V
+     * binary. The padding keeps the SPIR-V words 4-byte aligned in the file.
+     */
+    private static void writeSpirvCache(long key, List<String> includes, ByteBuffer spirv) throws IOException {
+        if (SPIRV_CACHE_DIRECTORY == null)
+            return;
+        List<byte[]> names = new ArrayList<>();
+        int size = 3 * Integer.BYTES + Long.BYTES + Integer.BYTES + spirv.remaining();
+        for (String include : includes) {
+            byte[] name = include.getBytes(StandardCharsets.UTF_8);
+            names.add(name);
+            size += Integer.BYTES + (name.length + 3 & ~3);
+        }
+        ByteBuffer bb = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        bb.putInt(SPIRV_CACHE_MAGIC).putInt(SPIRV_CACHE_VERSION).putInt(names.size());
+        for (byte[] name : names)
+            bb.putInt(name.length).put(name).position(bb.position() + (-name.length & 3));
+        bb.putLong(includesHash(includes)).putInt(spirv.remaining()).put(spirv.duplicate());
+        bb.flip();
+        Files.createDirectories(SPIRV_CACHE_DIRECTORY);
+        Path file = SPIRV_CACHE_DIRECTORY.resolve(Long.toHexString(key) + ".spv");
+        Path tmp = Files.createTempFile(SPIRV_CACHE_DIRECTORY, file.getFileName().toString(), ".tmp");
+        try {
+            try (FileChannel fc = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                while (bb.hasRemaining())
+                    fc.write(bb);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * @return the cached SPIR-V binary, or <code>null</code> if there is none or
+     *         any of its includes changed
+     */
+    private static ByteBuffer readSpirvCache(long key) {
+        if (SPIRV_CACHE_DIRECTORY == null)
+            return null;
+        Path file = SPIRV_CACHE_DIRECTORY.resolve(Long.toHexString(key) + ".spv");
+        try {
+            if (!Files.isRegularFile(file))
+                return null;
+            ByteBuffer bb;
+            try (FileChannel fc = FileChannel.open(file, StandardOpenOption.READ)) {
+                bb = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size()).order(ByteOrder.LITTLE_ENDIAN);
+            }
+            if (bb.getInt() != SPIRV_CACHE_MAGIC || bb.getInt() != SPIRV_CACHE_VERSION)
+                return null;
+            int numIncludes = bb.getInt();
+            List<String> includes = new ArrayList<>();
+            for (int i = 0; i < numIncludes; i++) {
+                byte[] name = new byte[bb.getInt()];
+                bb.get(name);
+                bb.position(bb.position() + (-name.length & 3));
+                includes.add(new String(name, StandardCharsets.UTF_8));
+            }
+            if (bb.getLong() != includesHash(includes))
+                return null;
+            int size = bb.getInt();
+            if (size != bb.remaining() || (bb.position() & 3) != 0)
+                return null;
+            spirvCacheHits.incrementAndGet();
+            return bb.slice();
+        } catch (IOException | RuntimeException e) {
+            // missing include or corrupt entry
+            return null;
         }
-        int size = (int) shaderc_result_get_length(res);
-        ByteBuffer resultBytes = createByteBuffer(size);
-        resultBytes.put(shaderc_result_get_bytes(res));
-        resultBytes.flip();
-        shaderc_result_release(res);
-        shaderc_compiler_release(compiler);
-        releaser.free();
-        resolver.free();
-        return resultBytes;
     }
 
     public static void _CHECK_(int ret, String msg) {
@@ -113,6 +366,23 @@ public class VKUtil {
     public static void loadShader(VkPipelineShaderStageCreateInfo info, VkSpecializationInfo specInfo, MemoryStack stack, VkDevice device, String classPath,
             int stage) throws IOException {
         ByteBuffer shaderCode = glslToSpirv(classPath, stage);
+        createShaderModule(info, specInfo, stack, device, shaderCode, stage);
+    }
+
+    /**
+     * Load all stages of a pipeline, compiling them concurrently via
+     * {@link #glslToSpirv(String[], int[])}, and initialize the given stage
+     * create infos in the same order.
+     */
+    public static void loadShaders(VkPipelineShaderStageCreateInfo.Buffer infos, VkSpecializationInfo specInfo, MemoryStack stack, VkDevice device,
+            String[] classPaths, int[] stages) throws IOException {
+        ByteBuffer[] shaderCodes = glslToSpirv(classPaths, stages);
+        for (int i = 0; i < shaderCodes.length; i++)
+            createShaderModule(infos.get(i).sType$Default(), specInfo, stack, device, shaderCodes[i], stages[i]);
+    }
+
+    private static void createShaderModule(VkPipelineShaderStageCreateInfo info, VkSpecializationInfo specInfo, MemoryStack stack, VkDevice device,
+            ByteBuffer shaderCode, int stage) {
         LongBuffer pShaderModule = stack.mallocLong(1);
         _CHECK_(vkCreateShaderModule(device, VkShaderModuleCreateInfo.calloc(stack).sType$Default().pCode(shaderCode).flags(0), null, pShaderModule),
                 "Failed to create shader module");
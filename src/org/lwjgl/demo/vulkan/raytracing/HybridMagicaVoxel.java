@@ -4,11 +4,11 @@
  */
 package org.lwjgl.demo.vulkan.raytracing;
 
-import static java.lang.ClassLoader.getSystemResourceAsStream;
 import static java.util.Arrays.asList;
 import static java.util.Collections.emptyList;
 import static java.util.stream.Collectors.toList;
 import static org.joml.Math.*;
+import static org.lwjgl.demo.util.IOUtils.ioResourceToByteBuffer;
 import static org.lwjgl.demo.vulkan.VKUtil.*;
 import static org.lwjgl.glfw.Callbacks.glfwFreeCallbacks;
 import static org.lwjgl.glfw.GLFW.*;
@@ -32,6 +32,7 @@ import java.util.function.Consumer;
 import org.joml.*;
 import org.lwjgl.PointerBuffer;
 import org.lwjgl.demo.util.*;
+import org.lwjgl.demo.util.AssetPipeline.Asset;
 import org.lwjgl.demo.util.GreedyMeshingNoAo.Face;
 import org.lwjgl.demo.util.MagicaVoxelLoader.Material;
 import org.lwjgl.glfw.GLFWVidMode;
@@ -1250,10 +1251,9 @@ public class HybridMagicaVoxel {
             VkPipelineShaderStageCreateInfo.Buffer pStages = VkPipelineShaderStageCreateInfo
                     .calloc(2, stack);
             String pkg = HybridMagicaVoxel.class.getName().toLowerCase().replace('.', '/') + "/";
-            loadShader(pStages.get(0).sType$Default(), 
-                    null, stack, device, pkg + "raster.vs.glsl", VK_SHADER_STAGE_VERTEX_BIT);
-            loadShader(pStages.get(1).sType$Default(), 
-                    null, stack, device, pkg + "raster.fs.glsl", VK_SHADER_STAGE_FRAGMENT_BIT);
+            loadShaders(pStages, null, stack, device,
+                    new String[] { pkg + "raster.vs.glsl", pkg + "raster.fs.glsl" },
+                    new int[] { VK_SHADER_STAGE_VERTEX_BIT, VK_SHADER_STAGE_FRAGMENT_BIT });
             LongBuffer pDescriptorSetLayout = stack.mallocLong(1);
             _CHECK_(vkCreateDescriptorSetLayout(device, VkDescriptorSetLayoutCreateInfo
                     .calloc(stack)
@@ -1356,13 +1356,15 @@ public class HybridMagicaVoxel {
         }
     }
 
-    private static Geometry createGeometry() throws IOException {
-        VoxelField voxelField = buildVoxelField();
-        ArrayList<Face> faces = buildFaces(voxelField);
+    private static ByteBuffer[] triangulateFaces(ArrayList<Face> faces) {
         ByteBuffer positionsAndTypes = memAlloc(Short.BYTES * 4 * faces.size() * VERTICES_PER_FACE);
         ByteBuffer indices = memAlloc(Integer.BYTES * faces.size() * INDICES_PER_FACE);
         triangulate(faces, positionsAndTypes.asShortBuffer(), indices.asIntBuffer());
+        return new ByteBuffer[] { positionsAndTypes, indices };
+    }
 
+    private static Geometry createGeometry(ByteBuffer[] vertexData, int numFaces) {
+        ByteBuffer positionsAndTypes = vertexData[0], indices = vertexData[1];
         AllocationAndBuffer positionsBuffer = createBuffer(
                 VK_BUFFER_USAGE_ACCELERATION_STRUCTURE_BUILD_INPUT_READ_ONLY_BIT_KHR |
                 VK_BUFFER_USAGE_STORAGE_BUFFER_BIT | VK_BUFFER_USAGE_VERTEX_BUFFER_BIT |
@@ -1374,7 +1376,7 @@ public class HybridMagicaVoxel {
                 VK_BUFFER_USAGE_SHADER_DEVICE_ADDRESS_BIT, indices, Integer.BYTES, null);
         memFree(indices);
 
-        return new Geometry(positionsBuffer, indicesBuffer, faces.size());
+        return new Geometry(positionsBuffer, indicesBuffer, numFaces);
     }
 
     private static AllocationAndBuffer createMaterialsBuffer() {
@@ -1799,14 +1801,9 @@ public class HybridMagicaVoxel {
 
             // load shaders
             String pkg = HybridMagicaVoxel.class.getName().toLowerCase().replace('.', '/') + "/";
-            loadShader(pStages
-                    .get(0)
-                    .sType$Default(), 
-                    null, stack, device, pkg + "raygen.glsl", VK_SHADER_STAGE_RAYGEN_BIT_KHR);
-            loadShader(pStages
-                    .get(1)
-                    .sType$Default(),
-                    null, stack, device, pkg + "raymiss.glsl", VK_SHADER_STAGE_MISS_BIT_KHR);
+            loadShaders(pStages, null, stack, device,
+                    new String[] { pkg + "raygen.glsl", pkg + "raymiss.glsl" },
+                    new int[] { VK_SHADER_STAGE_RAYGEN_BIT_KHR, VK_SHADER_STAGE_MISS_BIT_KHR });
 
             VkRayTracingShaderGroupCreateInfoKHR.Buffer groups = VkRayTracingShaderGroupCreateInfoKHR
                     .calloc(2, stack);
@@ -2228,10 +2225,6 @@ public class HybridMagicaVoxel {
         ubo.flushMapped(off, Float.BYTES * 16 * 3);
     }
 
-    private static int idx(int x, int y, int z, int width, int depth) {
-        return (x + 1) + (width + 2) * ((z + 1) + (y + 1) * (depth + 2));
-    }
-
     private static class VoxelField {
         int w, d;
         Vector3i min;
@@ -2241,37 +2234,30 @@ public class HybridMagicaVoxel {
 
     private static VoxelField buildVoxelField() throws IOException {
         Vector3i dims = new Vector3i();
-        Vector3i min = new Vector3i(Integer.MAX_VALUE);
-        Vector3i max = new Vector3i(Integer.MIN_VALUE);
+        int[] bounds = new int[6];
         byte[] field = new byte[(256 + 2) * (256 + 2) * (256 + 2)];
-        try (InputStream is = getSystemResourceAsStream("org/lwjgl/demo/models/mikelovesrobots_mmmm/scene_house6.vox");
-             BufferedInputStream bis = new BufferedInputStream(is)) {
-            new MagicaVoxelLoader().read(bis, new MagicaVoxelLoader.Callback() {
-                public void voxel(int x, int y, int z, byte c) {
-                    y = dims.z - y - 1;
-                    field[idx(x, z, y, dims.x, dims.z)] = c;
-                    min.set(min(min.x, x), min(min.y, z), min(min.z, y));
-                    max.set(max(max.x, x), max(max.y, z), max(max.z, y));
-                }
-                public void size(int x, int y, int z) {
-                    dims.x = x;
-                    dims.y = z;
-                    dims.z = y;
-                }
-                public void paletteMaterial(int i, Material mat) {
-                    if (i > 255) {
-                        System.out.println("Material index " + i + " is out of range, ignoring");
-                        return;
-                    }
-                    materials[i] = mat;
+        ByteBuffer vox = ioResourceToByteBuffer("org/lwjgl/demo/models/mikelovesrobots_mmmm/scene_house6.vox", 8192);
+        new MagicaVoxelLoader().readField(vox, field, bounds, new MagicaVoxelLoader.Callback() {
+            public void voxel(int x, int y, int z, byte c) {
+            }
+            public void size(int x, int y, int z) {
+                dims.x = x;
+                dims.y = z;
+                dims.z = y;
+            }
+            public void paletteMaterial(int i, Material mat) {
+                if (i > 255) {
+                    System.out.println("Material index " + i + " is out of range, ignoring");
+                    return;
                 }
-            });
-        }
+                materials[i] = mat;
+            }
+        });
         VoxelField res = new VoxelField();
         res.w = dims.x;
         res.d = dims.z;
-        res.min = min;
-        res.max = max;
+        res.min = new Vector3i(bounds[0], bounds[1], bounds[2]);
+        res.max = new Vector3i(bounds[3], bounds[4], bounds[5]);
         res.field = field;
         return res;
     }
@@ -2349,6 +2335,14 @@ public class HybridMagicaVoxel {
     }
 
     private static void init() throws IOException {
+        /* Load and mesh the scene while creating the Vulkan objects */
+        AssetPipeline assets = new AssetPipeline();
+        Asset<VoxelField> voxelField = assets.add("voxel field", HybridMagicaVoxel::buildVoxelField);
+        voxelField.upload(vf -> materialsBuffer = createMaterialsBuffer());
+        Asset<ArrayList<Face>> faces = assets.add("greedy mesh", () -> buildFaces(voxelField.get()), voxelField);
+        assets.add("triangulation", () -> triangulateFaces(faces.get()), faces)
+              .upload(vertexData -> geometry = createGeometry(vertexData, faces.get().size()));
+        assets.start();
         PointerBuffer requiredExtensions = initGlfwAndReturnRequiredExtensions();
         instance = createInstance(requiredExtensions);
         windowAndCallbacks = createWindow();
@@ -2371,10 +2365,10 @@ public class HybridMagicaVoxel {
         normalImages = createNormalImages();
         sampler = createSampler();
         queryPool = createQueryPool();
-        geometry = createGeometry();
+        assets.finish();
+        assets.report(System.out);
         renderPass = createRasterRenderPass();
         framebuffers = createFramebuffers();
-        materialsBuffer = createMaterialsBuffer();
         blas = createBottomLevelAccelerationStructure(geometry);
         tlas = createTopLevelAccelerationStructure(blas);
         ubo = createUniformBufferObject(uboStructSize);
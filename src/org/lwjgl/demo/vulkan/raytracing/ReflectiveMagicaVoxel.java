@@ -4,11 +4,11 @@
  */
 package org.lwjgl.demo.vulkan.raytracing;
 
-import static java.lang.ClassLoader.getSystemResourceAsStream;
 import static java.util.Arrays.asList;
 import static java.util.Collections.emptyList;
 import static java.util.stream.Collectors.toList;
 import static org.joml.Math.*;
+import static org.lwjgl.demo.util.IOUtils.ioResourceToByteBuffer;
 import static org.lwjgl.demo.vulkan.VKUtil.*;
 import static org.lwjgl.glfw.Callbacks.glfwFreeCallbacks;
 import static org.lwjgl.glfw.GLFW.*;
@@ -1417,18 +1417,9 @@ public class ReflectiveMagicaVoxel {
 
             // load shaders
             String pkg = ReflectiveMagicaVoxel.class.getName().toLowerCase().replace('.', '/') + "/";
-            loadShader(pStages
-                    .get(0)
-                    .sType$Default(), 
-                    null, stack, device, pkg + "raygen.glsl", VK_SHADER_STAGE_RAYGEN_BIT_KHR);
-            loadShader(pStages
-                    .get(1)
-                    .sType$Default(),
-                    null, stack, device, pkg + "raymiss.glsl", VK_SHADER_STAGE_MISS_BIT_KHR);
-            loadShader(pStages
-                    .get(2)
-                    .sType$Default(),
-                    null, stack, device, pkg + "closesthit.glsl", VK_SHADER_STAGE_CLOSEST_HIT_BIT_KHR);
+            loadShaders(pStages, null, stack, device,
+                    new String[] { pkg + "raygen.glsl", pkg + "raymiss.glsl", pkg + "closesthit.glsl" },
+                    new int[] { VK_SHADER_STAGE_RAYGEN_BIT_KHR, VK_SHADER_STAGE_MISS_BIT_KHR, VK_SHADER_STAGE_CLOSEST_HIT_BIT_KHR });
 
             VkRayTracingShaderGroupCreateInfoKHR.Buffer groups = VkRayTracingShaderGroupCreateInfoKHR
                     .calloc(3, stack);
@@ -1762,10 +1753,6 @@ public class ReflectiveMagicaVoxel {
         rayTracingUbos[idx].flushMapped(0, Float.BYTES * 16 * 2);
     }
 
-    private static int idx(int x, int y, int z, int width, int depth) {
-        return (x + 1) + (width + 2) * ((z + 1) + (y + 1) * (depth + 2));
-    }
-
     private static class VoxelField {
         int w, d;
         Vector3i min;
@@ -1775,33 +1762,26 @@ public class ReflectiveMagicaVoxel {
 
     private static VoxelField buildVoxelField() throws IOException {
         Vector3i dims = new Vector3i();
-        Vector3i min = new Vector3i(Integer.MAX_VALUE);
-        Vector3i max = new Vector3i(Integer.MIN_VALUE);
+        int[] bounds = new int[6];
         byte[] field = new byte[(256 + 2) * (256 + 2) * (256 + 2)];
-        try (InputStream is = getSystemResourceAsStream("org/lwjgl/demo/models/mikelovesrobots_mmmm/scene_house5.vox");
-             BufferedInputStream bis = new BufferedInputStream(is)) {
-            new MagicaVoxelLoader().read(bis, new MagicaVoxelLoader.Callback() {
-                public void voxel(int x, int y, int z, byte c) {
-                    y = dims.z - y - 1;
-                    field[idx(x, z, y, dims.x, dims.z)] = c;
-                    min.set(min(min.x, x), min(min.y, z), min(min.z, y));
-                    max.set(max(max.x, x), max(max.y, z), max(max.z, y));
-                }
-                public void size(int x, int y, int z) {
-                    dims.x = x;
-                    dims.y = z;
-                    dims.z = y;
-                }
-                public void paletteMaterial(int i, Material mat) {
-                    materials[i] = mat;
-                }
-            });
-        }
+        ByteBuffer vox = ioResourceToByteBuffer("org/lwjgl/demo/models/mikelovesrobots_mmmm/scene_house5.vox", 8192);
+        new MagicaVoxelLoader().readField(vox, field, bounds, new MagicaVoxelLoader.Callback() {
+            public void voxel(int x, int y, int z, byte c) {
+            }
+            public void size(int x, int y, int z) {
+                dims.x = x;
+                dims.y = z;
+                dims.z = y;
+            }
+            public void paletteMaterial(int i, Material mat) {
+                materials[i] = mat;
+            }
+        });
         VoxelField res = new VoxelField();
         res.w = dims.x;
         res.d = dims.z;
-        res.min = min;
-        res.max = max;
+        res.min = new Vector3i(bounds[0], bounds[1], bounds[2]);
+        res.max = new Vector3i(bounds[3], bounds[4], bounds[5]);
         res.field = field;
         return res;
     }
@@ -969,44 +969,37 @@ public class SdfBricks {
         return ret;
     }
 
-    private static int idx(int x, int y, int z, int width, int depth) {
-        return (x + 1) + (width + 2) * ((z + 1) + (y + 1) * (depth + 2));
-    }
-
     private static class VoxelField {
         int ny, py, w, d;
         byte[] field;
     }
 
     private static VoxelField buildVoxelField() throws IOException {
-        Vector3i dims = new Vector3i();
         Vector3i min = new Vector3i(Integer.MAX_VALUE);
         Vector3i max = new Vector3i(Integer.MIN_VALUE);
-        byte[] field = new byte[(256 + 2) * (256 + 2) * (256 + 2)];
+        SparseVoxelOctree octree = new SparseVoxelOctree(true);
         try (InputStream is = getSystemResourceAsStream("org/lwjgl/demo/models/mikelovesrobots_mmmm/scene_house5.vox");
              BufferedInputStream bis = new BufferedInputStream(is)) {
             new MagicaVoxelLoader().read(bis, new MagicaVoxelLoader.Callback() {
                 public void voxel(int x, int y, int z, byte c) {
-                    y = dims.z - y - 1;
-                    field[idx(x, z, y, dims.x, dims.z)] = 1;
+                    octree.voxel(x, y, z, (byte) 1);
+                    y = octree.sizeZ() - y - 1;
                     min.set(min(min.x, x), min(min.y, z), min(min.z, y));
                     max.set(max(max.x, x), max(max.y, z), max(max.z, y));
                 }
                 public void size(int x, int y, int z) {
-                    dims.x = x;
-                    dims.y = z;
-                    dims.z = y;
+                    octree.size(x, y, z);
                 }
                 public void paletteMaterial(int i, Material mat) {
                 }
             });
         }
         VoxelField res = new VoxelField();
-        res.w = dims.x;
-        res.d = dims.z;
+        res.w = octree.sizeX();
+        res.d = octree.sizeZ();
         res.ny = min.y;
         res.py = max.y;
-        res.field = field;
+        res.field = octree.exportDense(0, 0, 0, res.w, octree.sizeY(), res.d, null);
         return res;
     }
 
@@ -1348,22 +1341,9 @@ public class SdfBricks {
 
             // load shaders
             String pkg = SdfBricks.class.getName().toLowerCase().replace('.', '/') + "/";
-            loadShader(pStages
-                    .get(0)
-                    .sType$Default(), 
-                    null, stack, device, pkg + "raygen.glsl", VK_SHADER_STAGE_RAYGEN_BIT_KHR);
-            loadShader(pStages
-                    .get(1)
-                    .sType$Default(),
-                    null, stack, device, pkg + "raymiss.glsl", VK_SHADER_STAGE_MISS_BIT_KHR);
-            loadShader(pStages
-                    .get(2)
-                    .sType$Default(),
-                    null, stack, device, pkg + "closesthit.glsl", VK_SHADER_STAGE_CLOSEST_HIT_BIT_KHR);
-            loadShader(pStages
-                    .get(3)
-                    .sType$Default(),
-                    null, stack, device, pkg + "intersect.glsl", VK_SHADER_STAGE_INTERSECTION_BIT_KHR);
+            loadShaders(pStages, null, stack, device,
+                    new String[] { pkg + "raygen.glsl", pkg + "raymiss.glsl", pkg + "closesthit.glsl", pkg + "intersect.glsl" },
+                    new int[] { VK_SHADER_STAGE_RAYGEN_BIT_KHR, VK_SHADER_STAGE_MISS_BIT_KHR, VK_SHADER_STAGE_CLOSEST_HIT_BIT_KHR, VK_SHADER_STAGE_INTERSECTION_BIT_KHR });
 
             VkRayTracingShaderGroupCreateInfoKHR.Buffer groups = VkRayTracingShaderGroupCreateInfoKHR
                     .calloc(3, stack);
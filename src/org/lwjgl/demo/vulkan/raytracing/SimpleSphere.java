@@ -1259,22 +1259,9 @@ public class SimpleSphere {
 
             // load shaders
             String pkg = SimpleSphere.class.getName().toLowerCase().replace('.', '/') + "/";
-            loadShader(pStages
-                    .get(0)
-                    .sType$Default(), 
-                    null, stack, device, pkg + "raygen.glsl", VK_SHADER_STAGE_RAYGEN_BIT_KHR);
-            loadShader(pStages
-                    .get(1)
-                    .sType$Default(),
-                    null, stack, device, pkg + "raymiss.glsl", VK_SHADER_STAGE_MISS_BIT_KHR);
-            loadShader(pStages
-                    .get(2)
-                    .sType$Default(),
-                    null, stack, device, pkg + "closesthit.glsl", VK_SHADER_STAGE_CLOSEST_HIT_BIT_KHR);
-            loadShader(pStages
-                    .get(3)
-                    .sType$Default(),
-                    null, stack, device, pkg + "intersect.glsl", VK_SHADER_STAGE_INTERSECTION_BIT_KHR);
+            loadShaders(pStages, null, stack, device,
+                    new String[] { pkg + "raygen.glsl", pkg + "raymiss.glsl", pkg + "closesthit.glsl", pkg + "intersect.glsl" },
+                    new int[] { VK_SHADER_STAGE_RAYGEN_BIT_KHR, VK_SHADER_STAGE_MISS_BIT_KHR, VK_SHADER_STAGE_CLOSEST_HIT_BIT_KHR, VK_SHADER_STAGE_INTERSECTION_BIT_KHR });
 
             VkRayTracingShaderGroupCreateInfoKHR.Buffer groups = VkRayTracingShaderGroupCreateInfoKHR
                     .calloc(3, stack);
@@ -1274,14 +1274,9 @@ public class SimpleTriangle {
 
             // load shaders
             String pkg = SimpleTriangle.class.getName().toLowerCase().replace('.', '/') + "/";
-            loadShader(pStages
-                    .get(0)
-                    .sType$Default(), 
-                    null, stack, device, pkg + "raygen.glsl", VK_SHADER_STAGE_RAYGEN_BIT_KHR);
-            loadShader(pStages
-                    .get(1)
-                    .sType$Default(),
-                    null, stack, device, pkg + "raymiss.glsl", VK_SHADER_STAGE_MISS_BIT_KHR);
+            loadShaders(pStages, null, stack, device,
+                    new String[] { pkg + "raygen.glsl", pkg + "raymiss.glsl" },
+                    new int[] { VK_SHADER_STAGE_RAYGEN_BIT_KHR, VK_SHADER_STAGE_MISS_BIT_KHR });
 
             VkRayTracingShaderGroupCreateInfoKHR.Buffer groups = VkRayTracingShaderGroupCreateInfoKHR
                     .calloc(2, stack);